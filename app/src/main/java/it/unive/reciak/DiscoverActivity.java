@@ -31,7 +31,6 @@ import androidx.core.app.ActivityCompat;
 
 import com.github.ybq.android.spinkit.SpinKitView;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.lang.reflect.Method;
@@ -40,11 +39,15 @@ import java.net.NetworkInterface;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import it.unive.reciak.socket.DiscoverSocket;
+import it.unive.reciak.socket.ReconnectPolicy;
 import it.unive.reciak.socket.TCPChannelClient;
+import it.unive.reciak.socket.message.AddressMessage;
+import it.unive.reciak.socket.message.MessageDispatcher;
 import it.unive.reciak.webrtc.PeerInfo;
 
 /**
@@ -64,10 +67,15 @@ public class DiscoverActivity extends AppCompatActivity implements TCPChannelCli
 
     // Gestore socket
     @Nullable
-    private ExecutorService executor;
+    private ScheduledExecutorService executor;
+    // Politica di riconnessione all'amministratore (solo executor)
+    private ReconnectPolicy reconnectPolicy;
     // Socket per l'invio degli indirizzi
     @Nullable
     private DiscoverSocket discoverSocket;
+    // Gestore degli indirizzi ricevuti
+    @NonNull
+    private final MessageDispatcher dispatcher = new MessageDispatcher().register(new AddressMessage(), this::onAddressMessage);
 
     // Lista
     private ListView listView;
@@ -147,7 +155,10 @@ public class DiscoverActivity extends AppCompatActivity implements TCPChannelCli
         intentFilter.addAction(WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION);
         intentFilter.addAction(WifiP2pManager.WIFI_P2P_THIS_DEVICE_CHANGED_ACTION);
 
-        executor = Executors.newSingleThreadExecutor();
+        executor = Executors.newSingleThreadScheduledExecutor();
+        reconnectPolicy = new ReconnectPolicy(getResources().getInteger(R.integer.reconnect_base_delay),
+                getResources().getInteger(R.integer.reconnect_max_delay),
+                getResources().getInteger(R.integer.reconnect_max_attempts));
 
         // Controlla i permessi
         if (ActivityCompat.checkSelfPermission(getApplicationContext(), Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
@@ -244,7 +255,7 @@ public class DiscoverActivity extends AppCompatActivity implements TCPChannelCli
             });
 
             // Creo un ServerSocket
-            discoverSocket = new DiscoverSocket(executor, this, new PeerInfo(null, getResources().getInteger(R.integer.discover_port), isServer));
+            discoverSocket = new DiscoverSocket(executor, this, dispatcher, new PeerInfo(null, getResources().getInteger(R.integer.discover_port), isServer));
         }
     }
 
@@ -298,7 +309,7 @@ public class DiscoverActivity extends AppCompatActivity implements TCPChannelCli
         if (!isServer && groupOwnerAddress != null) {
             // Aggiungo l'amministratore nella lista dei peer e mi connetto
             peersInfo.add(new PeerInfo(groupOwnerAddress.getHostAddress(), getResources().getInteger(R.integer.call_port), isServer));
-            discoverSocket = new DiscoverSocket(executor, this, new PeerInfo(groupOwnerAddress.getHostAddress(), getResources().getInteger(R.integer.discover_port), isServer));
+            discoverSocket = new DiscoverSocket(executor, this, dispatcher, new PeerInfo(groupOwnerAddress.getHostAddress(), getResources().getInteger(R.integer.discover_port), isServer));
         }
     };
 
@@ -371,6 +382,7 @@ public class DiscoverActivity extends AppCompatActivity implements TCPChannelCli
     // Connesso al socket dell'altro peer
     @Override
     public void onTCPConnected() {
+        reconnectPolicy.reset();
         // Se non sono l'amministratore
         if (!isServer) {
             String ip = getIp();
@@ -381,42 +393,48 @@ public class DiscoverActivity extends AppCompatActivity implements TCPChannelCli
         }
     }
 
-    // Ha ricevuto un pacchetto da un altro peer
-    @Override
-    public void onTCPMessage(@NonNull JSONObject message) {
-        try {
-            // Indirizzo dell'altro peer ricevuto
-            JSONObject addressJson = message.getJSONObject("value");
-            String newPartnerIp = addressJson.getString("partnerIp");
-            int newPartnerPort = addressJson.getInt("partnerPort");
-
-            // Se ci sono posti liberi
-            if (peersInfo.size() < getResources().getInteger(R.integer.max_users)) {
-                // Aggiunge il peer alla lista
-                peersInfo.add(new PeerInfo(newPartnerIp, newPartnerPort, isServer));
-
-                runOnUiThread(() -> {
-                    // Mostro il pulsante di avvio
-                    btnStart.setVisibility(View.VISIBLE);
-                });
-            }
+    // Ha ricevuto l'indirizzo di un altro peer
+    private void onAddressMessage(@NonNull AddressMessage message) {
+        // Se ci sono posti liberi
+        if (peersInfo.size() < getResources().getInteger(R.integer.max_users)) {
+            // Aggiunge il peer alla lista
+            peersInfo.add(new PeerInfo(message.partnerIp, message.partnerPort, isServer));
 
-            // Chiude il socket
-            if (discoverSocket != null) {
-                discoverSocket.disconnect();
-                discoverSocket = new DiscoverSocket(executor, this, new PeerInfo(null, getResources().getInteger(R.integer.discover_port), isServer));
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+            runOnUiThread(() -> {
+                // Mostro il pulsante di avvio
+                btnStart.setVisibility(View.VISIBLE);
+            });
+        }
+
+        // Chiude il socket
+        if (discoverSocket != null) {
+            discoverSocket.disconnect();
+            discoverSocket = new DiscoverSocket(executor, this, dispatcher, new PeerInfo(null, getResources().getInteger(R.integer.discover_port), isServer));
         }
     }
 
+    // Messaggio senza gestore
+    @Override
+    public void onTCPMessage(@NonNull JSONObject message) {
+        Log.w(TAG, "onTCPMessage: unknown action " + message.optString("action"));
+    }
+
     @Override
     public void onTCPError() {
         // Se non sono l'amministratore e non ho l'indirizzo dell'amministratore, riavvio il socket
         if (!isServer && !peersInfo.isEmpty() && discoverSocket != null) {
             discoverSocket.disconnect();
-            discoverSocket = new DiscoverSocket(executor, this, new PeerInfo(peersInfo.get(0).getIp(), getResources().getInteger(R.integer.discover_port), isServer));
+
+            long delay = reconnectPolicy.nextDelay();
+            if (delay < 0) {
+                Log.w(TAG, "onTCPError: attempts exhausted");
+                runOnUiThread(() -> Toast.makeText(getApplicationContext(), R.string.connection_error, Toast.LENGTH_SHORT).show());
+                return;
+            }
+
+            // Ritenta dopo il ritardo stabilito, senza bloccare l'executor
+            if (!executor.isShutdown())
+                executor.schedule(() -> discoverSocket = new DiscoverSocket(executor, this, dispatcher, new PeerInfo(peersInfo.get(0).getIp(), getResources().getInteger(R.integer.discover_port), isServer)), delay, TimeUnit.MILLISECONDS);
         }
     }
 
@@ -8,6 +8,8 @@ import androidx.constraintlayout.widget.ConstraintLayout;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -23,6 +25,7 @@ import com.arthenica.mobileffmpeg.FFmpeg;
 
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,6 +37,8 @@ import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import it.unive.reciak.webrtc.record.Mp4Concatenator;
+
 import static com.arthenica.mobileffmpeg.Config.RETURN_CODE_CANCEL;
 import static com.arthenica.mobileffmpeg.Config.RETURN_CODE_SUCCESS;
 
@@ -63,6 +68,9 @@ public class RenderActivity extends AppCompatActivity {
     // Executor per il rendering
     @Nullable
     private ExecutorService executor;
+    // Formato video delle clip (H.264 se non rilevato)
+    @NonNull
+    private String videoMime = MediaFormat.MIMETYPE_VIDEO_AVC;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -87,7 +95,15 @@ public class RenderActivity extends AppCompatActivity {
 
         // Esegue il rendering su un executor
         executor.execute(() -> {
-            // Avvia la conversione dei video
+            // Registrazione continua: il video è già completo
+            if (videos != null && videos.size() == 1) {
+                publish(videos.get(0));
+                return;
+            }
+            // Unione diretta delle clip, senza ffmpeg
+            if (concatenate())
+                return;
+            // Clip non compatibili: avvia la conversione dei video
             String input = transcode();
 
             if (input != null) {
@@ -97,6 +113,54 @@ public class RenderActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * Unisce le clip con Mp4Concatenator, in un solo passaggio e senza file intermedi.
+     *
+     * @return true se il video è stato salvato, false se le clip vanno unite con ffmpeg
+     */
+    private boolean concatenate() {
+        Log.i(TAG, "concatenate");
+        if (videos == null || videos.isEmpty())
+            return false;
+        runOnUiThread(() -> textDescription.setText(R.string.merge));
+
+        String time = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
+        String name = "VID_ROOM_" + time + ".mp4";
+        ArrayList<File> inputs = new ArrayList<>();
+        for (String video : videos)
+            inputs.add(new File(getFilesDir(), video));
+
+        try {
+            Mp4Concatenator.concat(inputs, new File(outputFolder(), name));
+        } catch (IOException e) {
+            Log.w(TAG, "concatenate: falling back to ffmpeg", e);
+            return false;
+        }
+
+        Log.i(TAG, "Rendering finished");
+        Uri uri = copyVideo(name);
+        showResult(uri);
+        // Elimina le clip
+        deleteFiles(getApplicationContext());
+        return true;
+    }
+
+    /**
+     * Ritorna la cartella del video finale: lo storage privato se il dispositivo usa Android 10+,
+     * altrimenti direttamente DCIM.
+     *
+     * @return percorso della cartella
+     */
+    @NonNull
+    private String outputFolder() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return getFilesDir().getAbsolutePath();
+        File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getAbsoluteFile() + "/ReCiak!/");
+        if (dir.mkdirs())
+            Log.i(TAG, "Folder created");
+        return dir.getAbsolutePath();
+    }
+
     /**
      * Converte le clip in un formato compatibile alla fusione.
      *
@@ -112,8 +176,13 @@ public class RenderActivity extends AppCompatActivity {
 
                 // Percorso video nello storage privato dell'app
                 String folder = getFilesDir().getAbsolutePath();
+                // Le clip possono essere H.264 o HEVC, a seconda dell'encoder del dispositivo
+                String mime = probeVideoMime(new File(folder, videos.get(i)));
+                if (mime != null)
+                    videoMime = mime;
+                String filter = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime) ? "hevc_mp4toannexb" : "h264_mp4toannexb";
                 // Comando ffmpeg
-                String ffmpeg = String.format(Locale.getDefault(), "-i %s/%s -c copy -bsf:v h264_mp4toannexb -f mpegts %s/VID_%d.ts", folder, videos.get(i), folder, i);
+                String ffmpeg = String.format(Locale.getDefault(), "-i %s/%s -c copy -bsf:v %s -f mpegts %s/VID_%d.ts", folder, videos.get(i), filter, folder, i);
                 // Esegue commando ffmpeg
                 int rc = FFmpeg.execute(ffmpeg);
 
@@ -139,6 +208,30 @@ public class RenderActivity extends AppCompatActivity {
         return output;
     }
 
+    /**
+     * Legge il formato della traccia video di una clip.
+     *
+     * @param file clip registrata
+     * @return tipo MIME del video o null se non è leggibile
+     */
+    @Nullable
+    private static String probeVideoMime(@NonNull File file) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.getAbsolutePath());
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("video/"))
+                    return mime;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            extractor.release();
+        }
+        return null;
+    }
+
     /**
      * Fonde le clip in un unico video. Il filmato verrà salvato direttamente nella cartella DCIM
      * se il dispositivo usa Android < 10, altrimenti verrà salvato nello storage privato dell'app.
@@ -151,22 +244,14 @@ public class RenderActivity extends AppCompatActivity {
         // Timestamp per il nome del video fuso
         SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault());
         String time = formatter.format(new Date());
-        String folder;
 
         try {
-            // Se il dispositivo usa Android 10+, salva il video nello storage privato
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
-                folder = getFilesDir().getAbsolutePath();
-            else {
-                // Altrimenti lo salva direttamente in DCIM
-                File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getAbsoluteFile() + "/ReCiak!/");
-                if (dir.mkdirs())
-                    Log.i(TAG, "render: folder created");
-                folder = dir.getAbsolutePath();
-            }
+            String folder = outputFolder();
 
             // Comando ffmpeg per la fusione delle clip
-            String ffmpeg = String.format("-i \"%s\" -c copy -bsf:a aac_adtstoasc %s/VID_ROOM_%s.mp4", input, folder, time);
+            // HEVC viene marcato hvc1 per essere riprodotto anche dai lettori Apple
+            String tag = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(videoMime) ? " -tag:v hvc1" : "";
+            String ffmpeg = String.format("-i \"%s\" -c copy%s -bsf:a aac_adtstoasc %s/VID_ROOM_%s.mp4", input, tag, folder, time);
             runOnUiThread(() -> textDescription.setText(R.string.merge));
             // Esegue comando ffmpeg
             int rc = FFmpeg.execute(ffmpeg);
@@ -177,30 +262,7 @@ public class RenderActivity extends AppCompatActivity {
                 Log.i(TAG, "Rendering finished");
                 // Se il video è salvato nello storage privato lo copia in DCIM
                 Uri uri = copyVideo("VID_ROOM_" + time + ".mp4");
-
-                runOnUiThread(() -> {
-                    // Nasconde i messaggi
-                    loading.setVisibility(View.INVISIBLE);
-                    textResult.setVisibility(View.VISIBLE);
-                    // Mostra i pulsanti di riproduzione e condivisione
-                    buttons.setVisibility(View.VISIBLE);
-
-                    // Pulsante play: avvia riproduzione video
-                    btnPlay.setOnClickListener(v -> {
-                        Intent intent = new Intent(Intent.ACTION_VIEW);
-                        intent.setDataAndType(uri, "video/mp4");
-                        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                        startActivity(intent);
-                    });
-                    // Pulsante condivisione: inoltra il video a un'app scelta dall'utente
-                    btnShare.setOnClickListener(v -> {
-                        Intent intent = new Intent();
-                        intent.setAction(Intent.ACTION_SEND);
-                        intent.putExtra(Intent.EXTRA_STREAM, uri);
-                        intent.setType("video/mp4");
-                        startActivity(intent);
-                    });
-                });
+                showResult(uri);
             } else if (rc == RETURN_CODE_CANCEL) {
                 // Rendering annullato dall'utente
                 Log.w(TAG, "Rendering cancelled by user");
@@ -219,6 +281,77 @@ public class RenderActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Salva la registrazione continua della stanza senza rendering: il file viene solo rinominato
+     * (Android 10+) o copiato in DCIM.
+     *
+     * @param video nome del video nello storage privato
+     */
+    private void publish(@NonNull String video) {
+        Log.i(TAG, "publish");
+        String time = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
+        String name = "VID_ROOM_" + time + ".mp4";
+        File source = new File(getFilesDir(), video);
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                // copyVideo() copia il file dallo storage privato
+                if (!source.renameTo(new File(getFilesDir(), name)))
+                    throw new IOException("Unable to rename " + source);
+            } else {
+                InputStream input = new FileInputStream(source);
+                OutputStream output = new FileOutputStream(new File(outputFolder(), name));
+                byte[] buf = new byte[64 * 1024];
+                int bytesRead;
+
+                while ((bytesRead = input.read(buf)) > 0)
+                    output.write(buf, 0, bytesRead);
+                input.close();
+                output.close();
+            }
+            Uri uri = copyVideo(name);
+            showResult(uri);
+        } catch (IOException e) {
+            e.printStackTrace();
+            runOnUiThread(() -> Toast.makeText(getApplicationContext(), R.string.merge_failed, Toast.LENGTH_SHORT).show());
+            finish();
+        }
+
+        // Elimina la registrazione privata
+        deleteFiles(getApplicationContext());
+    }
+
+    /**
+     * Mostra i pulsanti di riproduzione e condivisione del video finale.
+     *
+     * @param uri Uri del video
+     */
+    private void showResult(@NonNull Uri uri) {
+        runOnUiThread(() -> {
+            // Nasconde i messaggi
+            loading.setVisibility(View.INVISIBLE);
+            textResult.setVisibility(View.VISIBLE);
+            // Mostra i pulsanti di riproduzione e condivisione
+            buttons.setVisibility(View.VISIBLE);
+
+            // Pulsante play: avvia riproduzione video
+            btnPlay.setOnClickListener(v -> {
+                Intent intent = new Intent(Intent.ACTION_VIEW);
+                intent.setDataAndType(uri, "video/mp4");
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                startActivity(intent);
+            });
+            // Pulsante condivisione: inoltra il video a un'app scelta dall'utente
+            btnShare.setOnClickListener(v -> {
+                Intent intent = new Intent();
+                intent.setAction(Intent.ACTION_SEND);
+                intent.putExtra(Intent.EXTRA_STREAM, uri);
+                intent.setType("video/mp4");
+                startActivity(intent);
+            });
+        });
+    }
+
     /**
      * Se la versione di Android usa lo scoped storage, copia il video renderizzato nella cartella condivisa DCIM.
      * Aggiorna le informazioni del video.
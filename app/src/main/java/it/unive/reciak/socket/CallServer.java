@@ -0,0 +1,365 @@
+package it.unive.reciak.socket;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Unico ServerSocket del dispositivo per le connessioni di chiamata.
+ * Chi si connette invia per prima cosa una riga di presentazione con il proprio identificativo
+ * ({"action":"connect","value":{"peer":id}}): la connessione viene consegnata al socket che
+ * attende quel peer. Se il socket non è ancora stato creato la connessione resta in attesa
+ * per qualche secondo, poi viene chiusa; lo stesso vale per chi non si presenta.
+ * Tutti i metodi, tranne open() e close(), vengono eseguiti sul thread del loop;
+ * close() attende che il loop abbia chiuso i canali.
+ */
+public final class CallServer implements SelectorLoop.ChannelHandler {
+    private static final String TAG = "CallServer";
+    // Dimensione massima della riga di presentazione
+    private static final int MAX_HANDSHAKE_SIZE = 512;
+    // Tempo massimo di attesa della presentazione e di una connessione non richiesta da nessun socket
+    private static final long PARKED_TIMEOUT_MS = 5000;
+    // Tempo massimo di attesa della chiusura sul thread del loop
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+
+    @Nullable
+    private static CallServer instance;
+
+    @NonNull
+    private final SelectorLoop loop;
+    @NonNull
+    private final ServerSocketChannel serverSocket;
+    // Socket in attesa di un peer, indicizzati per identificativo
+    @NonNull
+    private final HashMap<String, Acceptor> acceptors;
+    // Connessioni in attesa della riga di presentazione
+    @NonNull
+    private final HashSet<Handshake> pending;
+    // Connessioni presentate ma non ancora richieste da un socket
+    @NonNull
+    private final HashMap<String, Handshake> parked;
+
+    /**
+     * Socket in attesa di una connessione.
+     */
+    interface Acceptor {
+        /**
+         * Connessione del peer atteso.
+         *
+         * @param channel canale connesso, già registrato nel loop
+         * @param leftover byte ricevuti dopo la riga di presentazione (in modalità lettura)
+         */
+        void onAccepted(@NonNull SocketChannel channel, @NonNull ByteBuffer leftover);
+    }
+
+    private CallServer(@NonNull SelectorLoop loop, @NonNull ServerSocketChannel serverSocket) {
+        this.loop = loop;
+        this.serverSocket = serverSocket;
+        acceptors = new HashMap<>();
+        pending = new HashSet<>();
+        parked = new HashMap<>();
+    }
+
+    /**
+     * Apre il ServerSocket di chiamata, se non è già aperto.
+     *
+     * @param port porta di ascolto
+     * @throws IOException impossibile aprire la porta
+     */
+    public static synchronized void open(int port) throws IOException {
+        if (instance != null)
+            return;
+
+        SelectorLoop loop = SelectorLoop.getInstance();
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            TCPChannelClient.closeQuietly(channel);
+            throw e;
+        }
+        Log.d(TAG, "Listening on " + port);
+
+        CallServer server = new CallServer(loop, channel);
+        loop.execute(() -> {
+            try {
+                loop.register(channel, SelectionKey.OP_ACCEPT, server);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to register server: " + e.getMessage());
+            }
+        });
+        instance = server;
+    }
+
+    /**
+     * Chiude il ServerSocket e le connessioni non ancora consegnate.
+     */
+    public static synchronized void close() {
+        if (instance == null)
+            return;
+
+        CallServer server = instance;
+        instance = null;
+        // Il canale registrato libera la porta solo quando il loop rimuove la sua chiave:
+        // attende la chiusura, così un open() successivo può riutilizzare la porta
+        server.loop.executeAndWait(server::closeChannels, CLOSE_TIMEOUT_MS);
+    }
+
+    /**
+     * Ritorna il ServerSocket aperto.
+     *
+     * @return ServerSocket di chiamata o null se non è aperto
+     */
+    @Nullable
+    static synchronized CallServer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Attende la connessione di un peer. Se il peer si è già presentato la connessione viene
+     * consegnata subito.
+     *
+     * @param peerId identificativo del peer
+     * @param acceptor socket che riceve la connessione
+     */
+    void expect(@NonNull String peerId, @NonNull Acceptor acceptor) {
+        @Nullable
+        Handshake handshake = parked.remove(peerId);
+        if (handshake != null) {
+            handshake.deliver(acceptor);
+            return;
+        }
+        acceptors.put(peerId, acceptor);
+    }
+
+    /**
+     * Il socket non attende più il peer.
+     *
+     * @param peerId identificativo del peer
+     * @param acceptor socket registrato con expect()
+     */
+    void cancel(@NonNull String peerId, @NonNull Acceptor acceptor) {
+        if (acceptors.get(peerId) == acceptor)
+            acceptors.remove(peerId);
+    }
+
+    // Nuova connessione
+    @Override
+    public void onReady(@NonNull SelectionKey key) {
+        if (!key.isAcceptable())
+            return;
+
+        SocketChannel channel;
+        try {
+            channel = serverSocket.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to accept connection: " + e.getMessage());
+            return;
+        }
+
+        Handshake handshake = new Handshake(channel);
+        try {
+            loop.register(channel, SelectionKey.OP_READ, handshake);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to register connection: " + e.getMessage());
+            handshake.close();
+            return;
+        }
+        // Una connessione che non si presenta non resta aperta per tutta la chiamata
+        pending.add(handshake);
+        loop.schedule(() -> expirePending(handshake), PARKED_TIMEOUT_MS);
+    }
+
+    /**
+     * Chiude una connessione che non ha inviato la riga di presentazione entro il tempo massimo.
+     *
+     * @param handshake connessione accettata
+     */
+    private void expirePending(@NonNull Handshake handshake) {
+        if (!pending.contains(handshake))
+            return;
+        Log.w(TAG, "Connection without handshake, closing");
+        handshake.close();
+    }
+
+    /**
+     * Riga di presentazione ricevuta: consegna la connessione o la mette in attesa.
+     *
+     * @param peerId identificativo del peer
+     * @param handshake connessione presentata
+     */
+    private void route(@NonNull String peerId, @NonNull Handshake handshake) {
+        Log.d(TAG, "Connection from " + peerId);
+        @Nullable
+        Acceptor acceptor = acceptors.remove(peerId);
+        if (acceptor != null) {
+            handshake.deliver(acceptor);
+            return;
+        }
+
+        // Il peer ha ritentato prima che il socket fosse pronto: vale l'ultima connessione
+        @Nullable
+        Handshake previous = parked.put(peerId, handshake);
+        if (previous != null)
+            previous.close();
+        // Una connessione mai richiesta (duplicata o di un peer estraneo) non resta aperta per tutta la chiamata
+        loop.schedule(() -> expire(peerId, handshake), PARKED_TIMEOUT_MS);
+    }
+
+    /**
+     * Chiude una connessione rimasta in attesa oltre il tempo massimo.
+     *
+     * @param peerId identificativo del peer
+     * @param handshake connessione messa in attesa
+     */
+    private void expire(@NonNull String peerId, @NonNull Handshake handshake) {
+        if (parked.get(peerId) != handshake)
+            return;
+        Log.w(TAG, "Connection from " + peerId + " not requested, closing");
+        parked.remove(peerId);
+        handshake.close();
+    }
+
+    /**
+     * Chiude il ServerSocket e le connessioni in attesa.
+     */
+    private void closeChannels() {
+        TCPChannelClient.closeQuietly(serverSocket);
+        for (Handshake handshake : new ArrayList<>(pending))
+            handshake.close();
+        for (Handshake handshake : parked.values())
+            handshake.close();
+        parked.clear();
+        acceptors.clear();
+        loop.purge();
+    }
+
+    /**
+     * Connessione in attesa della riga di presentazione.
+     */
+    private final class Handshake implements SelectorLoop.ChannelHandler {
+        @NonNull
+        private final SocketChannel channel;
+        @NonNull
+        private final ByteBuffer buffer;
+
+        Handshake(@NonNull SocketChannel channel) {
+            this.channel = channel;
+            buffer = ByteBuffer.allocate(MAX_HANDSHAKE_SIZE);
+        }
+
+        @Override
+        public void onReady(@NonNull SelectionKey key) {
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read handshake: " + e.getMessage());
+                close();
+                return;
+            }
+            if (read < 0) {
+                close();
+                return;
+            }
+
+            // Cerca la fine della riga
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    onLine(key, new String(buffer.array(), 0, i, StandardCharsets.UTF_8), i + 1);
+                    return;
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                Log.w(TAG, "Handshake too long");
+                close();
+            }
+        }
+
+        /**
+         * Legge l'identificativo del peer.
+         *
+         * @param key chiave del canale
+         * @param line riga di presentazione
+         * @param end inizio dei byte successivi alla riga
+         */
+        private void onLine(@NonNull SelectionKey key, @NonNull String line, int end) {
+            String peerId;
+            try {
+                JSONObject packet = new JSONObject(line);
+                if (!"connect".equals(packet.optString("action")))
+                    throw new JSONException("Unexpected action " + packet.optString("action"));
+                peerId = packet.getJSONObject("value").getString("peer");
+            } catch (JSONException e) {
+                Log.w(TAG, "Invalid handshake: " + e.getMessage());
+                close();
+                return;
+            }
+
+            // Sospende la lettura fino alla consegna: i byte successivi restano nel buffer
+            buffer.flip();
+            buffer.position(end);
+            key.interestOps(0);
+            pending.remove(this);
+            route(peerId, this);
+        }
+
+        /**
+         * Consegna la connessione al socket.
+         *
+         * @param acceptor socket in attesa
+         */
+        void deliver(@NonNull Acceptor acceptor) {
+            acceptor.onAccepted(channel, buffer);
+        }
+
+        /**
+         * Chiude la connessione.
+         */
+        void close() {
+            pending.remove(this);
+            TCPChannelClient.closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Crea la riga di presentazione.
+     *
+     * @param peerId identificativo del dispositivo che si connette
+     * @return riga da inviare appena connesso
+     */
+    @NonNull
+    static ByteBuffer handshakeMessage(@NonNull String peerId) {
+        JSONObject packet = new JSONObject();
+
+        try {
+            JSONObject value = new JSONObject();
+            value.put("peer", peerId);
+            packet.put("action", "connect");
+            packet.put("value", value);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return ByteBuffer.wrap((packet.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,22 +1,91 @@
 package it.unive.reciak.socket;
 
+import android.util.Log;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.webrtc.DataChannel;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 
+import it.unive.reciak.socket.message.AddUserMessage;
+import it.unive.reciak.socket.message.ByeMessage;
+import it.unive.reciak.socket.message.IceCandidateMessage;
+import it.unive.reciak.socket.message.IceCandidatesMessage;
+import it.unive.reciak.socket.message.MessageDispatcher;
+import it.unive.reciak.socket.message.ResumeMessage;
+import it.unive.reciak.socket.message.SessionDescriptionMessage;
+import it.unive.reciak.socket.message.SignalingMessage;
+import it.unive.reciak.socket.message.StartVideoMessage;
+import it.unive.reciak.socket.message.VideoReceivedMessage;
 import it.unive.reciak.webrtc.PeerInfo;
 
 /**
  * Socket connessione a un peer via WebRTC.
  */
 public class CallSocket extends TCPChannelClient {
+    private static final String TAG = "CallSocket";
+
+    // Canale dati WebRTC su cui viaggiano i messaggi dopo l'avvio della chiamata
+    @Nullable
+    private volatile DataChannel dataChannel;
+
     public CallSocket(ExecutorService executor, TCPChannelEvents eventListener, PeerInfo peerInfo) {
-        super(executor, eventListener, new PeerInfo(peerInfo.getIp(), peerInfo.getPort(), !peerInfo.isInitiator()));
+        this(executor, eventListener, null, peerInfo);
+    }
+
+    public CallSocket(ExecutorService executor, TCPChannelEvents eventListener, @Nullable MessageDispatcher dispatcher, PeerInfo peerInfo) {
+        super(executor, eventListener, dispatcher, new PeerInfo(peerInfo.getIp(), peerInfo.getPort(), !peerInfo.isInitiator()), true);
+    }
+
+    /**
+     * Imposta il canale dati su cui inviare i messaggi al posto del socket.
+     *
+     * @param dataChannel canale dati aperto, null per tornare al socket
+     */
+    public void setDataChannel(@Nullable DataChannel dataChannel) {
+        this.dataChannel = dataChannel;
+    }
+
+    /**
+     * Invia un messaggio tipizzato sul canale dati, se aperto, altrimenti sul socket.
+     *
+     * @param message messaggio da inviare
+     */
+    @Override
+    public void send(@NonNull SignalingMessage message) {
+        @Nullable
+        DataChannel channel = dataChannel;
+        if (channel == null) {
+            super.send(message);
+            return;
+        }
+
+        // Il canale dati separa già i messaggi: il frame viene inviato senza intestazione
+        FrameWriter frame = new FrameWriter(message.getType(), message.sizeHint());
+        message.write(frame);
+        ByteBuffer data = frame.toByteBuffer();
+        data.position(FrameWriter.HEADER_SIZE);
+        if (!channel.send(new DataChannel.Buffer(data, true)))
+            Log.e(TAG, "Failed to send on data channel: " + message.getAction());
+    }
+
+    /**
+     * Riceve un messaggio dal canale dati e lo gestisce come un frame arrivato dal socket.
+     * Il buffer è valido solo durante la chiamata e viene copiato.
+     *
+     * @param buffer messaggio ricevuto
+     */
+    public void receive(@NonNull DataChannel.Buffer buffer) {
+        byte[] frame = new byte[buffer.data.remaining()];
+        buffer.data.get(frame);
+        if (frame.length > 0)
+            receive((Object) frame);
     }
 
     /**
@@ -25,18 +94,22 @@ public class CallSocket extends TCPChannelClient {
      * @param iceCandidate informazioni ICE
      */
     public void sendIceCandidate(@NonNull IceCandidate iceCandidate) {
+        executor.execute(() -> send(new IceCandidateMessage(iceCandidate.sdp, iceCandidate.sdpMLineIndex, iceCandidate.sdpMid)));
+    }
+
+    /**
+     * Invia più informazioni ICE in un unico messaggio.
+     *
+     * @param iceCandidates informazioni ICE raccolte
+     */
+    public void sendIceCandidates(@NonNull List<IceCandidate> iceCandidates) {
         executor.execute(() -> {
-            JSONObject iceCandidateJson = new JSONObject();
+            IceCandidatesMessage message = new IceCandidatesMessage();
 
-            try {
-                iceCandidateJson.put("sdp", iceCandidate.sdp);
-                iceCandidateJson.put("sdpMLineIndex", iceCandidate.sdpMLineIndex);
-                iceCandidateJson.put("sdpMid", iceCandidate.sdpMid);
+            for (IceCandidate iceCandidate : iceCandidates)
+                message.add(iceCandidate.sdp, iceCandidate.sdpMLineIndex, iceCandidate.sdpMid);
 
-                send("addIceCandidate", iceCandidateJson);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+            send(message);
         });
     }
 
@@ -47,18 +120,7 @@ public class CallSocket extends TCPChannelClient {
      * @param type tipo offer/answer
      */
     public void sendSessionDescription(@NonNull SessionDescription sessionDescription, @NonNull String type) {
-        executor.execute(() -> {
-            JSONObject sessionDescriptionJson = new JSONObject();
-
-            try {
-                sessionDescriptionJson.put("type", type);
-                sessionDescriptionJson.put("sessionDescription", sessionDescription.description);
-
-                send("setSessionDescription", sessionDescriptionJson);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        });
+        executor.execute(() -> send(new SessionDescriptionMessage(type, sessionDescription.description)));
     }
 
     /**
@@ -70,18 +132,50 @@ public class CallSocket extends TCPChannelClient {
      * @param isInitiator true se deve avviare la negoziazione
      */
     public void sendAddUser(@NonNull String partnerIp, int partnerPort, boolean isInitiator) {
-        executor.execute(() -> {
-            JSONObject userJson = new JSONObject();
+        executor.execute(() -> send(new AddUserMessage(partnerIp, partnerPort, isInitiator)));
+    }
+
+    /**
+     * Avvisa il peer che il dispositivo ha iniziato a condividere la propria fotocamera.
+     */
+    public void sendStartVideo() {
+        executor.execute(() -> send(new StartVideoMessage()));
+    }
+
+    /**
+     * Conferma al peer la ricezione del primo fotogramma della sua condivisione video.
+     */
+    public void sendVideoReceived() {
+        executor.execute(() -> send(new VideoReceivedMessage()));
+    }
+
+    /**
+     * Invia al peer l'identificativo della propria sessione.
+     *
+     * @param token identificativo della sessione
+     */
+    public void sendResume(@NonNull String token) {
+        executor.execute(() -> send(new ResumeMessage(token)));
+    }
+
+    /**
+     * Avvisa il peer della fine della chiamata e chiude il socket.
+     * Sul canale dati il messaggio viene inviato subito, prima che il canale venga chiuso.
+     */
+    public void sendBye() {
+        @Nullable
+        DataChannel channel = dataChannel;
+        if (channel != null) {
+            send(new ByeMessage());
+            dataChannel = null;
+        }
 
-            try {
-                userJson.put("partnerIp", partnerIp);
-                userJson.put("partnerPort", partnerPort);
-                userJson.put("isInitiator", isInitiator);
+        executor.execute(() -> {
+            if (isConnected())
+                send(new ByeMessage());
 
-                send("addUser", userJson);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+            // Chiude il socket
+            disconnect();
         });
     }
 }
@@ -1,12 +1,12 @@
 package it.unive.reciak.socket;
 
 import androidx.annotation.NonNull;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import androidx.annotation.Nullable;
 
 import java.util.concurrent.ExecutorService;
 
+import it.unive.reciak.socket.message.AddressMessage;
+import it.unive.reciak.socket.message.MessageDispatcher;
 import it.unive.reciak.webrtc.PeerInfo;
 
 /**
@@ -14,7 +14,11 @@ import it.unive.reciak.webrtc.PeerInfo;
  */
 public class DiscoverSocket extends TCPChannelClient {
     public DiscoverSocket(ExecutorService executor, TCPChannelEvents eventListener, PeerInfo peerInfo) {
-        super(executor, eventListener, peerInfo);
+        this(executor, eventListener, null, peerInfo);
+    }
+
+    public DiscoverSocket(ExecutorService executor, TCPChannelEvents eventListener, @Nullable MessageDispatcher dispatcher, PeerInfo peerInfo) {
+        super(executor, eventListener, dispatcher, peerInfo);
     }
 
     /**
@@ -28,16 +32,7 @@ public class DiscoverSocket extends TCPChannelClient {
      */
     public void sendAddress(@NonNull String ip, int port) {
         executor.execute(() -> {
-            JSONObject addressJson = new JSONObject();
-
-            try {
-                addressJson.put("partnerIp", ip);
-                addressJson.put("partnerPort", port);
-
-                send("address", addressJson);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+            send(new AddressMessage(ip, port));
 
             // Chiude il socket
             disconnect();
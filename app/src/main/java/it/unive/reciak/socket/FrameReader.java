@@ -0,0 +1,115 @@
+package it.unive.reciak.socket;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lettura di un frame binario scritto da FrameWriter.
+ * I campi vengono letti direttamente dai byte ricevuti, senza stringhe intermedie.
+ */
+public final class FrameReader {
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    public FrameReader() {
+        buffer = new byte[0];
+    }
+
+    /**
+     * Crea un lettore per un frame senza intestazione (tipo e campi).
+     *
+     * @param frame frame ricevuto
+     */
+    public FrameReader(@NonNull byte[] frame) {
+        reset(frame, 0, frame.length);
+    }
+
+    /**
+     * Riutilizza il lettore per un altro frame.
+     *
+     * @param frame byte ricevuti
+     * @param offset inizio del frame (tipo)
+     * @param length lunghezza del frame
+     * @return il lettore stesso
+     */
+    @NonNull
+    public FrameReader reset(@NonNull byte[] frame, int offset, int length) {
+        buffer = frame;
+        position = offset;
+        limit = offset + length;
+        return this;
+    }
+
+    /**
+     * Ritorna il tipo del frame senza consumarlo.
+     *
+     * @return tipo di messaggio
+     */
+    public byte peekType() {
+        return buffer[position];
+    }
+
+    /**
+     * Legge un byte.
+     *
+     * @return valore
+     */
+    public byte getByte() {
+        require(1);
+        return buffer[position++];
+    }
+
+    /**
+     * Legge un booleano.
+     *
+     * @return valore
+     */
+    public boolean getBoolean() {
+        return getByte() != 0;
+    }
+
+    /**
+     * Legge un intero (big-endian).
+     *
+     * @return valore
+     */
+    public int getInt() {
+        require(4);
+        int value = ((buffer[position] & 0xFF) << 24)
+                | ((buffer[position + 1] & 0xFF) << 16)
+                | ((buffer[position + 2] & 0xFF) << 8)
+                | (buffer[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    /**
+     * Legge una stringa UTF-8 preceduta dalla sua lunghezza in byte.
+     *
+     * @return valore, null se è stata scritta una stringa null
+     */
+    @Nullable
+    public String getString() {
+        int length = getInt();
+        if (length < 0)
+            return null;
+
+        require(length);
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    /**
+     * Verifica che il frame contenga ancora almeno size byte.
+     *
+     * @param size byte da leggere
+     */
+    private void require(int size) {
+        if (size < 0 || position + size > limit)
+            throw new IllegalStateException("Truncated frame");
+    }
+}
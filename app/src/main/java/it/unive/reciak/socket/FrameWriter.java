@@ -0,0 +1,117 @@
+package it.unive.reciak.socket;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Scrittura di un frame binario.
+ * Formato: lunghezza (int, 4 byte) | tipo (1 byte) | campi del messaggio.
+ * La lunghezza comprende il tipo e i campi, ma non l'intestazione.
+ */
+public final class FrameWriter {
+    // Dimensione intestazione (lunghezza del frame)
+    public static final int HEADER_SIZE = 4;
+    // Dimensione massima di un frame
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    private byte[] buffer;
+    private int position;
+
+    /**
+     * Crea un frame.
+     *
+     * @param type tipo di messaggio
+     * @param capacity dimensione iniziale stimata dei campi
+     */
+    public FrameWriter(byte type, int capacity) {
+        buffer = new byte[HEADER_SIZE + 1 + Math.max(capacity, 16)];
+        position = HEADER_SIZE;
+        putByte(type);
+    }
+
+    /**
+     * Aggiunge un byte.
+     *
+     * @param value valore
+     * @return il frame stesso
+     */
+    @NonNull
+    public FrameWriter putByte(byte value) {
+        ensureCapacity(1);
+        buffer[position++] = value;
+        return this;
+    }
+
+    /**
+     * Aggiunge un booleano.
+     *
+     * @param value valore
+     * @return il frame stesso
+     */
+    @NonNull
+    public FrameWriter putBoolean(boolean value) {
+        return putByte((byte) (value ? 1 : 0));
+    }
+
+    /**
+     * Aggiunge un intero (big-endian).
+     *
+     * @param value valore
+     * @return il frame stesso
+     */
+    @NonNull
+    public FrameWriter putInt(int value) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Aggiunge una stringa UTF-8 preceduta dalla sua lunghezza in byte.
+     * Una stringa null viene scritta con lunghezza -1.
+     *
+     * @param value valore
+     * @return il frame stesso
+     */
+    @NonNull
+    public FrameWriter putString(String value) {
+        if (value == null)
+            return putInt(-1);
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+        return this;
+    }
+
+    /**
+     * Completa il frame scrivendo la lunghezza nell'intestazione.
+     *
+     * @return frame pronto per l'invio
+     */
+    @NonNull
+    public ByteBuffer toByteBuffer() {
+        int length = position - HEADER_SIZE;
+        if (length > MAX_FRAME_SIZE)
+            throw new IllegalStateException("Frame too large: " + length);
+
+        buffer[0] = (byte) (length >>> 24);
+        buffer[1] = (byte) (length >>> 16);
+        buffer[2] = (byte) (length >>> 8);
+        buffer[3] = (byte) length;
+        return ByteBuffer.wrap(buffer, 0, position);
+    }
+
+    private void ensureCapacity(int size) {
+        if (position + size > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + size));
+    }
+}
@@ -0,0 +1,91 @@
+package it.unive.reciak.socket;
+
+import androidx.annotation.NonNull;
+
+import java.util.Random;
+
+/**
+ * Politica di riconnessione di un socket.
+ * Il ritardo fra un tentativo e il successivo cresce esponenzialmente fino a un massimo e viene
+ * ridotto di una quota casuale, così i dispositivi non ritentano tutti nello stesso istante.
+ */
+public final class ReconnectPolicy {
+    // Fattore di crescita del ritardo
+    private static final double DEFAULT_MULTIPLIER = 2;
+    // Quota massima del ritardo rimossa in modo casuale
+    private static final double DEFAULT_JITTER = 0.5;
+
+    private final long baseDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+    @NonNull
+    private final Random random;
+
+    // Tentativi effettuati dall'ultima connessione riuscita
+    private int attempts;
+
+    /**
+     * Crea una politica con crescita e quota casuale predefinite.
+     *
+     * @param baseDelay ritardo del primo tentativo in ms
+     * @param maxDelay ritardo massimo in ms
+     * @param maxAttempts numero massimo di tentativi
+     */
+    public ReconnectPolicy(long baseDelay, long maxDelay, int maxAttempts) {
+        this(baseDelay, maxDelay, DEFAULT_MULTIPLIER, DEFAULT_JITTER, maxAttempts, new Random());
+    }
+
+    /**
+     * Crea una politica di riconnessione.
+     *
+     * @param baseDelay ritardo del primo tentativo in ms
+     * @param maxDelay ritardo massimo in ms
+     * @param multiplier fattore di crescita del ritardo
+     * @param jitter quota massima del ritardo rimossa in modo casuale (da 0 a 1)
+     * @param maxAttempts numero massimo di tentativi
+     * @param random generatore della quota casuale
+     */
+    public ReconnectPolicy(long baseDelay, long maxDelay, double multiplier, double jitter, int maxAttempts, @NonNull Random random) {
+        if (baseDelay < 0 || maxDelay < baseDelay || multiplier < 1 || jitter < 0 || jitter > 1 || maxAttempts < 0)
+            throw new IllegalArgumentException("Invalid reconnect policy");
+
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+        this.random = random;
+    }
+
+    /**
+     * Ritorna il ritardo del prossimo tentativo e lo conta.
+     *
+     * @return ritardo in ms, -1 se i tentativi sono esauriti
+     */
+    public long nextDelay() {
+        if (attempts >= maxAttempts)
+            return -1;
+
+        double delay = Math.min(maxDelay, baseDelay * Math.pow(multiplier, attempts));
+        attempts++;
+        return (long) (delay * (1 - jitter * random.nextDouble()));
+    }
+
+    /**
+     * Connessione riuscita: il prossimo tentativo riparte dal primo ritardo.
+     */
+    public void reset() {
+        attempts = 0;
+    }
+
+    /**
+     * Ritorna i tentativi effettuati dall'ultima connessione riuscita.
+     *
+     * @return numero di tentativi
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+}
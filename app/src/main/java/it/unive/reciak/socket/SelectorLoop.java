@@ -0,0 +1,240 @@
+package it.unive.reciak.socket;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loop condiviso da tutti i socket di segnalazione del processo.
+ * Un unico thread gestisce, tramite un Selector, connessioni, letture e scritture di ogni socket:
+ * il numero di thread resta costante indipendentemente dal numero di peer.
+ */
+final class SelectorLoop implements Runnable {
+    private static final String TAG = "SelectorLoop";
+
+    @Nullable
+    private static SelectorLoop instance;
+
+    // Selector dei canali registrati
+    @NonNull
+    private final Selector selector;
+    // Operazioni da eseguire sul thread del loop
+    @NonNull
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    // Operazioni ritardate, ordinate per scadenza (solo thread del loop)
+    @NonNull
+    private final PriorityQueue<Delayed> delayed;
+    @NonNull
+    private final Thread thread;
+
+    /**
+     * Gestore eventi di un canale registrato.
+     */
+    interface ChannelHandler {
+        /**
+         * Il canale è pronto per le operazioni indicate da key.readyOps().
+         * Viene sempre chiamata sul thread del loop.
+         *
+         * @param key chiave del canale
+         */
+        void onReady(@NonNull SelectionKey key);
+    }
+
+    /**
+     * Operazione da eseguire dopo una scadenza.
+     */
+    private static final class Delayed implements Comparable<Delayed> {
+        final long deadline;
+        @NonNull
+        final Runnable task;
+
+        Delayed(long deadline, @NonNull Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(@NonNull Delayed other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    private SelectorLoop() throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        delayed = new PriorityQueue<>();
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ritorna l'event loop del processo, creandolo se necessario.
+     *
+     * @return event loop
+     * @throws IOException impossibile creare il Selector
+     */
+    @NonNull
+    static synchronized SelectorLoop getInstance() throws IOException {
+        if (instance == null)
+            instance = new SelectorLoop();
+
+        return instance;
+    }
+
+    /**
+     * Esegue un'operazione sul thread del loop.
+     *
+     * @param task operazione da eseguire
+     */
+    void execute(@NonNull Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Esegue un'operazione sul thread del loop e ne attende la fine.
+     *
+     * @param task operazione da eseguire
+     * @param timeoutMs attesa massima in millisecondi
+     */
+    void executeAndWait(@NonNull Runnable task, long timeoutMs) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+            return;
+        }
+
+        CountDownLatch done = new CountDownLatch(1);
+        execute(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        });
+        try {
+            if (!done.await(timeoutMs, TimeUnit.MILLISECONDS))
+                Log.w(TAG, "Task still running after " + timeoutMs + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Esegue un'operazione sul thread del loop dopo un ritardo. Deve essere chiamata sul thread del loop.
+     *
+     * @param task operazione da eseguire
+     * @param delayMs ritardo in millisecondi
+     */
+    void schedule(@NonNull Runnable task, long delayMs) {
+        delayed.add(new Delayed(System.nanoTime() + delayMs * 1000000L, task));
+    }
+
+    /**
+     * Registra un canale nel Selector. Deve essere chiamata sul thread del loop.
+     *
+     * @param channel canale non bloccante
+     * @param ops operazioni di interesse
+     * @param handler gestore eventi del canale
+     * @return chiave del canale
+     * @throws ClosedChannelException canale già chiuso
+     */
+    @NonNull
+    SelectionKey register(@NonNull SelectableChannel channel, int ops, @NonNull ChannelHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Ritorna la chiave di un canale registrato.
+     *
+     * @param channel canale
+     * @return chiave del canale o null se il canale non è registrato
+     */
+    @Nullable
+    SelectionKey keyFor(@NonNull SelectableChannel channel) {
+        return channel.keyFor(selector);
+    }
+
+    /**
+     * Rimuove dal Selector le chiavi dei canali chiusi, liberando subito le porte.
+     * Deve essere chiamata sul thread del loop.
+     */
+    void purge() {
+        try {
+            selector.selectNow();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to purge cancelled keys: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "Selector thread started...");
+
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            // Operazioni richieste dagli altri thread
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task failed", e);
+                }
+            }
+
+            // Operazioni ritardate scadute
+            long timeoutMs = 0;
+            while (!delayed.isEmpty()) {
+                long remaining = delayed.peek().deadline - System.nanoTime();
+                if (remaining > 0) {
+                    // select(0) attende senza limite: almeno un millisecondo
+                    timeoutMs = Math.max(1, remaining / 1000000L);
+                    break;
+                }
+                try {
+                    delayed.poll().task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Delayed task failed", e);
+                }
+            }
+
+            try {
+                selector.select(timeoutMs);
+            } catch (IOException e) {
+                Log.e(TAG, "Select failed: " + e.getMessage());
+                continue;
+            }
+
+            // Canali pronti
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if (key.isValid())
+                        ((ChannelHandler) key.attachment()).onReady(key);
+                } catch (CancelledKeyException e) {
+                    // Canale chiuso da un altro thread
+                    Log.v(TAG, "Key cancelled");
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Channel handler failed", e);
+                }
+            }
+        }
+    }
+}
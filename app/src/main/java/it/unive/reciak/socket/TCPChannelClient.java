@@ -2,41 +2,73 @@ package it.unive.reciak.socket;
 
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.ThreadUtils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import it.unive.reciak.socket.message.MessageDispatcher;
+import it.unive.reciak.socket.message.SignalingMessage;
 import it.unive.reciak.webrtc.PeerInfo;
 
 /**
  * Socket Server e Client con callback.
- * 
+ * Tutti i socket sono non bloccanti e vengono gestiti da un unico thread (SelectorLoop).
+ *
  * @see <a href="https://webrtc.googlesource.com/src/+/master/examples/androidapp/src/org/appspot/apprtc/TCPChannelClient.java">Sorgente originale</a>
  * @author <a href="https://webrtc.googlesource.com/src/+/master/AUTHORS">AUTHORS</a>
  */
 public class TCPChannelClient {
     private static final String TAG = "TCPChannelClient";
+    // Dimensione buffer di lettura
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Versione dei frame binari supportata
+    private static final int FRAMING_VERSION = 1;
+    // Numero massimo di messaggi scritti con un'unica operazione
+    private static final int MAX_WRITE_BATCH = 16;
     // Executor gestione callback
     protected final ExecutorService executor;
     // Callback eventi
     private final TCPChannelEvents eventListener;
+    // Gestori dei messaggi tipizzati
+    @Nullable
+    private final MessageDispatcher dispatcher;
+    // Event loop dei socket
+    private SelectorLoop loop;
     // Socket client/server
     private TCPSocket socket;
+    // L'altro dispositivo accetta i frame binari
+    private volatile boolean framed;
+
+    // Messaggi ricevuti in attesa dell'executor (righe JSON o frame)
+    @NonNull
+    private final ConcurrentLinkedQueue<Object> inbox = new ConcurrentLinkedQueue<>();
+    // Svuotamento di inbox già richiesto all'executor
+    @NonNull
+    private final AtomicBoolean inboxScheduled = new AtomicBoolean();
+    @NonNull
+    private final Runnable drainInbox = this::drainInbox;
+    // Lettore dei frame (solo executor)
+    @NonNull
+    private final FrameReader frameReader = new FrameReader();
 
     /**
      * Gestore eventi socket.
@@ -63,12 +95,48 @@ public class TCPChannelClient {
     }
 
     public TCPChannelClient(ExecutorService executor, TCPChannelEvents eventListener, PeerInfo peerInfo) {
+        this(executor, eventListener, null, peerInfo);
+    }
+
+    /**
+     * Crea un socket che smista i messaggi ricevuti ai gestori registrati in dispatcher.
+     * I messaggi senza gestore vengono passati a TCPChannelEvents.onTCPMessage().
+     *
+     * @param executor executor delle callback
+     * @param eventListener callback eventi
+     * @param dispatcher gestori dei messaggi tipizzati
+     * @param peerInfo informazioni del peer
+     */
+    public TCPChannelClient(ExecutorService executor, TCPChannelEvents eventListener, @Nullable MessageDispatcher dispatcher, PeerInfo peerInfo) {
+        this(executor, eventListener, dispatcher, peerInfo, false);
+    }
+
+    /**
+     * Crea un socket che, se routed, passa dal ServerSocket condiviso del dispositivo (CallServer):
+     * il lato server attende la connessione del peer peerInfo.getIp(), il lato client si presenta
+     * con il proprio indirizzo appena connesso.
+     *
+     * @param executor executor delle callback
+     * @param eventListener callback eventi
+     * @param dispatcher gestori dei messaggi tipizzati
+     * @param peerInfo informazioni del peer
+     * @param routed true per usare il ServerSocket condiviso
+     */
+    protected TCPChannelClient(ExecutorService executor, TCPChannelEvents eventListener, @Nullable MessageDispatcher dispatcher, PeerInfo peerInfo, boolean routed) {
         this.executor = executor;
         ThreadUtils.ThreadChecker executorThreadCheck = new ThreadUtils.ThreadChecker();
         executorThreadCheck.detachThread();
         this.eventListener = eventListener;
+        this.dispatcher = dispatcher;
         InetAddress address;
 
+        try {
+            loop = SelectorLoop.getInstance();
+        } catch (IOException e) {
+            onError("Failed to open selector: " + e.getMessage());
+            return;
+        }
+
         try {
             address = InetAddress.getByName(peerInfo.getIp());
         } catch (UnknownHostException e) {
@@ -76,12 +144,15 @@ public class TCPChannelClient {
             return;
         }
 
-        // Se devo iniziare la comunicazione creo un ServerSocket
+        // Se devo iniziare la comunicazione creo un ServerSocket (o attendo su quello condiviso)
         if (peerInfo.isInitiator()) {
-            socket = new TCPSocketServer(peerInfo.getPort());
+            if (routed)
+                socket = new TCPSocketRouted(address.getHostAddress());
+            else
+                socket = new TCPSocketServer(peerInfo.getPort());
         } else {
             // Altrimenti creo un Socket
-            socket = new TCPSocketClient(address, peerInfo.getPort());
+            socket = new TCPSocketClient(address, peerInfo.getPort(), routed);
         }
         // Avvia il socket
         socket.start();
@@ -91,7 +162,53 @@ public class TCPChannelClient {
      * Chiude il socket.
      */
     public void disconnect() {
-        socket.disconnect();
+        if (socket != null)
+            socket.disconnect();
+    }
+
+    /**
+     * Ritorna il numero di messaggi in attesa di essere scritti sul socket.
+     *
+     * @return messaggi in coda
+     */
+    public int getQueueDepth() {
+        return socket != null ? socket.queueDepth.get() : 0;
+    }
+
+    /**
+     * Ritorna il numero massimo di messaggi trovati in coda a una scrittura.
+     *
+     * @return messaggi in coda
+     */
+    public int getMaxQueueDepth() {
+        return socket != null ? socket.maxQueueDepth : 0;
+    }
+
+    /**
+     * Ritorna il tempo medio fra l'invio di un messaggio e la sua scrittura sul socket.
+     *
+     * @return tempo in microsecondi
+     */
+    public long getAverageWriteLatency() {
+        return socket != null ? socket.averageWriteLatency() : 0;
+    }
+
+    /**
+     * Ritorna il tempo massimo fra l'invio di un messaggio e la sua scrittura sul socket.
+     *
+     * @return tempo in microsecondi
+     */
+    public long getMaxWriteLatency() {
+        return socket != null ? socket.maxWriteLatency / 1000 : 0;
+    }
+
+    /**
+     * Verifica se il socket è connesso all'altro dispositivo.
+     *
+     * @return true se il socket è connesso
+     */
+    public boolean isConnected() {
+        return socket != null && socket.isConnected();
     }
 
     /**
@@ -101,6 +218,11 @@ public class TCPChannelClient {
      * @param json corpo del messaggio
      */
     public void send(String action, JSONObject json) {
+        if (socket == null) {
+            onError("Sending data on closed socket.");
+            return;
+        }
+
         // Crea il pacchetto JSON
         JSONObject packet = new JSONObject();
 
@@ -114,6 +236,146 @@ public class TCPChannelClient {
         socket.send(packet);
     }
 
+    /**
+     * Invia un messaggio tipizzato all'altro dispositivo.
+     * Se l'altro dispositivo li supporta viene inviato un frame binario, altrimenti JSON.
+     *
+     * @param message messaggio da inviare
+     */
+    public void send(@NonNull SignalingMessage message) {
+        if (socket == null) {
+            onError("Sending data on closed socket.");
+            return;
+        }
+
+        if (framed) {
+            FrameWriter frame = new FrameWriter(message.getType(), message.sizeHint());
+            message.write(frame);
+            Log.v(TAG, "Send frame: " + message.getAction());
+            socket.send(frame.toByteBuffer());
+            return;
+        }
+
+        JSONObject value = new JSONObject();
+        try {
+            message.writeJson(value);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        send(message.getAction(), value);
+    }
+
+    /**
+     * Crea il messaggio di negoziazione del formato.
+     * Viene sempre inviato in JSON: un dispositivo che non conosce i frame lo ignora.
+     *
+     * @return messaggio da inviare appena connesso
+     */
+    @NonNull
+    private static ByteBuffer helloMessage() {
+        JSONObject packet = new JSONObject();
+
+        try {
+            JSONObject value = new JSONObject();
+            value.put("framing", FRAMING_VERSION);
+            packet.put("action", "hello");
+            packet.put("value", value);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return ByteBuffer.wrap((packet.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Riceve il messaggio di negoziazione dell'altro dispositivo.
+     * Da questo momento i messaggi vengono inviati come frame binari.
+     *
+     * @param value corpo del messaggio
+     */
+    private void onHello(@NonNull JSONObject value) {
+        framed = value.optInt("framing", 0) >= FRAMING_VERSION;
+        Log.d(TAG, "Framing " + (framed ? "enabled" : "disabled"));
+    }
+
+    /**
+     * Accoda un messaggio ricevuto e, se necessario, chiede all'executor di gestirlo.
+     * I messaggi arrivati in sequenza vengono gestiti con un unico task.
+     *
+     * @param message riga JSON (String) o frame senza intestazione (byte[])
+     */
+    protected void receive(@NonNull Object message) {
+        inbox.add(message);
+        if (inboxScheduled.compareAndSet(false, true))
+            executor.execute(drainInbox);
+    }
+
+    /**
+     * Gestisce i messaggi ricevuti. Viene eseguita sull'executor.
+     */
+    private void drainInbox() {
+        inboxScheduled.set(false);
+
+        Object message;
+        while ((message = inbox.poll()) != null) {
+            try {
+                if (message instanceof byte[])
+                    onFrame((byte[]) message);
+                else
+                    onLine((String) message);
+            } catch (JSONException | IllegalStateException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Gestisce un frame binario ricevuto.
+     *
+     * @param frame frame senza intestazione
+     * @throws JSONException impossibile creare il pacchetto JSON per onTCPMessage()
+     */
+    private void onFrame(@NonNull byte[] frame) throws JSONException {
+        frameReader.reset(frame, 0, frame.length);
+        byte type = frameReader.peekType();
+        Log.v(TAG, "Receive frame: " + type);
+        if (dispatcher != null && dispatcher.dispatch(frameReader))
+            return;
+
+        // Nessun gestore: converte il messaggio in JSON
+        @Nullable
+        SignalingMessage message = SignalingMessage.create(type);
+        if (message == null) {
+            Log.w(TAG, "Unknown frame type " + type);
+            return;
+        }
+        frameReader.getByte();
+        message.read(frameReader);
+
+        JSONObject value = new JSONObject();
+        message.writeJson(value);
+        JSONObject packet = new JSONObject();
+        packet.put("action", message.getAction());
+        packet.put("value", value);
+        eventListener.onTCPMessage(packet);
+    }
+
+    /**
+     * Gestisce una riga JSON ricevuta.
+     *
+     * @param message messaggio in JSON
+     * @throws JSONException messaggio non valido
+     */
+    private void onLine(@NonNull String message) throws JSONException {
+        Log.v(TAG, "Receive: " + message);
+
+        JSONObject packet = new JSONObject(message);
+        String action = packet.optString("action");
+        if ("hello".equals(action))
+            onHello(packet.getJSONObject("value"));
+        else if (dispatcher == null || !dispatcher.dispatch(action, packet.getJSONObject("value")))
+            eventListener.onTCPMessage(packet);
+    }
+
     /**
      * Errore di connessione al socket.
      *
@@ -121,118 +383,461 @@ public class TCPChannelClient {
      */
     private void onError(final String message) {
         Log.e(TAG, "TCP Error: " + message);
-        executor.execute(eventListener::onTCPError);
+        if (!executor.isShutdown())
+            executor.execute(eventListener::onTCPError);
+    }
+
+    /**
+     * Messaggio in coda di invio.
+     */
+    private static final class Outgoing {
+        @NonNull
+        final ByteBuffer buffer;
+        // Istante di accodamento (System.nanoTime())
+        final long enqueuedAt;
+
+        Outgoing(@NonNull ByteBuffer buffer) {
+            this.buffer = buffer;
+            enqueuedAt = System.nanoTime();
+        }
     }
 
     /**
      * Classe padre di TCPSocketClient e TCPSocketServer.
+     * I metodi onReady(), open() e closeChannels() vengono eseguiti sul thread del loop.
+     * I messaggi inviati vengono accodati e scritti dal thread del loop: chi invia non attende mai
+     * il socket e i messaggi accodati insieme vengono scritti con un'unica operazione.
      */
-    private abstract class TCPSocket extends Thread {
-        // Lock gestione rawSocket e out
+    private abstract class TCPSocket implements SelectorLoop.ChannelHandler {
+        // Lock gestione rawSocket e stato del socket
         protected final Object rawSocketLock;
+        // Canale verso l'altro dispositivo (in connessione o connesso)
         @Nullable
-        private PrintWriter out;
-        @Nullable
-        private Socket rawSocket;
+        protected SocketChannel rawSocket;
+        // Connessione stabilita
+        private boolean connected;
+        // Socket chiuso
+        protected boolean closed;
+        // Chiude i canali dopo aver inviato i messaggi in coda (solo thread del loop)
+        private boolean closeWhenFlushed;
+
+        // Buffer di lettura (in modalità scrittura tra una lettura e l'altra)
+        @NonNull
+        private ByteBuffer readBuffer;
+        // Byte del messaggio JSON corrente già controllati alla ricerca di '\n'
+        private int lineScanned;
+        // Messaggi da inviare
+        @NonNull
+        private final ConcurrentLinkedQueue<Outgoing> outQueue;
+        // Scrittura già richiesta al loop
+        @NonNull
+        private final AtomicBoolean flushScheduled;
+        @NonNull
+        private final Runnable flushTask;
+        // Messaggi in scrittura (solo thread del loop)
+        @NonNull
+        private final Outgoing[] batch;
+        @NonNull
+        private final ByteBuffer[] batchBuffers;
+        private int batchStart;
+        private int batchEnd;
+
+        // Messaggi accodati e non ancora scritti
+        @NonNull
+        final AtomicInteger queueDepth;
+        // Statistiche di scrittura (scritte solo dal thread del loop)
+        volatile int maxQueueDepth;
+        private volatile long writtenMessages;
+        private volatile long totalWriteLatency;
+        volatile long maxWriteLatency;
 
         /**
-         * Creazione del socket e connessione all'altro dispositivo.
+         * Crea i canali e li registra nel loop.
          *
-         * @return socket per comunicare con l'altro dispositivo
+         * @throws IOException impossibile creare i canali
          */
-        @Nullable
-        public abstract Socket connect();
+        protected abstract void open() throws IOException;
 
         public TCPSocket() {
             rawSocketLock = new Object();
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            outQueue = new ConcurrentLinkedQueue<>();
+            flushScheduled = new AtomicBoolean();
+            flushTask = this::flushOutput;
+            batch = new Outgoing[MAX_WRITE_BATCH];
+            batchBuffers = new ByteBuffer[MAX_WRITE_BATCH];
+            queueDepth = new AtomicInteger();
         }
 
-        @Override
-        public void run() {
-            Log.d(TAG, "Listening thread started...");
+        /**
+         * Avvia il socket nel loop.
+         */
+        public void start() {
+            loop.execute(() -> {
+                synchronized (rawSocketLock) {
+                    if (closed)
+                        return;
+                }
+                try {
+                    open();
+                } catch (IOException e) {
+                    onError("Failed to create socket: " + e.getMessage());
+                }
+            });
+        }
 
-            // Crea il socket
-            Socket tempSocket = connect();
-            BufferedReader in;
+        /**
+         * Riga da inviare prima di qualsiasi altro messaggio.
+         *
+         * @param channel canale connesso all'altro dispositivo
+         * @return riga di presentazione o null se non prevista
+         */
+        @Nullable
+        protected ByteBuffer handshakeMessage(@NonNull SocketChannel channel) {
+            return null;
+        }
+
+        /**
+         * Connessione stabilita: il canale passa alla ricezione dei messaggi.
+         *
+         * @param channel canale connesso all'altro dispositivo
+         */
+        protected void onConnected(@NonNull SocketChannel channel) {
             Log.d(TAG, "TCP connection established.");
             synchronized (rawSocketLock) {
+                // Socket chiuso durante la connessione
+                if (closed) {
+                    closeQuietly(channel);
+                    return;
+                }
                 // Salva il socket
-                if (rawSocket != null) {
+                if (rawSocket != null && rawSocket != channel) {
                     Log.e(TAG, "Socket already existed and will be replaced.");
                 }
-                rawSocket = tempSocket;
-                // Connessione fallita
-                if (rawSocket == null) {
-                    return;
-                }
-                // Buffer scrittura e lettura
+                rawSocket = channel;
                 try {
-                    out = new PrintWriter(new OutputStreamWriter(rawSocket.getOutputStream(), StandardCharsets.UTF_8), true);
-                    in = new BufferedReader(new InputStreamReader(rawSocket.getInputStream(), StandardCharsets.UTF_8));
+                    loop.register(channel, SelectionKey.OP_READ, this);
                 } catch (IOException e) {
                     onError("Failed to open IO on rawSocket: " + e.getMessage());
                     return;
                 }
+                connected = true;
+            }
+            // I messaggi di segnalazione sono piccoli: vanno inviati subito
+            try {
+                channel.socket().setTcpNoDelay(true);
+            } catch (SocketException e) {
+                Log.w(TAG, "Failed to set TCP_NODELAY: " + e.getMessage());
             }
+
+            // Si presenta e propone i frame binari all'altro dispositivo
+            @Nullable
+            ByteBuffer handshake = handshakeMessage(channel);
+            if (handshake != null)
+                enqueue(handshake);
+            enqueue(helloMessage());
+            flushOutput();
+
             Log.v(TAG, "Execute onTCPConnected");
             executor.execute(() -> {
                 Log.v(TAG, "Run onTCPConnected");
                 eventListener.onTCPConnected();
             });
+        }
 
-            // Ricezione messaggi
-            while (true) {
-                final String message;
-                // Salva il messaggio
-                try {
-                    message = in.readLine();
-                } catch (IOException e) {
-                    synchronized (rawSocketLock) {
-                        // Socket chiuso
-                        if (rawSocket == null) {
-                            break;
-                        }
+        @Override
+        public void onReady(@NonNull SelectionKey key) {
+            if (key.isReadable())
+                read(key);
+            if (key.isValid() && key.isWritable())
+                flushOutput();
+        }
+
+        /**
+         * Legge i dati disponibili e inoltra all'executor i messaggi completi.
+         *
+         * @param key chiave del canale
+         */
+        private void read(@NonNull SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            int read;
+
+            try {
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                synchronized (rawSocketLock) {
+                    // Socket chiuso
+                    if (closed) {
+                        return;
                     }
-                    onError("Failed to read from rawSocket: " + e.getMessage());
-                    break;
                 }
-                // Non ha ricevuto messaggi. Probabilmente il socket è chiuso
-                if (message == null) {
+                onError("Failed to read from rawSocket: " + e.getMessage());
+                disconnect();
+                return;
+            }
+            // Non ha ricevuto messaggi. Il socket è chiuso
+            if (read < 0) {
+                Log.d(TAG, "Receiving channel closed...");
+                disconnect();
+                return;
+            }
+
+            processInput();
+        }
+
+        /**
+         * Separa i messaggi contenuti nel buffer di lettura.
+         */
+        protected void processInput() {
+            readBuffer.flip();
+            try {
+                //noinspection StatementWithEmptyBody
+                while (parseMessage()) ;
+            } catch (IllegalStateException e) {
+                onError("Invalid message: " + e.getMessage());
+                disconnect();
+                return;
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * Aggiunge al buffer di lettura byte già ricevuti da un altro gestore del canale.
+         *
+         * @param data byte ricevuti (in modalità lettura)
+         */
+        protected void prepend(@NonNull ByteBuffer data) {
+            if (data.remaining() > readBuffer.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.position() + data.remaining());
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+            readBuffer.put(data);
+        }
+
+        /**
+         * Estrae un messaggio completo dal buffer di lettura.
+         * Ogni messaggio può essere un frame binario (primo byte 0, parte della lunghezza) o
+         * una riga JSON (primo byte '{').
+         *
+         * @return true se ha estratto un messaggio
+         */
+        private boolean parseMessage() {
+            // Salta i separatori tra un messaggio e l'altro
+            while (readBuffer.hasRemaining() && lineScanned == 0) {
+                byte first = readBuffer.get(readBuffer.position());
+                if (first != '\n' && first != '\r')
                     break;
+                readBuffer.get();
+            }
+            if (!readBuffer.hasRemaining())
+                return false;
+
+            int start = readBuffer.position();
+            if (readBuffer.get(start) == '{') {
+                // Riga JSON: cerca il terminatore solo nei byte nuovi
+                for (int i = start + lineScanned; i < readBuffer.limit(); i++) {
+                    if (readBuffer.get(i) == '\n') {
+                        String message = new String(readBuffer.array(), readBuffer.arrayOffset() + start, i - start, StandardCharsets.UTF_8);
+                        readBuffer.position(i + 1);
+                        lineScanned = 0;
+                        receive(message);
+                        return true;
+                    }
                 }
-                // Messaggio ricevuto
-                executor.execute(() -> {
-                    Log.v(TAG, "Receive: " + message);
-
-                    try {
-                        JSONObject packet = new JSONObject(message);
-                        eventListener.onTCPMessage(packet);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
+                lineScanned = readBuffer.limit() - start;
+                ensureReadCapacity(lineScanned + 1);
+                return false;
+            }
+
+            // Frame binario: legge esattamente la lunghezza indicata
+            if (readBuffer.remaining() < FrameWriter.HEADER_SIZE) {
+                ensureReadCapacity(FrameWriter.HEADER_SIZE);
+                return false;
+            }
+            int length = readBuffer.getInt(start);
+            if (length <= 0 || length > FrameWriter.MAX_FRAME_SIZE)
+                throw new IllegalStateException("Bad frame length " + length);
+            if (readBuffer.remaining() < FrameWriter.HEADER_SIZE + length) {
+                ensureReadCapacity(FrameWriter.HEADER_SIZE + length);
+                return false;
+            }
+            byte[] frame = new byte[length];
+            readBuffer.position(start + FrameWriter.HEADER_SIZE);
+            readBuffer.get(frame);
+            receive(frame);
+            return true;
+        }
+
+        /**
+         * Ingrandisce il buffer di lettura se il messaggio in ricezione non può esservi contenuto.
+         * Il buffer è in modalità lettura e contiene solo il messaggio parziale.
+         *
+         * @param size byte necessari per il messaggio
+         */
+        private void ensureReadCapacity(int size) {
+            if (size <= readBuffer.capacity())
+                return;
+            if (size > FrameWriter.HEADER_SIZE + FrameWriter.MAX_FRAME_SIZE)
+                throw new IllegalStateException("Message too large");
+
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(size, readBuffer.capacity() * 2));
+            larger.put(readBuffer);
+            larger.flip();
+            readBuffer = larger;
+        }
+
+        /**
+         * Scrive i messaggi in coda. Se il canale non accetta altri dati attende OP_WRITE.
+         * Se il socket è stato chiuso, chiude i canali dopo aver inviato tutti i messaggi.
+         */
+        private void flushOutput() {
+            flushScheduled.set(false);
+            SocketChannel channel;
+            synchronized (rawSocketLock) {
+                channel = rawSocket;
+            }
+
+            if (channel != null && channel.isOpen()) {
+                SelectionKey key = loop.keyFor(channel);
+                int depth = queueDepth.get();
+                if (depth > maxQueueDepth)
+                    maxQueueDepth = depth;
+
+                try {
+                    while (true) {
+                        // Raccoglie i messaggi in coda in un unico lotto
+                        if (batchStart == batchEnd) {
+                            batchStart = 0;
+                            batchEnd = 0;
+                            Outgoing message;
+                            while (batchEnd < MAX_WRITE_BATCH && (message = outQueue.poll()) != null) {
+                                batch[batchEnd] = message;
+                                batchBuffers[batchEnd] = message.buffer;
+                                batchEnd++;
+                            }
+                            if (batchEnd == 0)
+                                break;
+                        }
+
+                        channel.write(batchBuffers, batchStart, batchEnd - batchStart);
+                        long now = System.nanoTime();
+                        while (batchStart < batchEnd && !batchBuffers[batchStart].hasRemaining()) {
+                            onWritten(batch[batchStart], now);
+                            batch[batchStart] = null;
+                            batchBuffers[batchStart] = null;
+                            batchStart++;
+                        }
+
+                        if (batchStart < batchEnd) {
+                            // Buffer del socket pieno
+                            if (key != null && key.isValid())
+                                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
                     }
-                });
+                    if (key != null && key.isValid())
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } catch (IOException e) {
+                    clearOutput();
+                    onError("Failed to write on rawSocket: " + e.getMessage());
+                    disconnect();
+                }
+            }
+
+            // Messaggi inviati: se richiesto chiude il socket
+            if (closeWhenFlushed) {
+                closeChannels();
+                loop.purge();
+            }
+        }
+
+        /**
+         * Messaggio scritto: aggiorna le statistiche.
+         *
+         * @param message messaggio scritto
+         * @param now istante della scrittura (System.nanoTime())
+         */
+        private void onWritten(@NonNull Outgoing message, long now) {
+            queueDepth.decrementAndGet();
+            long latency = now - message.enqueuedAt;
+            totalWriteLatency += latency;
+            writtenMessages++;
+            if (latency > maxWriteLatency)
+                maxWriteLatency = latency;
+        }
+
+        /**
+         * Ritorna il tempo medio fra l'accodamento e la scrittura di un messaggio.
+         *
+         * @return tempo in microsecondi
+         */
+        long averageWriteLatency() {
+            long written = writtenMessages;
+            return written > 0 ? totalWriteLatency / written / 1000 : 0;
+        }
+
+        /**
+         * Scarta i messaggi non ancora scritti.
+         */
+        private void clearOutput() {
+            outQueue.clear();
+            for (int i = 0; i < MAX_WRITE_BATCH; i++) {
+                batch[i] = null;
+                batchBuffers[i] = null;
+            }
+            batchStart = 0;
+            batchEnd = 0;
+            queueDepth.set(0);
+        }
+
+        /**
+         * Verifica se il socket è connesso.
+         *
+         * @return true se il socket è connesso
+         */
+        public boolean isConnected() {
+            synchronized (rawSocketLock) {
+                return connected;
             }
-            Log.d(TAG, "Receiving thread exiting...");
-            // Chiude il socket
-            disconnect();
         }
 
         /**
          * Disconnessione del socket.
          */
         public void disconnect() {
-            try {
-                synchronized (rawSocketLock) {
-                    if (rawSocket != null) {
-                        rawSocket.close();
-                        rawSocket = null;
-                        out = null;
+            synchronized (rawSocketLock) {
+                if (closed)
+                    return;
+                closed = true;
+                if (connected) {
+                    connected = false;
+                    // Durante dispose() l'executor può essere già terminato: il socket va chiuso comunque
+                    if (!executor.isShutdown())
                         executor.execute(eventListener::onTCPClose);
-                    }
                 }
-            } catch (IOException e) {
-                onError("Failed to close rawSocket: " + e.getMessage());
             }
+            // Invia i messaggi rimasti e chiude i canali
+            loop.execute(() -> {
+                closeWhenFlushed = true;
+                flushOutput();
+            });
+        }
+
+        /**
+         * Chiude i canali del socket.
+         */
+        protected void closeChannels() {
+            synchronized (rawSocketLock) {
+                if (rawSocket != null) {
+                    closeQuietly(rawSocket);
+                    rawSocket = null;
+                }
+            }
+            if (writtenMessages > 0)
+                Log.d(TAG, "Write stats: " + writtenMessages + " messages, average latency " + averageWriteLatency() + " us, max latency " + maxWriteLatency / 1000 + " us, max queue " + maxQueueDepth);
+            clearOutput();
         }
 
         /**
@@ -244,14 +849,34 @@ public class TCPChannelClient {
             final String message = json.toString();
 
             Log.v(TAG, "Send: " + message);
+            send(ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Invia un messaggio già codificato all'altro dispositivo.
+         *
+         * @param message riga JSON o frame binario
+         */
+        public void send(@NonNull ByteBuffer message) {
             synchronized (rawSocketLock) {
-                if (out == null) {
+                if (!connected) {
                     onError("Sending data on closed socket.");
                     return;
                 }
-                out.write(message + "\n");
-                out.flush();
+                enqueue(message);
             }
+            if (flushScheduled.compareAndSet(false, true))
+                loop.execute(flushTask);
+        }
+
+        /**
+         * Accoda un messaggio da inviare.
+         *
+         * @param message riga JSON o frame binario
+         */
+        private void enqueue(@NonNull ByteBuffer message) {
+            outQueue.add(new Outgoing(message));
+            queueDepth.incrementAndGet();
         }
     }
 
@@ -260,24 +885,25 @@ public class TCPChannelClient {
      */
     private class TCPSocketServer extends TCPSocket {
         @Nullable
-        private ServerSocket serverSocket;
+        private ServerSocketChannel serverSocket;
         final private int port;
 
         public TCPSocketServer(int port) {
             this.port = port;
         }
 
-        @Nullable
         @Override
-        public Socket connect() {
+        protected void open() throws IOException {
             Log.d(TAG, "Listening on " + port);
             // Crea un ServerSocket
-            final ServerSocket tempSocket;
+            final ServerSocketChannel tempSocket = ServerSocketChannel.open();
             try {
-                tempSocket = new ServerSocket(port, 0);
+                tempSocket.configureBlocking(false);
+                tempSocket.socket().setReuseAddress(true);
+                tempSocket.socket().bind(new InetSocketAddress(port));
             } catch (IOException e) {
-                onError("Failed to create server socket: " + e.getMessage());
-                return null;
+                closeQuietly(tempSocket);
+                throw e;
             }
             synchronized (rawSocketLock) {
                 if (serverSocket != null) {
@@ -287,30 +913,92 @@ public class TCPChannelClient {
             }
 
             // Attende un dispositivo
+            loop.register(tempSocket, SelectionKey.OP_ACCEPT, key -> accept(tempSocket));
+        }
+
+        /**
+         * Accetta il dispositivo e chiude il ServerSocket.
+         *
+         * @param server ServerSocket in ascolto
+         */
+        private void accept(@NonNull ServerSocketChannel server) {
+            SocketChannel channel;
             try {
-                return tempSocket.accept();
-            } catch (SocketException e) {
-                return null;
+                channel = server.accept();
+                if (channel == null)
+                    return;
+                channel.configureBlocking(false);
             } catch (IOException e) {
                 onError("Failed to receive connection: " + e.getMessage());
-                return null;
+                return;
             }
+            // Un solo dispositivo per socket
+            closeServer();
+            onConnected(channel);
         }
 
-        @Override
-        public void disconnect() {
-            try {
-                // Chiude il ServerSocket
-                synchronized (rawSocketLock) {
-                    if (serverSocket != null) {
-                        serverSocket.close();
-                        serverSocket = null;
-                    }
+        /**
+         * Chiude il ServerSocket.
+         */
+        private void closeServer() {
+            synchronized (rawSocketLock) {
+                if (serverSocket != null) {
+                    closeQuietly(serverSocket);
+                    serverSocket = null;
                 }
-            } catch (IOException e) {
-                onError("Failed to close server socket: " + e.getMessage());
             }
-            super.disconnect();
+        }
+
+        @Override
+        protected void closeChannels() {
+            // Chiude il ServerSocket
+            closeServer();
+            super.closeChannels();
+        }
+    }
+
+    /**
+     * Attende la connessione del peer sul ServerSocket condiviso del dispositivo (CallServer).
+     */
+    private class TCPSocketRouted extends TCPSocket implements CallServer.Acceptor {
+        // Identificativo del peer atteso
+        final private String peerId;
+        @Nullable
+        private CallServer server;
+
+        public TCPSocketRouted(String peerId) {
+            this.peerId = peerId;
+        }
+
+        @Override
+        protected void open() throws IOException {
+            server = CallServer.getInstance();
+            if (server == null)
+                throw new IOException("Call server not running");
+
+            Log.d(TAG, "Waiting for " + peerId);
+            server.expect(peerId, this);
+        }
+
+        @Override
+        public void onAccepted(@NonNull SocketChannel channel, @NonNull ByteBuffer leftover) {
+            server = null;
+            // Messaggi arrivati insieme alla presentazione
+            if (leftover.hasRemaining())
+                prepend(leftover);
+            onConnected(channel);
+            if (isConnected())
+                processInput();
+        }
+
+        @Override
+        protected void closeChannels() {
+            // Non attende più il peer
+            if (server != null) {
+                server.cancel(peerId, this);
+                server = null;
+            }
+            super.closeChannels();
         }
     }
 
@@ -321,23 +1009,85 @@ public class TCPChannelClient {
     private class TCPSocketClient extends TCPSocket {
         final private InetAddress address;
         final private int port;
+        // Si presenta al ServerSocket condiviso dell'altro dispositivo
+        final private boolean routed;
 
-        public TCPSocketClient(InetAddress address, int port) {
+        public TCPSocketClient(InetAddress address, int port, boolean routed) {
             this.address = address;
             this.port = port;
+            this.routed = routed;
         }
 
         @Nullable
         @Override
-        public Socket connect() {
+        protected ByteBuffer handshakeMessage(@NonNull SocketChannel channel) {
+            if (!routed)
+                return null;
+
+            // L'altro dispositivo conosce questo peer con l'indirizzo locale della connessione
+            return CallServer.handshakeMessage(channel.socket().getLocalAddress().getHostAddress());
+        }
+
+        @Override
+        protected void open() throws IOException {
             Log.d(TAG, "Connecting to [" + address.getHostAddress() + "]:" + port);
             // Connessione al ServerSocket dell'altro dispositivo
+            SocketChannel channel = SocketChannel.open();
+            synchronized (rawSocketLock) {
+                rawSocket = channel;
+            }
             try {
-                return new Socket(address, port);
+                channel.configureBlocking(false);
+                if (channel.connect(new InetSocketAddress(address, port)))
+                    onConnected(channel);
+                else
+                    loop.register(channel, SelectionKey.OP_CONNECT, this);
             } catch (IOException e) {
-                onError("Failed to connect: " + e.getMessage());
-                return null;
+                onConnectFailed(e);
             }
         }
+
+        @Override
+        public void onReady(@NonNull SelectionKey key) {
+            if (key.isConnectable()) {
+                SocketChannel channel = (SocketChannel) key.channel();
+                try {
+                    if (channel.finishConnect())
+                        onConnected(channel);
+                } catch (IOException e) {
+                    onConnectFailed(e);
+                }
+                return;
+            }
+            super.onReady(key);
+        }
+
+        /**
+         * Connessione fallita.
+         *
+         * @param e errore di connessione
+         */
+        private void onConnectFailed(@NonNull IOException e) {
+            synchronized (rawSocketLock) {
+                if (rawSocket != null) {
+                    closeQuietly(rawSocket);
+                    rawSocket = null;
+                }
+            }
+            onError("Failed to connect: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Chiude un canale ignorando gli errori.
+     *
+     * @param channel canale da chiudere
+     */
+    static void closeQuietly(@NonNull Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close channel: " + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+/**
+ * Informazioni di un altro peer connesso all'amministratore.
+ */
+public final class AddUserMessage extends SignalingMessage {
+    public static final String ACTION = "addUser";
+    public static final byte TYPE = 3;
+
+    public String partnerIp;
+    public int partnerPort;
+    // true se il dispositivo deve avviare la negoziazione
+    public boolean isInitiator;
+
+    public AddUserMessage() {
+    }
+
+    public AddUserMessage(String partnerIp, int partnerPort, boolean isInitiator) {
+        this.partnerIp = partnerIp;
+        this.partnerPort = partnerPort;
+        this.isInitiator = isInitiator;
+    }
+
+    @NonNull
+    @Override
+    public String getAction() {
+        return ACTION;
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    public void write(@NonNull FrameWriter frame) {
+        frame.putString(partnerIp).putInt(partnerPort).putBoolean(isInitiator);
+    }
+
+    @Override
+    public void read(@NonNull FrameReader frame) {
+        partnerIp = frame.getString();
+        partnerPort = frame.getInt();
+        isInitiator = frame.getBoolean();
+    }
+
+    @Override
+    public void writeJson(@NonNull JSONObject value) throws JSONException {
+        value.put("partnerIp", partnerIp);
+        value.put("partnerPort", partnerPort);
+        value.put("isInitiator", isInitiator);
+    }
+
+    @Override
+    public void readJson(@NonNull JSONObject value) throws JSONException {
+        partnerIp = value.getString("partnerIp");
+        partnerPort = value.getInt("partnerPort");
+        isInitiator = value.getBoolean("isInitiator");
+    }
+}
@@ -0,0 +1,62 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+/**
+ * Indirizzo di un dispositivo che si è unito alla rete Wi-Fi Direct.
+ */
+public final class AddressMessage extends SignalingMessage {
+    public static final String ACTION = "address";
+    public static final byte TYPE = 4;
+
+    public String partnerIp;
+    public int partnerPort;
+
+    public AddressMessage() {
+    }
+
+    public AddressMessage(String partnerIp, int partnerPort) {
+        this.partnerIp = partnerIp;
+        this.partnerPort = partnerPort;
+    }
+
+    @NonNull
+    @Override
+    public String getAction() {
+        return ACTION;
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    public void write(@NonNull FrameWriter frame) {
+        frame.putString(partnerIp).putInt(partnerPort);
+    }
+
+    @Override
+    public void read(@NonNull FrameReader frame) {
+        partnerIp = frame.getString();
+        partnerPort = frame.getInt();
+    }
+
+    @Override
+    public void writeJson(@NonNull JSONObject value) throws JSONException {
+        value.put("partnerIp", partnerIp);
+        value.put("partnerPort", partnerPort);
+    }
+
+    @Override
+    public void readJson(@NonNull JSONObject value) throws JSONException {
+        partnerIp = value.getString("partnerIp");
+        partnerPort = value.getInt("partnerPort");
+    }
+}
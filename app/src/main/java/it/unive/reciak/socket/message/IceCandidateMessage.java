@@ -0,0 +1,72 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+/**
+ * Informazioni ICE del peer.
+ */
+public final class IceCandidateMessage extends SignalingMessage {
+    public static final String ACTION = "addIceCandidate";
+    public static final byte TYPE = 2;
+
+    public String sdp;
+    public int sdpMLineIndex;
+    public String sdpMid;
+
+    public IceCandidateMessage() {
+    }
+
+    public IceCandidateMessage(String sdp, int sdpMLineIndex, String sdpMid) {
+        this.sdp = sdp;
+        this.sdpMLineIndex = sdpMLineIndex;
+        this.sdpMid = sdpMid;
+    }
+
+    @NonNull
+    @Override
+    public String getAction() {
+        return ACTION;
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int sizeHint() {
+        return 128;
+    }
+
+    @Override
+    public void write(@NonNull FrameWriter frame) {
+        frame.putString(sdp).putInt(sdpMLineIndex).putString(sdpMid);
+    }
+
+    @Override
+    public void read(@NonNull FrameReader frame) {
+        sdp = frame.getString();
+        sdpMLineIndex = frame.getInt();
+        sdpMid = frame.getString();
+    }
+
+    @Override
+    public void writeJson(@NonNull JSONObject value) throws JSONException {
+        value.put("sdp", sdp);
+        value.put("sdpMLineIndex", sdpMLineIndex);
+        value.put("sdpMid", sdpMid);
+    }
+
+    @Override
+    public void readJson(@NonNull JSONObject value) throws JSONException {
+        sdp = value.getString("sdp");
+        sdpMLineIndex = value.getInt("sdpMLineIndex");
+        sdpMid = value.getString("sdpMid");
+    }
+}
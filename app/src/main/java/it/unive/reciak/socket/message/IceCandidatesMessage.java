@@ -0,0 +1,130 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+/**
+ * Più informazioni ICE del peer in un unico messaggio.
+ * I campi sono salvati in array paralleli che vengono riutilizzati tra un messaggio e l'altro.
+ */
+public final class IceCandidatesMessage extends SignalingMessage {
+    public static final String ACTION = "addIceCandidates";
+    public static final byte TYPE = 5;
+
+    private String[] sdp = new String[8];
+    private int[] sdpMLineIndex = new int[8];
+    private String[] sdpMid = new String[8];
+    // Numero di informazioni ICE
+    private int count;
+
+    /**
+     * Aggiunge un'informazione ICE.
+     *
+     * @param sdp candidato
+     * @param sdpMLineIndex indice della riga media
+     * @param sdpMid id della riga media
+     */
+    public void add(String sdp, int sdpMLineIndex, String sdpMid) {
+        if (count == this.sdp.length) {
+            this.sdp = Arrays.copyOf(this.sdp, count * 2);
+            this.sdpMLineIndex = Arrays.copyOf(this.sdpMLineIndex, count * 2);
+            this.sdpMid = Arrays.copyOf(this.sdpMid, count * 2);
+        }
+        this.sdp[count] = sdp;
+        this.sdpMLineIndex[count] = sdpMLineIndex;
+        this.sdpMid[count] = sdpMid;
+        count++;
+    }
+
+    /**
+     * Rimuove tutte le informazioni ICE.
+     */
+    public void clear() {
+        Arrays.fill(sdp, 0, count, null);
+        Arrays.fill(sdpMid, 0, count, null);
+        count = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String getSdp(int index) {
+        return sdp[index];
+    }
+
+    public int getSdpMLineIndex(int index) {
+        return sdpMLineIndex[index];
+    }
+
+    public String getSdpMid(int index) {
+        return sdpMid[index];
+    }
+
+    @NonNull
+    @Override
+    public String getAction() {
+        return ACTION;
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int sizeHint() {
+        return 4 + 128 * count;
+    }
+
+    @Override
+    public void write(@NonNull FrameWriter frame) {
+        frame.putInt(count);
+        for (int i = 0; i < count; i++)
+            frame.putString(sdp[i]).putInt(sdpMLineIndex[i]).putString(sdpMid[i]);
+    }
+
+    @Override
+    public void read(@NonNull FrameReader frame) {
+        clear();
+        int size = frame.getInt();
+        for (int i = 0; i < size; i++) {
+            String candidate = frame.getString();
+            int index = frame.getInt();
+            add(candidate, index, frame.getString());
+        }
+    }
+
+    @Override
+    public void writeJson(@NonNull JSONObject value) throws JSONException {
+        JSONArray candidatesJson = new JSONArray();
+
+        for (int i = 0; i < count; i++) {
+            JSONObject iceCandidateJson = new JSONObject();
+            iceCandidateJson.put("sdp", sdp[i]);
+            iceCandidateJson.put("sdpMLineIndex", sdpMLineIndex[i]);
+            iceCandidateJson.put("sdpMid", sdpMid[i]);
+            candidatesJson.put(iceCandidateJson);
+        }
+        value.put("candidates", candidatesJson);
+    }
+
+    @Override
+    public void readJson(@NonNull JSONObject value) throws JSONException {
+        clear();
+        JSONArray candidatesJson = value.getJSONArray("candidates");
+
+        for (int i = 0; i < candidatesJson.length(); i++) {
+            JSONObject iceCandidateJson = candidatesJson.getJSONObject(i);
+            add(iceCandidateJson.getString("sdp"), iceCandidateJson.getInt("sdpMLineIndex"), iceCandidateJson.getString("sdpMid"));
+        }
+    }
+}
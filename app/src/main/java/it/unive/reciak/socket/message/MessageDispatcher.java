@@ -0,0 +1,124 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+
+import it.unive.reciak.socket.FrameReader;
+
+/**
+ * Smistamento dei messaggi ricevuti ai gestori registrati per ciascuna azione.
+ * Ogni azione ha un contenitore riutilizzabile: i messaggi devono essere gestiti su un solo
+ * thread (l'executor del socket) e i gestori non devono conservare il contenitore.
+ */
+public final class MessageDispatcher {
+    // Gestori indicizzati per tipo di frame
+    @NonNull
+    private final Entry<?>[] byType;
+    // Gestori indicizzati per azione JSON
+    @NonNull
+    private final HashMap<String, Entry<?>> byAction;
+
+    /**
+     * Gestore di un messaggio.
+     *
+     * @param <T> tipo del messaggio
+     */
+    public interface MessageHandler<T extends SignalingMessage> {
+        /**
+         * Messaggio ricevuto. Il contenitore viene riutilizzato dopo la chiamata.
+         *
+         * @param message messaggio decodificato
+         */
+        void onMessage(@NonNull T message);
+    }
+
+    /**
+     * Contenitore e gestore di un'azione.
+     *
+     * @param <T> tipo del messaggio
+     */
+    private static final class Entry<T extends SignalingMessage> {
+        @NonNull
+        final T holder;
+        @NonNull
+        final MessageHandler<T> handler;
+
+        Entry(@NonNull T holder, @NonNull MessageHandler<T> handler) {
+            this.holder = holder;
+            this.handler = handler;
+        }
+
+        void dispatch() {
+            handler.onMessage(holder);
+        }
+    }
+
+    public MessageDispatcher() {
+        byType = new Entry<?>[Byte.MAX_VALUE + 1];
+        byAction = new HashMap<>();
+    }
+
+    /**
+     * Registra il gestore di un'azione.
+     *
+     * @param holder contenitore riutilizzabile del messaggio
+     * @param handler gestore del messaggio
+     * @param <T> tipo del messaggio
+     * @return il dispatcher stesso
+     */
+    @NonNull
+    public <T extends SignalingMessage> MessageDispatcher register(@NonNull T holder, @NonNull MessageHandler<T> handler) {
+        Entry<T> entry = new Entry<>(holder, handler);
+        byType[holder.getType()] = entry;
+        byAction.put(holder.getAction(), entry);
+        return this;
+    }
+
+    /**
+     * Decodifica un frame e lo passa al gestore registrato.
+     *
+     * @param frame frame ricevuto, posizionato sul tipo
+     * @return true se il messaggio è stato gestito
+     * @throws IllegalStateException frame troncato
+     */
+    public boolean dispatch(@NonNull FrameReader frame) {
+        @Nullable
+        Entry<?> entry = entryFor(frame.peekType());
+        if (entry == null)
+            return false;
+
+        frame.getByte();
+        entry.holder.read(frame);
+        entry.dispatch();
+        return true;
+    }
+
+    /**
+     * Decodifica un messaggio JSON e lo passa al gestore registrato.
+     *
+     * @param action azione del messaggio
+     * @param value corpo del messaggio
+     * @return true se il messaggio è stato gestito
+     * @throws JSONException campo mancante
+     */
+    public boolean dispatch(@NonNull String action, @NonNull JSONObject value) throws JSONException {
+        @Nullable
+        Entry<?> entry = byAction.get(action);
+        if (entry == null)
+            return false;
+
+        entry.holder.readJson(value);
+        entry.dispatch();
+        return true;
+    }
+
+    @Nullable
+    private Entry<?> entryFor(byte type) {
+        return type >= 0 ? byType[type] : null;
+    }
+}
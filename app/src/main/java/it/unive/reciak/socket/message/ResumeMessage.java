@@ -0,0 +1,59 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+/**
+ * Identificativo della sessione del mittente, inviato a ogni connessione del socket.
+ * Se il peer si riconnette con lo stesso identificativo la chiamata prosegue sulla
+ * PeerConnection esistente.
+ */
+public final class ResumeMessage extends SignalingMessage {
+    public static final String ACTION = "resume";
+    public static final byte TYPE = 7;
+
+    public String token;
+
+    public ResumeMessage() {
+    }
+
+    public ResumeMessage(String token) {
+        this.token = token;
+    }
+
+    @NonNull
+    @Override
+    public String getAction() {
+        return ACTION;
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    public void write(@NonNull FrameWriter frame) {
+        frame.putString(token);
+    }
+
+    @Override
+    public void read(@NonNull FrameReader frame) {
+        token = frame.getString();
+    }
+
+    @Override
+    public void writeJson(@NonNull JSONObject value) throws JSONException {
+        value.put("token", token);
+    }
+
+    @Override
+    public void readJson(@NonNull JSONObject value) throws JSONException {
+        token = value.getString("token");
+    }
+}
@@ -0,0 +1,69 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+/**
+ * Informazioni di trasmissione del peer (SessionDescription).
+ */
+public final class SessionDescriptionMessage extends SignalingMessage {
+    public static final String ACTION = "setSessionDescription";
+    public static final byte TYPE = 1;
+
+    // offer/answer
+    public String type;
+    // SessionDescription
+    public String description;
+
+    public SessionDescriptionMessage() {
+    }
+
+    public SessionDescriptionMessage(String type, String description) {
+        this.type = type;
+        this.description = description;
+    }
+
+    @NonNull
+    @Override
+    public String getAction() {
+        return ACTION;
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int sizeHint() {
+        return description != null ? description.length() + 16 : super.sizeHint();
+    }
+
+    @Override
+    public void write(@NonNull FrameWriter frame) {
+        frame.putString(type).putString(description);
+    }
+
+    @Override
+    public void read(@NonNull FrameReader frame) {
+        type = frame.getString();
+        description = frame.getString();
+    }
+
+    @Override
+    public void writeJson(@NonNull JSONObject value) throws JSONException {
+        value.put("type", type);
+        value.put("sessionDescription", description);
+    }
+
+    @Override
+    public void readJson(@NonNull JSONObject value) throws JSONException {
+        type = value.getString("type");
+        description = value.getString("sessionDescription");
+    }
+}
@@ -0,0 +1,103 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+/**
+ * Messaggio di segnalazione tipizzato.
+ * Ogni istanza è un contenitore riutilizzabile: la decodifica sovrascrive i campi del messaggio
+ * precedente, senza creare nuovi oggetti.
+ */
+public abstract class SignalingMessage {
+    /**
+     * Nome dell'azione nel formato JSON.
+     *
+     * @return azione del messaggio
+     */
+    @NonNull
+    public abstract String getAction();
+
+    /**
+     * Tipo del messaggio nei frame binari.
+     *
+     * @return tipo del messaggio
+     */
+    public abstract byte getType();
+
+    /**
+     * Dimensione stimata dei campi in un frame binario.
+     *
+     * @return byte stimati
+     */
+    public int sizeHint() {
+        return 64;
+    }
+
+    /**
+     * Scrive i campi del messaggio in un frame.
+     *
+     * @param frame frame da inviare
+     */
+    public abstract void write(@NonNull FrameWriter frame);
+
+    /**
+     * Legge i campi del messaggio da un frame (dopo il tipo).
+     *
+     * @param frame frame ricevuto
+     */
+    public abstract void read(@NonNull FrameReader frame);
+
+    /**
+     * Scrive i campi del messaggio nel corpo JSON.
+     *
+     * @param value corpo del messaggio
+     * @throws JSONException impossibile scrivere un campo
+     */
+    public abstract void writeJson(@NonNull JSONObject value) throws JSONException;
+
+    /**
+     * Legge i campi del messaggio dal corpo JSON.
+     *
+     * @param value corpo del messaggio
+     * @throws JSONException campo mancante
+     */
+    public abstract void readJson(@NonNull JSONObject value) throws JSONException;
+
+    /**
+     * Crea un messaggio vuoto dato il suo tipo.
+     *
+     * @param type tipo del messaggio
+     * @return messaggio vuoto o null se il tipo è sconosciuto
+     */
+    @Nullable
+    public static SignalingMessage create(byte type) {
+        switch (type) {
+            case SessionDescriptionMessage.TYPE:
+                return new SessionDescriptionMessage();
+            case IceCandidateMessage.TYPE:
+                return new IceCandidateMessage();
+            case AddUserMessage.TYPE:
+                return new AddUserMessage();
+            case AddressMessage.TYPE:
+                return new AddressMessage();
+            case IceCandidatesMessage.TYPE:
+                return new IceCandidatesMessage();
+            case StartVideoMessage.TYPE:
+                return new StartVideoMessage();
+            case ResumeMessage.TYPE:
+                return new ResumeMessage();
+            case ByeMessage.TYPE:
+                return new ByeMessage();
+            case VideoReceivedMessage.TYPE:
+                return new VideoReceivedMessage();
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONObject;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+/**
+ * Il mittente ha iniziato a condividere la propria fotocamera sulle tracce già negoziate.
+ * Non contiene campi: il cambio di operatore non richiede una nuova SessionDescription.
+ */
+public final class StartVideoMessage extends SignalingMessage {
+    public static final String ACTION = "startVideo";
+    public static final byte TYPE = 6;
+
+    @NonNull
+    @Override
+    public String getAction() {
+        return ACTION;
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int sizeHint() {
+        return 0;
+    }
+
+    @Override
+    public void write(@NonNull FrameWriter frame) {
+    }
+
+    @Override
+    public void read(@NonNull FrameReader frame) {
+    }
+
+    @Override
+    public void writeJson(@NonNull JSONObject value) {
+    }
+
+    @Override
+    public void readJson(@NonNull JSONObject value) {
+    }
+}
@@ -0,0 +1,48 @@
+package it.unive.reciak.socket.message;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONObject;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+/**
+ * Il mittente ha ricevuto il primo fotogramma della condivisione video avviata dal destinatario.
+ */
+public final class VideoReceivedMessage extends SignalingMessage {
+    public static final String ACTION = "videoReceived";
+    public static final byte TYPE = 9;
+
+    @NonNull
+    @Override
+    public String getAction() {
+        return ACTION;
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE;
+    }
+
+    @Override
+    public int sizeHint() {
+        return 0;
+    }
+
+    @Override
+    public void write(@NonNull FrameWriter frame) {
+    }
+
+    @Override
+    public void read(@NonNull FrameReader frame) {
+    }
+
+    @Override
+    public void writeJson(@NonNull JSONObject value) {
+    }
+
+    @Override
+    public void readJson(@NonNull JSONObject value) {
+    }
+}
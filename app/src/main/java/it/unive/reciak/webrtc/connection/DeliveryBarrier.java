@@ -0,0 +1,53 @@
+package it.unive.reciak.webrtc.connection;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Barriera di completamento dell'avvio di una condivisione video.
+ * Ogni peer segnala l'arrivo quando l'altro dispositivo ha ricevuto il primo fotogramma (o quando
+ * non c'è nulla da attendere); all'ultimo arrivo viene eseguita la callback.
+ */
+final class DeliveryBarrier {
+    private static final String TAG = "DeliveryBarrier";
+
+    // Peer che non hanno ancora ricevuto il flusso video
+    @NonNull
+    private final AtomicInteger pending;
+    // Istante di avvio della condivisione
+    private final long startTime;
+    @NonNull
+    private final Runnable onComplete;
+
+    /**
+     * Crea una barriera.
+     *
+     * @param parties numero di peer
+     * @param onComplete callback eseguita quando tutti i peer hanno ricevuto il flusso video
+     */
+    DeliveryBarrier(int parties, @NonNull Runnable onComplete) {
+        pending = new AtomicInteger(parties);
+        startTime = SystemClock.elapsedRealtime();
+        this.onComplete = onComplete;
+
+        if (parties == 0)
+            onComplete.run();
+    }
+
+    /**
+     * Un peer ha completato l'avvio.
+     */
+    void arrive() {
+        int left = pending.decrementAndGet();
+        if (left == 0) {
+            Log.i(TAG, "All peers receiving after " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+            onComplete.run();
+        } else if (left < 0) {
+            Log.w(TAG, "Unexpected arrival");
+        }
+    }
+}
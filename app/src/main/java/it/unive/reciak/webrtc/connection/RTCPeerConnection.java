@@ -1,6 +1,7 @@
 package it.unive.reciak.webrtc.connection;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.View;
@@ -18,17 +19,33 @@ import org.webrtc.MediaStreamTrack;
 import org.webrtc.PeerConnection;
 import org.webrtc.RtpReceiver;
 import org.webrtc.RtpSender;
+import org.webrtc.RtpTransceiver;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
+import org.webrtc.VideoSink;
 import org.webrtc.VideoTrack;
 
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
+import java.util.UUID;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import it.unive.reciak.R;
 import it.unive.reciak.socket.CallSocket;
+import it.unive.reciak.socket.ReconnectPolicy;
 import it.unive.reciak.socket.TCPChannelClient;
+import it.unive.reciak.socket.message.AddUserMessage;
+import it.unive.reciak.socket.message.ByeMessage;
+import it.unive.reciak.socket.message.IceCandidateMessage;
+import it.unive.reciak.socket.message.IceCandidatesMessage;
+import it.unive.reciak.socket.message.MessageDispatcher;
+import it.unive.reciak.socket.message.ResumeMessage;
+import it.unive.reciak.socket.message.SessionDescriptionMessage;
+import it.unive.reciak.socket.message.StartVideoMessage;
+import it.unive.reciak.socket.message.VideoReceivedMessage;
 import it.unive.reciak.webrtc.PeerInfo;
 import it.unive.reciak.webrtc.record.RecordChannel;
 
@@ -37,8 +54,10 @@ import it.unive.reciak.webrtc.record.RecordChannel;
  *
  * @see <a href="https://webrtc.googlesource.com/src/+/master/sdk/android/">Libreria utilizzata</a>
  */
-class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChannelClient.TCPChannelEvents {
+class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, DataChannel.Observer, TCPChannelClient.TCPChannelEvents {
     private static final String TAG = "RTCPeerConnection";
+    // Identificativo del canale dati di segnalazione, uguale su entrambi i peer
+    private static final int SIGNALING_CHANNEL_ID = 0;
 
     // Gestore connessioni WebRTC
     @NonNull
@@ -50,20 +69,80 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
 
     // Executor gestione socket e registrazione
     @NonNull
-    private final ExecutorService executor;
+    private final ScheduledExecutorService executor;
     // Socket per la negoziazione della chiamata
     @NonNull
     private CallSocket callSocket;
+    // Gestori dei messaggi ricevuti dal socket
+    @NonNull
+    private final MessageDispatcher dispatcher;
+
+    // Politica di riconnessione del socket (solo executor)
+    @NonNull
+    private final ReconnectPolicy reconnectPolicy;
+    // Riconnessione programmata
+    @Nullable
+    private volatile ScheduledFuture<?> reconnectTask;
+    // Identificativo della propria sessione e di quella del peer
+    @NonNull
+    private final String sessionToken;
+    @Nullable
+    private String remoteSessionToken;
+    // Il socket è già stato connesso almeno una volta (solo executor)
+    private boolean connectedOnce;
+    // Il peer ha chiuso la chiamata (solo executor)
+    private boolean byeReceived;
+    // Connessione chiusa
+    private volatile boolean disposed;
 
     // Gestore della connessione con l'altro peer
     @Nullable
     private PeerConnection peerConnection;
+    // Canale dati per i messaggi di segnalazione durante la chiamata
+    @Nullable
+    private DataChannel dataChannel;
+    // I messaggi viaggiano sul canale dati e il socket è stato chiuso
+    private volatile boolean dataChannelOpen;
 
-    // Gestori invio flusso video e audio all'altro peer
+    // Gestori invio flusso video e audio all'altro peer (negoziati una sola volta)
     @Nullable
     private RtpSender videoSender;
     @Nullable
     private RtpSender audioSender;
+    // Sta inviando la propria fotocamera al peer
+    private volatile boolean sharing;
+    // Barriera della condivisione in corso, in attesa della conferma del peer (solo executor)
+    @Nullable
+    private DeliveryBarrier deliveryBarrier;
+    // Istante di avvio della condivisione verso il peer (solo executor)
+    private long sharingStartTime;
+    // Tempo in ms fra l'avvio della condivisione e la conferma del primo fotogramma dal peer
+    private volatile long deliveryTime = -1;
+
+    // Traccia video ricevuta dal peer (solo executor)
+    @Nullable
+    private VideoTrack remoteVideoTrack;
+    // Il peer ha iniziato a condividere prima che la sua traccia fosse disponibile (solo executor)
+    private boolean pendingRemoteVideo;
+    // Istante in cui il peer ha iniziato a condividere (solo executor)
+    private long remoteStartTime;
+    // Tempo in ms fra l'avviso del peer e il primo fotogramma ricevuto
+    private volatile long timeToFirstRemoteFrame = -1;
+    // Primo fotogramma della condivisione del peer già ricevuto
+    @NonNull
+    private final AtomicBoolean firstRemoteFrame = new AtomicBoolean(true);
+    // Attende il primo fotogramma della condivisione del peer
+    @NonNull
+    private final VideoSink firstFrameSink = frame -> {
+        if (firstRemoteFrame.compareAndSet(false, true) && !executor.isShutdown())
+            executor.execute(this::onFirstRemoteFrame);
+    };
+
+    // Informazioni ICE in attesa di essere inviate (solo executor)
+    @NonNull
+    private final ArrayList<IceCandidate> pendingIceCandidates;
+    // Finestra di raccolta delle informazioni ICE in ms (0 per inviarle singolarmente)
+    private final int iceBatchWindow;
 
     @NonNull
     private final Context context;
@@ -73,8 +152,27 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
         this.peerInfo = peerInfo;
         this.context = context;
 
-        executor = Executors.newSingleThreadExecutor();
-        callSocket = new CallSocket(executor, this, peerInfo);
+        pendingIceCandidates = new ArrayList<>();
+        iceBatchWindow = context.getResources().getInteger(R.integer.ice_batch_window);
+
+        // Gestori dei messaggi del peer
+        dispatcher = new MessageDispatcher()
+                .register(new SessionDescriptionMessage(), this::onSessionDescriptionMessage)
+                .register(new IceCandidateMessage(), this::onIceCandidateMessage)
+                .register(new IceCandidatesMessage(), this::onIceCandidatesMessage)
+                .register(new AddUserMessage(), this::onAddUserMessage)
+                .register(new StartVideoMessage(), this::onStartVideoMessage)
+                .register(new ResumeMessage(), this::onResumeMessage)
+                .register(new ByeMessage(), this::onByeMessage)
+                .register(new VideoReceivedMessage(), this::onVideoReceivedMessage);
+
+        reconnectPolicy = new ReconnectPolicy(context.getResources().getInteger(R.integer.reconnect_base_delay),
+                context.getResources().getInteger(R.integer.reconnect_max_delay),
+                context.getResources().getInteger(R.integer.reconnect_max_attempts));
+        sessionToken = UUID.randomUUID().toString();
+
+        executor = Executors.newSingleThreadScheduledExecutor();
+        callSocket = new CallSocket(executor, this, dispatcher, peerInfo);
     }
 
     /**
@@ -87,8 +185,13 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
 
         // Si connette all'altro peer
         peerConnection = room.peerConnectionFactory.createPeerConnection(room.rtcConfig, this);
-        if (peerConnection == null)
+        if (peerConnection == null) {
             onError(new Throwable("Impossibile connettersi al peer"));
+        } else {
+            if (peerInfo.isInitiator())
+                addTransceivers();
+            createDataChannel();
+        }
 
         // Se sono l'amministratore mostro i pulsanti e la mia fotocamera
         if (room.isServer() && peerInfo.isInitiator() && room.videoTrack != null) {
@@ -102,34 +205,113 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
     }
 
     /**
-     * Avvia condivisione video.
+     * Crea le tracce audio e video da scambiare con il peer.
+     * Vengono negoziate una sola volta: il cambio di operatore sostituisce solamente la traccia inviata.
      */
-    public void startVideo() {
-        Log.i(TAG, "startVideo");
-        // Se non sta già condividendo qualcosa
-        if (videoSender == null && audioSender == null && peerConnection != null) {
-            ArrayList<String> mediaStreamLabels = new ArrayList<>();
-            mediaStreamLabels.add("ARDAMS");
-
-            // Invia il proprio flusso video al peer
-            videoSender = peerConnection.addTrack(room.videoTrack, mediaStreamLabels);
-            audioSender = peerConnection.addTrack(room.audioTrack, mediaStreamLabels);
-
-            if (room.videoTrack == null)
-                onError(new Throwable(context.getString(R.string.camera_error)));
+    private void addTransceivers() {
+        if (peerConnection == null)
+            return;
 
-            // Nasconde la view più piccola
-            room.runOnUiThread(() -> room.rightView.setVisibility(View.INVISIBLE));
+        ArrayList<String> mediaStreamLabels = new ArrayList<>();
+        mediaStreamLabels.add("ARDAMS");
+        RtpTransceiver.RtpTransceiverInit init = new RtpTransceiver.RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_RECV, mediaStreamLabels);
 
-            // Visualizza la propria fotocamera nella view centrale
-            room.videoTrack.addSink(room.mainView);
-            executor.execute(() -> room.startRecording(RecordChannel.INPUT));
+        videoSender = peerConnection.addTransceiver(MediaStreamTrack.MediaType.MEDIA_TYPE_VIDEO, init).getSender();
+        audioSender = peerConnection.addTransceiver(MediaStreamTrack.MediaType.MEDIA_TYPE_AUDIO, init).getSender();
+    }
 
-            // Ha avviato la condivisione video
-            room.setRecordingButton(true);
+    /**
+     * Crea il canale dati di segnalazione.
+     * Il canale è negoziato: entrambi i peer lo creano con lo stesso identificativo prima della
+     * prima offerta, senza attendere onDataChannel().
+     */
+    private void createDataChannel() {
+        if (peerConnection == null)
+            return;
+
+        DataChannel.Init init = new DataChannel.Init();
+        init.negotiated = true;
+        init.id = SIGNALING_CHANNEL_ID;
+        init.ordered = true;
+        dataChannel = peerConnection.createDataChannel("signaling", init);
+        if (dataChannel != null)
+            dataChannel.registerObserver(this);
+    }
+
+    /**
+     * Abilita l'invio sulle tracce create dall'offerta del peer.
+     */
+    private void bindTransceivers() {
+        if (peerConnection == null)
+            return;
+
+        for (RtpTransceiver transceiver : peerConnection.getTransceivers()) {
+            transceiver.setDirection(RtpTransceiver.RtpTransceiverDirection.SEND_RECV);
+            if (transceiver.getMediaType() == MediaStreamTrack.MediaType.MEDIA_TYPE_VIDEO)
+                videoSender = transceiver.getSender();
+            else if (transceiver.getMediaType() == MediaStreamTrack.MediaType.MEDIA_TYPE_AUDIO)
+                audioSender = transceiver.getSender();
         }
     }
 
+    /**
+     * Avvia condivisione video sull'executor del peer.
+     * La barriera viene raggiunta quando il peer conferma il primo fotogramma ricevuto, o subito
+     * se non c'è nulla da inviare.
+     *
+     * @param barrier barriera di completamento della condivisione
+     */
+    public void startVideo(@NonNull DeliveryBarrier barrier) {
+        if (executor.isShutdown()) {
+            barrier.arrive();
+            return;
+        }
+
+        executor.execute(() -> {
+            Log.i(TAG, "startVideo");
+            // Se non sta già condividendo qualcosa e la negoziazione è avvenuta
+            if (disposed || sharing || videoSender == null || audioSender == null || peerConnection == null) {
+                barrier.arrive();
+                return;
+            }
+            if (room.videoTrack == null) {
+                barrier.arrive();
+                onError(new Throwable(context.getString(R.string.camera_error)));
+                return;
+            }
+
+            // Invia il proprio flusso video al peer, senza rinegoziare
+            videoSender.setTrack(room.videoTrack, false);
+            audioSender.setTrack(room.audioTrack, false);
+            sharing = true;
+
+            // Attende la conferma del peer
+            if (deliveryBarrier != null)
+                deliveryBarrier.arrive();
+            deliveryBarrier = barrier;
+            sharingStartTime = SystemClock.elapsedRealtime();
+            callSocket.sendStartVideo();
+        });
+    }
+
+    /**
+     * Tempo fra l'ultimo avvio della condivisione e la conferma del primo fotogramma dal peer.
+     *
+     * @return tempo in ms, -1 se non disponibile
+     */
+    public long getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    /**
+     * Tempo fra l'ultimo avviso di condivisione del peer e il primo fotogramma ricevuto.
+     *
+     * @return tempo in ms, -1 se non disponibile
+     */
+    public long getTimeToFirstRemoteFrame() {
+        return timeToFirstRemoteFrame;
+    }
+
     /**
      * Termina condivisione video
      */
@@ -150,19 +332,34 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
             room.remoteVideoTrack.removeSink(room.rightView);
         }
 
-        // Interrompe la condivisione video
-        if (videoSender != null && audioSender != null) {
+        // Interrompe la condivisione video mantenendo le tracce negoziate
+        if (sharing) {
             room.rightView.clearImage();
             room.runOnUiThread(() -> room.rightView.setVisibility(View.VISIBLE));
 
-            if (peerConnection != null) {
-                peerConnection.removeTrack(videoSender);
-                videoSender = null;
-
-                peerConnection.removeTrack(audioSender);
-                audioSender = null;
+            if (peerConnection != null && videoSender != null && audioSender != null) {
+                videoSender.setTrack(null, false);
+                audioSender.setTrack(null, false);
             }
+            sharing = false;
         }
+
+        // Il peer non confermerà più la condivisione: la barriera non resta in attesa
+        if (!executor.isShutdown())
+            executor.execute(this::releaseDeliveryBarrier);
+    }
+
+    /**
+     * Rilascia la barriera della condivisione in attesa della conferma del peer.
+     * Deve essere eseguita sull'executor.
+     */
+    private void releaseDeliveryBarrier() {
+        if (deliveryBarrier == null)
+            return;
+
+        Log.i(TAG, "Sharing to " + peerInfo.getIp() + " stopped before delivery");
+        deliveryBarrier.arrive();
+        deliveryBarrier = null;
     }
 
     /**
@@ -211,18 +408,38 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
      * Chiude la connessione con il peer.
      */
     public void dispose() {
+        if (disposed)
+            return;
+        disposed = true;
         Log.i(TAG, "dispose");
         // Interrompe la condivisione
         stopVideo();
 
+        // Annulla la riconnessione e chiude il socket avvisando il peer
+        @Nullable
+        ScheduledFuture<?> task = reconnectTask;
+        if (task != null)
+            task.cancel(false);
+        callSocket.sendBye();
+
+        // Chiude il canale dati
+        if (dataChannel != null) {
+            dataChannel.unregisterObserver();
+            dataChannel.close();
+            dataChannel.dispose();
+            dataChannel = null;
+        }
+
         // Disconnessione
         if (peerConnection != null) {
             peerConnection.dispose();
             peerConnection = null;
         }
+        videoSender = null;
+        audioSender = null;
 
-        // Chiude il socket
-        callSocket.disconnect();
+        // Le operazioni già accodate vengono eseguite: l'ultima rilascia la barriera ancora in attesa
+        executor.execute(this::releaseDeliveryBarrier);
         executor.shutdown();
     }
 
@@ -239,7 +456,7 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
 
     /**
      * Gestione della SessionDescription remota.
-     * Salva la SessionDescription del peer e risponde.
+     * Salva la SessionDescription del peer e, se è un'offerta, risponde.
      *
      * @param description messaggio di tipo SessionDescription
      * @param type offer/answer
@@ -248,8 +465,37 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
         if (peerConnection != null) {
             SessionDescription sessionDescription = new SessionDescription(SessionDescription.Type.fromCanonicalForm(type), description);
             // Salva la SessionDescription remota
-            peerConnection.setRemoteDescription(this, sessionDescription);
-            // Risponde al peer
+            peerConnection.setRemoteDescription(new SdpObserver() {
+                @Override
+                public void onCreateSuccess(SessionDescription sessionDescription) {
+                }
+
+                // Risponde al peer dopo aver abilitato l'invio sulle tracce offerte
+                @Override
+                public void onSetSuccess() {
+                    if (sessionDescription.type == SessionDescription.Type.OFFER && !executor.isShutdown())
+                        executor.execute(() -> createAnswer());
+                }
+
+                @Override
+                public void onCreateFailure(String s) {
+                }
+
+                @Override
+                public void onSetFailure(String s) {
+                    Log.e(TAG, "setRemoteDescription: " + s);
+                }
+            }, sessionDescription);
+        }
+    }
+
+    /**
+     * Risponde all'offerta del peer.
+     */
+    private void createAnswer() {
+        Log.i(TAG, "createAnswer");
+        if (peerConnection != null) {
+            bindTransceivers();
             MediaConstraints constraints = new MediaConstraints();
             peerConnection.createAnswer(this, constraints);
         }
@@ -282,13 +528,90 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
     @Override
     public void onIceCandidate(@NonNull IceCandidate iceCandidate) {
         Log.i(TAG, "onIceCandidate");
-        callSocket.sendIceCandidate(iceCandidate);
+        if (iceBatchWindow <= 0) {
+            callSocket.sendIceCandidate(iceCandidate);
+            return;
+        }
+
+        // Raccoglie le informazioni ICE e le invia al termine della finestra
+        executor.execute(() -> {
+            pendingIceCandidates.add(iceCandidate);
+            if (pendingIceCandidates.size() == 1)
+                executor.schedule(this::flushIceCandidates, iceBatchWindow, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Invia in un unico messaggio le informazioni ICE raccolte.
+     * Deve essere eseguita sull'executor.
+     */
+    private void flushIceCandidates() {
+        if (pendingIceCandidates.isEmpty())
+            return;
+
+        Log.i(TAG, "flushIceCandidates: " + pendingIceCandidates.size());
+        if (pendingIceCandidates.size() == 1)
+            callSocket.sendIceCandidate(pendingIceCandidates.get(0));
+        else
+            callSocket.sendIceCandidates(new ArrayList<>(pendingIceCandidates));
+        pendingIceCandidates.clear();
     }
 
     @Override
     public void onDataChannel(@NonNull DataChannel dataChannel) {
     }
 
+    @Override
+    public void onBufferedAmountChange(long previousAmount) {
+    }
+
+    // Cambio di stato del canale dati di segnalazione
+    @Override
+    public void onStateChange() {
+        @Nullable
+        DataChannel channel = dataChannel;
+        if (channel == null || executor.isShutdown())
+            return;
+
+        DataChannel.State state = channel.state();
+        executor.execute(() -> onDataChannelState(channel, state));
+    }
+
+    /**
+     * Canale aperto: i messaggi passano sul canale dati e il socket viene chiuso.
+     * Canale chiuso dal peer: la chiamata è terminata.
+     * Deve essere eseguita sull'executor.
+     *
+     * @param channel canale dati
+     * @param state nuovo stato del canale
+     */
+    private void onDataChannelState(@NonNull DataChannel channel, @NonNull DataChannel.State state) {
+        Log.i(TAG, "onDataChannelState: " + state);
+        if (disposed)
+            return;
+
+        if (state == DataChannel.State.OPEN && !dataChannelOpen) {
+            dataChannelOpen = true;
+            callSocket.setDataChannel(channel);
+
+            // Il socket non serve più: libera il thread e la porta
+            @Nullable
+            ScheduledFuture<?> task = reconnectTask;
+            if (task != null)
+                task.cancel(false);
+            callSocket.disconnect();
+        } else if (state == DataChannel.State.CLOSED && dataChannelOpen) {
+            room.callActivity();
+        }
+    }
+
+    // Messaggio ricevuto sul canale dati
+    @Override
+    public void onMessage(@NonNull DataChannel.Buffer buffer) {
+        if (!disposed && buffer.binary)
+            callSocket.receive(buffer);
+    }
+
     @Override
     public void onIceConnectionReceivingChange(boolean receivingChange) {
     }
@@ -297,8 +620,11 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
     public void onIceConnectionChange(@NonNull PeerConnection.IceConnectionState state) {
     }
 
+    // Raccolta delle informazioni ICE terminata: invia subito quelle in attesa
     @Override
     public void onIceGatheringChange(@NonNull PeerConnection.IceGatheringState state) {
+        if (state == PeerConnection.IceGatheringState.COMPLETE && iceBatchWindow > 0 && !executor.isShutdown())
+            executor.execute(this::flushIceCandidates);
     }
 
     @Override
@@ -321,120 +647,219 @@ class RTCPeerConnection implements SdpObserver, PeerConnection.Observer, TCPChan
     public void onRenegotiationNeeded() {
     }
 
-    // Quando riceve una traccia remota
+    // Quando riceve una traccia remota (una sola volta, durante la prima negoziazione)
     @Override
     public void onAddTrack(@NonNull RtpReceiver receiver, @NonNull MediaStream[] mediaStreams) {
         Log.i(TAG, "onAddTrack");
         @Nullable
         MediaStreamTrack track = receiver.track();
 
-        // Se è una traccia video
-        if (track instanceof VideoTrack) {
-            // Termina condivisione video
-            room.stopVideo();
-            // Cambia l'icona del pulsante di registrazione
-            room.setRecordingButton(false);
-
-            // Visualizza il flusso video nella view principale
-            room.remoteVideoTrack = (VideoTrack) track;
-            room.remoteVideoTrack.addSink(room.mainView);
-
-            // Mostra la propria fotocamera nella view più piccola
-            if (room.videoTrack != null)
-                room.videoTrack.addSink(room.rightView);
-            // Avvia la registrazione
-            executor.execute(() -> room.startRecording(RecordChannel.OUTPUT));
-            room.runOnUiThread(() -> {
-                // Mostra le view
-                room.mainView.setVisibility(View.VISIBLE);
-                room.rightView.setVisibility(View.VISIBLE);
-                room.btnRecord.setVisibility(View.VISIBLE);
-                room.btnSwitch.setVisibility(View.VISIBLE);
-
-                // Avvisa l'utente della nuova registrazione
-                Toast toast = Toast.makeText(context, R.string.recording, Toast.LENGTH_SHORT);
-                toast.setGravity(Gravity.TOP | Gravity.CENTER_HORIZONTAL, 0, 50);
-                toast.show();
+        // Se è una traccia video la conserva fino a quando il peer inizia a condividere
+        if (track instanceof VideoTrack && !executor.isShutdown()) {
+            executor.execute(() -> {
+                remoteVideoTrack = (VideoTrack) track;
+                if (pendingRemoteVideo)
+                    showRemoteVideo();
             });
         }
     }
 
+    /**
+     * Visualizza e registra il flusso video del peer.
+     * Deve essere eseguita sull'executor.
+     */
+    private void showRemoteVideo() {
+        pendingRemoteVideo = false;
+        if (remoteVideoTrack == null)
+            return;
+
+        // Termina condivisione video
+        room.stopVideo();
+        // Cambia l'icona del pulsante di registrazione
+        room.setRecordingButton(false);
+
+        // Visualizza il flusso video nella view principale
+        room.remoteVideoTrack = remoteVideoTrack;
+        room.remoteVideoTrack.addSink(room.mainView);
+
+        // Misura l'arrivo del primo fotogramma
+        remoteStartTime = SystemClock.elapsedRealtime();
+        if (firstRemoteFrame.getAndSet(false))
+            remoteVideoTrack.addSink(firstFrameSink);
+
+        // Mostra la propria fotocamera nella view più piccola
+        if (room.videoTrack != null)
+            room.videoTrack.addSink(room.rightView);
+        // Avvia la registrazione
+        room.startRecording(RecordChannel.OUTPUT);
+        room.runOnUiThread(() -> {
+            // Mostra le view
+            room.mainView.setVisibility(View.VISIBLE);
+            room.rightView.setVisibility(View.VISIBLE);
+            room.btnRecord.setVisibility(View.VISIBLE);
+            room.btnSwitch.setVisibility(View.VISIBLE);
+
+            // Avvisa l'utente della nuova registrazione
+            Toast toast = Toast.makeText(context, R.string.recording, Toast.LENGTH_SHORT);
+            toast.setGravity(Gravity.TOP | Gravity.CENTER_HORIZONTAL, 0, 50);
+            toast.show();
+        });
+    }
+
+    /**
+     * Primo fotogramma della condivisione del peer: lo conferma al peer.
+     * Deve essere eseguita sull'executor.
+     */
+    private void onFirstRemoteFrame() {
+        // Non rimuove il sink durante onFrame(): la traccia lo sta notificando
+        if (remoteVideoTrack != null)
+            remoteVideoTrack.removeSink(firstFrameSink);
+
+        timeToFirstRemoteFrame = SystemClock.elapsedRealtime() - remoteStartTime;
+        Log.i(TAG, "First remote frame after " + timeToFirstRemoteFrame + " ms");
+        callSocket.sendVideoReceived();
+    }
+
+    // Il peer ha ricevuto il primo fotogramma della condivisione
+    private void onVideoReceivedMessage(@NonNull VideoReceivedMessage message) {
+        if (deliveryBarrier == null)
+            return;
+
+        deliveryTime = SystemClock.elapsedRealtime() - sharingStartTime;
+        Log.i(TAG, "Video delivered to " + peerInfo.getIp() + " after " + deliveryTime + " ms");
+        deliveryBarrier.arrive();
+        deliveryBarrier = null;
+    }
+
     // Connesso al socket dell'altro peer
     @Override
     public void onTCPConnected() {
         Log.i(TAG, "onTCPConnected");
+        reconnectPolicy.reset();
+        callSocket.sendResume(sessionToken);
+
+        // Connessione ripresa: la PeerConnection esistente continua a funzionare
+        if (connectedOnce) {
+            Log.i(TAG, "onTCPConnected: session resumed");
+            return;
+        }
+        connectedOnce = true;
+
         // Se sono l'amministratore
         if (peerInfo.isInitiator()) {
-            // Avvio il peer
+            // Avvio il peer e negozio subito le tracce
             start();
+            createOffer();
         }
 
         // Notifica la presenza di altri peer al dispositivo appena connesso
         room.addUser(this);
     }
 
-    // Il dispositivo ha ricevuto un messaggio dal peer
+    // Riceve informazioni di trasmissione del peer
+    private void onSessionDescriptionMessage(@NonNull SessionDescriptionMessage message) {
+        // Se non sono l'amministratore e ricevo un'offerta, avvio il peer
+        if (!peerInfo.isInitiator() && peerConnection == null)
+            start();
+
+        // Salva la SessionDescription remota
+        setRemoteDescription(message.description, message.type);
+    }
+
+    // Informazioni sull'indirizzo del peer
+    private void onIceCandidateMessage(@NonNull IceCandidateMessage message) {
+        // Salva l'indirizzo del peer
+        if (peerConnection != null)
+            peerConnection.addIceCandidate(new IceCandidate(message.sdpMid, message.sdpMLineIndex, message.sdp));
+    }
+
+    // Più informazioni sull'indirizzo del peer
+    private void onIceCandidatesMessage(@NonNull IceCandidatesMessage message) {
+        // Salva gli indirizzi del peer
+        if (peerConnection != null) {
+            for (int i = 0; i < message.size(); i++)
+                peerConnection.addIceCandidate(new IceCandidate(message.getSdpMid(i), message.getSdpMLineIndex(i), message.getSdp(i)));
+        }
+    }
+
+    // Il peer ha iniziato a condividere la propria fotocamera
+    private void onStartVideoMessage(@NonNull StartVideoMessage message) {
+        pendingRemoteVideo = true;
+        // Se la traccia non è ancora disponibile viene mostrata in onAddTrack
+        if (remoteVideoTrack != null)
+            showRemoteVideo();
+    }
+
+    // Identificativo della sessione del peer
+    private void onResumeMessage(@NonNull ResumeMessage message) {
+        if (remoteSessionToken == null) {
+            remoteSessionToken = message.token;
+        } else if (!remoteSessionToken.equals(message.token)) {
+            // Il peer ha perso la sessione: la chiamata non può proseguire
+            Log.w(TAG, "onResumeMessage: session lost by peer");
+            room.callActivity();
+        }
+    }
+
+    // Il peer ha chiuso la chiamata
+    private void onByeMessage(@NonNull ByeMessage message) {
+        byeReceived = true;
+    }
+
+    // Informazioni di un altro peer connesso all'amministratore
+    private void onAddUserMessage(@NonNull AddUserMessage message) {
+        // Crea un nuovo peer
+        ArrayList<PeerInfo> newPeerInfo = new ArrayList<>();
+        newPeerInfo.add(new PeerInfo(message.partnerIp, message.partnerPort, message.isInitiator));
+        room.addPeers(newPeerInfo);
+    }
+
+    // Messaggio senza gestore
     @Override
     public void onTCPMessage(@NonNull JSONObject message) {
-        try {
-            String action = message.getString("action");
-            // Risponde in base al messaggio ricevuto
-            switch (action) {
-                // Riceve informazioni di trasmissione del peer
-                case "setSessionDescription":
-                    JSONObject sessionDescriptionJson = message.getJSONObject("value");
-                    String type = sessionDescriptionJson.getString("type");
-                    String sessionDescription = sessionDescriptionJson.getString("sessionDescription");
-
-                    // Se non sono l'amministratore e ricevo un'offerta, avvio il peer
-                    if (!peerInfo.isInitiator() && peerConnection == null)
-                        start();
-
-                    // Salva la SessionDescription remota
-                    setRemoteDescription(sessionDescription, type);
-                    break;
-                // Informazioni sull'indirizzo del peer
-                case "addIceCandidate":
-                    JSONObject iceCandidateJson = message.getJSONObject("value");
-                    String sdp = iceCandidateJson.getString("sdp");
-                    int sdpMLineIndex = iceCandidateJson.getInt("sdpMLineIndex");
-                    String sdpMid = iceCandidateJson.getString("sdpMid");
-
-                    // Salva l'indirizzo del peer
-                    IceCandidate iceCandidate = new IceCandidate(sdpMid, sdpMLineIndex, sdp);
-                    if (peerConnection != null)
-                        peerConnection.addIceCandidate(iceCandidate);
-                    break;
-                // Informazioni di un altro peer connesso all'amministratore
-                case "addUser":
-                    JSONObject userJson = message.getJSONObject("value");
-                    String newPartnerIp = userJson.getString("partnerIp");
-                    int newPartnerPort = userJson.getInt("partnerPort");
-                    boolean newIsInitiator = userJson.getBoolean("isInitiator");
-
-                    // Crea un nuovo peer
-                    ArrayList<PeerInfo> newPeerInfo = new ArrayList<>();
-                    newPeerInfo.add(new PeerInfo(newPartnerIp, newPartnerPort, newIsInitiator));
-                    room.addPeers(newPeerInfo);
-                    break;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        Log.w(TAG, "onTCPMessage: unknown action " + message.optString("action"));
     }
 
-    // Creazione del socket fallita
+    // Creazione del socket fallita o connessione interrotta
     @Override
     public void onTCPError() {
         Log.i(TAG, "onTCPError");
-        // Riavvia il socket
-        callSocket.disconnect();
-        callSocket = new CallSocket(executor, this, peerInfo);
+        scheduleReconnect();
     }
 
-    // Se il socket viene chiuso, avvia il rendering
+    // Se il peer ha chiuso la chiamata avvia il rendering, altrimenti riconnette il socket
+    // (a meno che i messaggi non viaggino già sul canale dati)
     @Override
     public void onTCPClose() {
-        room.callActivity();
+        if (byeReceived || disposed)
+            room.callActivity();
+        else if (!dataChannelOpen)
+            scheduleReconnect();
+    }
+
+    /**
+     * Ricrea il socket dopo il ritardo stabilito dalla politica di riconnessione.
+     * Se i tentativi sono esauriti chiude la chiamata.
+     * Deve essere eseguita sull'executor.
+     */
+    private void scheduleReconnect() {
+        // Con il canale dati aperto il socket non viene più usato
+        if (disposed || dataChannelOpen || reconnectTask != null)
+            return;
+
+        long delay = reconnectPolicy.nextDelay();
+        if (delay < 0) {
+            Log.w(TAG, "scheduleReconnect: attempts exhausted");
+            room.callActivity();
+            return;
+        }
+
+        Log.i(TAG, "scheduleReconnect: attempt " + reconnectPolicy.getAttempts() + " in " + delay + " ms");
+        callSocket.disconnect();
+        reconnectTask = executor.schedule(() -> {
+            reconnectTask = null;
+            if (!disposed && !dataChannelOpen)
+                callSocket = new CallSocket(executor, this, dispatcher, peerInfo);
+        }, delay, TimeUnit.MILLISECONDS);
     }
 }
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.util.Log;
+import android.view.View;
 import android.widget.ImageView;
 import android.widget.Toast;
 
@@ -28,17 +29,25 @@ import org.webrtc.VideoTrack;
 import org.webrtc.audio.JavaAudioDeviceModule;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import it.unive.reciak.CallActivity;
 import it.unive.reciak.R;
 import it.unive.reciak.RenderActivity;
+import it.unive.reciak.socket.CallServer;
 import it.unive.reciak.webrtc.EglUtils;
 import it.unive.reciak.webrtc.PeerInfo;
+import it.unive.reciak.webrtc.record.AudioMixer;
 import it.unive.reciak.webrtc.record.AudioSamplesInterceptor;
-import it.unive.reciak.webrtc.record.MediaRecorder;
+import it.unive.reciak.webrtc.record.ClipFinalizer;
 import it.unive.reciak.webrtc.record.OutputAudioSamplesInterceptor;
 import it.unive.reciak.webrtc.record.RecordChannel;
+import it.unive.reciak.webrtc.record.RecordingProfile;
+import it.unive.reciak.webrtc.record.SessionRecorder;
 
 /**
  * Gestore connessione a una stanza.
@@ -105,15 +114,29 @@ public class RTCRoomConnection {
     // Gestore audio locale
     @Nullable
     private JavaAudioDeviceModule audioDeviceModule;
-    // Gestore avvio/terminazione registrazione
+    // Registrazione continua della stanza in un unico file
     @Nullable
-    private MediaRecorder mediaRecorder;
+    private SessionRecorder sessionRecorder;
+    // Verifica della registrazione in background, prima del rendering
+    @Nullable
+    private ClipFinalizer clipFinalizer;
+    // La stanza si sta chiudendo per avviare il rendering
+    private boolean rendering;
+    // Parametri di codifica della registrazione
+    @Nullable
+    private RecordingProfile recordingProfile;
+    // Executor avvio della registrazione locale, fuori dal thread principale
+    @NonNull
+    private final ExecutorService recordExecutor;
     // Callback registrazione audio locale
     @Nullable
     private final AudioSamplesInterceptor inputSamplesInterceptor;
     // Callback registrazione audio remoto
     @Nullable
     private OutputAudioSamplesInterceptor outputSamplesInterceptor;
+    // Audio della registrazione: voce locale e remota miscelate
+    @Nullable
+    private AudioMixer audioMixer;
 
     // File video registrati
     @Nullable
@@ -138,6 +161,7 @@ public class RTCRoomConnection {
         inputSamplesInterceptor = new AudioSamplesInterceptor();
         peers = new ArrayList<>();
         videos = new ArrayList<>();
+        recordExecutor = Executors.newSingleThreadExecutor();
 
         sharing = false;
         swap = false;
@@ -156,6 +180,14 @@ public class RTCRoomConnection {
         // Elimina le clip della sessione precedente
         RenderActivity.deleteFiles(context);
 
+        // Apre l'unica porta su cui i peer si connettono al dispositivo
+        try {
+            CallServer.open(context.getResources().getInteger(R.integer.call_port));
+        } catch (IOException e) {
+            e.printStackTrace();
+            onError(new Throwable(context.getString(R.string.connection_error)));
+        }
+
         // Cerca la fotocamera posteriore
         @NonNull
         Camera1Enumerator camera1Enumerator = new Camera1Enumerator(false);
@@ -253,15 +285,7 @@ public class RTCRoomConnection {
         btnRecord.setOnClickListener(v -> {
             if (!sharing) {
                 Log.i(TAG, "btnRecord: start");
-                // Termina condivisione video
-                stopVideo();
-                for (RTCPeerConnection peer : peers) {
-                    // Avvia condivisione video
-                    peer.startVideo();
-                    // Rinegozia
-                    peer.createOffer();
-                }
-                setRecordingButton(true);
+                startVideo();
             } else {
                 Log.i(TAG, "btnRecord: stop");
                 // Avvia il rendering
@@ -323,6 +347,66 @@ public class RTCRoomConnection {
         return isFirst(first) && first.isInitiator();
     }
 
+    /**
+     * Avvia la condivisione video verso tutti i peer.
+     * Ogni peer cambia traccia sul proprio executor, in parallelo; la registrazione locale viene
+     * avviata una sola volta.
+     */
+    private void startVideo() {
+        if (videoTrack == null) {
+            onError(new Throwable(context.getString(R.string.camera_error)));
+            return;
+        }
+
+        // Termina condivisione video
+        stopVideo();
+
+        @NonNull
+        RTCPeerConnection[] targets;
+        synchronized (this) {
+            targets = peers.toArray(new RTCPeerConnection[0]);
+        }
+
+        // Nasconde la view più piccola e mostra la propria fotocamera nella view centrale
+        rightView.setVisibility(View.INVISIBLE);
+        videoTrack.addSink(mainView);
+        recordExecutor.execute(() -> startRecording(RecordChannel.INPUT));
+        setRecordingButton(true);
+
+        // Avvia condivisione video sulle tracce già negoziate
+        DeliveryBarrier barrier = new DeliveryBarrier(targets.length, () -> Log.i(TAG, "startVideo: delivered " + getDeliveryTimes()));
+        for (RTCPeerConnection peer : targets)
+            peer.startVideo(barrier);
+    }
+
+    /**
+     * Ritorna, per ogni peer, il tempo fra l'ultimo avvio della condivisione e la conferma del
+     * primo fotogramma ricevuto.
+     *
+     * @return tempi in ms indicizzati per IP del peer (-1 se non disponibile)
+     */
+    @NonNull
+    public synchronized HashMap<String, Long> getDeliveryTimes() {
+        HashMap<String, Long> times = new HashMap<>();
+        for (RTCPeerConnection peer : peers)
+            times.put(peer.getIp(), peer.getDeliveryTime());
+        return times;
+    }
+
+    /**
+     * Ritorna, per ogni peer, il tempo fra l'ultimo avviso di condivisione e il primo fotogramma
+     * ricevuto dal peer.
+     *
+     * @return tempi in ms indicizzati per IP del peer (-1 se non disponibile)
+     */
+    @NonNull
+    public synchronized HashMap<String, Long> getTimesToFirstRemoteFrame() {
+        HashMap<String, Long> times = new HashMap<>();
+        for (RTCPeerConnection peer : peers)
+            times.put(peer.getIp(), peer.getTimeToFirstRemoteFrame());
+        return times;
+    }
+
     /**
      * Termina la condivisione video verso tutti i peer.
      */
@@ -374,14 +458,8 @@ public class RTCRoomConnection {
 
                 // Avvisa gli altri peer della connessione a un nuovo dispositivo
                 if (peer != currentPeer) {
-                    int port;
-                    if (isInitiator)
-                        port = peers.indexOf(currentPeer);
-                    else
-                        port = peers.indexOf(peer);
-
-                    // Invia l'indirizzo al peer
-                    currentPeer.addUser(peer.getIp(), context.getResources().getInteger(R.integer.call_port) + port + 1, isInitiator);
+                    // Invia l'indirizzo al peer: tutti i dispositivi ascoltano sulla stessa porta
+                    currentPeer.addUser(peer.getIp(), context.getResources().getInteger(R.integer.call_port), isInitiator);
                 } else
                     isInitiator = true;
             }
@@ -389,33 +467,40 @@ public class RTCRoomConnection {
     }
 
     /**
-     * Avvia la registrazione.
+     * Avvia la registrazione, o sposta la registrazione in corso sul nuovo ingresso.
      *
      * @param audioChannel registrazione locale o remota
      */
     public synchronized void startRecording(@Nullable RecordChannel audioChannel) {
         Log.i(TAG, "startRecording");
         VideoTrack track = null;
-        if (videos != null) {
+        if (videos != null && !closed) {
             try {
-                // Aggiunge la nuova registrazione nella lista dei video
-                final String videoName = "VID_" + videos.size() + ".mp4";
-                videos.add(videoName);
-                AudioSamplesInterceptor interceptor = null;
                 if (audioChannel == RecordChannel.INPUT) {
                     // Registrazione locale
                     track = videoTrack;
-                    interceptor = inputSamplesInterceptor;
                 } else if (audioChannel == RecordChannel.OUTPUT) {
                     // Registrazione remota
+                    track = remoteVideoTrack;
+                }
+                if (track == null) {
+                    Log.e(TAG, "startRecording: video track is null");
+                    return;
+                }
+                // L'audio comprende sempre chi riprende e chi è ripreso, qualunque sia la traccia video
+                if (audioMixer == null) {
                     if (outputSamplesInterceptor == null)
                         outputSamplesInterceptor = new OutputAudioSamplesInterceptor(audioDeviceModule);
-                    track = remoteVideoTrack;
-                    interceptor = outputSamplesInterceptor;
+                    audioMixer = new AudioMixer(inputSamplesInterceptor, outputSamplesInterceptor);
                 }
-                // Avvia la registrazione
-                mediaRecorder = new MediaRecorder(track, interceptor);
-                mediaRecorder.startRecording(new File(context.getFilesDir().getAbsolutePath(), videoName));
+                // Un solo video per tutta la stanza
+                if (sessionRecorder == null) {
+                    final String videoName = "VID_0.mp4";
+                    videos.add(videoName);
+                    sessionRecorder = new SessionRecorder(new File(context.getFilesDir().getAbsolutePath(), videoName), getRecordingProfile());
+                    clipFinalizer = new ClipFinalizer();
+                }
+                sessionRecorder.switchTo(track, audioMixer);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -423,12 +508,36 @@ public class RTCRoomConnection {
     }
 
     /**
-     * Termina la registrazione.
+     * Ritorna il profilo di registrazione della sessione, verificandolo alla prima registrazione.
+     * La risoluzione è bloccata su quella di cattura, così le tracce locali e remote vengono
+     * scalate alla stessa dimensione dell'unico encoder.
+     *
+     * @return profilo supportato dal dispositivo
+     */
+    @NonNull
+    private synchronized RecordingProfile getRecordingProfile() {
+        if (recordingProfile == null) {
+            recordingProfile = new RecordingProfile.Builder()
+                    .setPreferHevc(context.getResources().getBoolean(R.bool.record_prefer_hevc))
+                    .setVideoBitrate(context.getResources().getInteger(R.integer.record_video_bitrate))
+                    .setAudioBitrate(context.getResources().getInteger(R.integer.record_audio_bitrate))
+                    .setIFrameInterval(context.getResources().getInteger(R.integer.record_iframe_interval))
+                    .setFragmentDuration(context.getResources().getInteger(R.integer.record_fragment_duration))
+                    .setFrameRate(context.getResources().getInteger(R.integer.fps))
+                    .setResolution(context.getResources().getInteger(R.integer.width), context.getResources().getInteger(R.integer.height))
+                    .build()
+                    .resolve();
+        }
+        return recordingProfile;
+    }
+
+    /**
+     * Sospende la registrazione: il file resta aperto fino alla chiusura della stanza.
      */
     public synchronized void stopRecording() {
         Log.i(TAG, "stopRecording");
-        if (mediaRecorder != null)
-            mediaRecorder.stopRecording();
+        if (sessionRecorder != null)
+            sessionRecorder.pause();
     }
 
     /**
@@ -472,15 +581,36 @@ public class RTCRoomConnection {
     public synchronized void callActivity() {
         Log.i(TAG, "callActivity");
         if (!closed) {
+            rendering = true;
+            if (sessionRecorder != null && clipFinalizer != null) {
+                // Quando il file è completo viene verificato in background, poi passato al rendering
+                ClipFinalizer finalizer = clipFinalizer;
+                File file = sessionRecorder.getFile();
+                sessionRecorder.stop(() -> {
+                    finalizer.submit(file);
+                    finalizer.finish(this::startRenderActivity);
+                });
+            } else {
+                startRenderActivity(videos);
+            }
             dispose();
             closed = true;
-            // Esegue l'activity passando la lista dei video
+        }
+    }
+
+    /**
+     * Esegue l'activity passando la lista dei video.
+     *
+     * @param clips video pronti per il rendering
+     */
+    private void startRenderActivity(@Nullable ArrayList<String> clips) {
+        runOnUiThread(() -> {
             Intent intent = new Intent(context, RenderActivity.class);
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            intent.putExtra("videos", videos);
+            intent.putExtra("videos", clips);
             context.startActivity(intent);
             activity.finish();
-        }
+        });
     }
 
     /**
@@ -491,6 +621,13 @@ public class RTCRoomConnection {
             Log.i(TAG, "dispose");
             for (@NonNull RTCPeerConnection peer : peers)
                 peer.dispose();
+            CallServer.close();
+            recordExecutor.shutdown();
+            if (sessionRecorder != null)
+                sessionRecorder.stop(null);
+            // Senza rendering la registrazione viene scartata
+            if (clipFinalizer != null && !rendering)
+                clipFinalizer.finish(null);
 
             if (audioSource != null) {
                 Log.i(TAG, "AudioSource: dispose");
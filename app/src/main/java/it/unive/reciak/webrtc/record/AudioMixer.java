@@ -0,0 +1,128 @@
+package it.unive.reciak.webrtc.record;
+
+import android.media.AudioFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.webrtc.audio.JavaAudioDeviceModule.AudioSamples;
+import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
+
+/**
+ * Audio della registrazione con la voce locale e quella remota.
+ * Il mixer si registra sulle sorgenti quando viene aggiunta la prima callback e le stacca con l'ultima.
+ * I blocchi delle sorgenti ricevono un timestamp con AudioTimeline sullo stesso orologio, vengono
+ * allineati e sommati da PcmMixer e passati alle callback come un'unica sorgente a blocchi di 10 ms.
+ * Il formato di uscita è quello del primo blocco ricevuto.
+ */
+public class AudioMixer extends AudioSamplesInterceptor {
+    private static final String TAG = "AudioMixer";
+    // Id della callback del mixer sulle sorgenti (i registratori usano 1)
+    private static final int SOURCE_CALLBACK_ID = 2;
+    // Campioni in attesa per sorgente
+    private static final int BUFFER_MS = 500;
+    // Ritardo oltre il quale una sorgente senza campioni non viene più attesa
+    private static final int LATENCY_MS = 40;
+
+    @NonNull
+    private final AudioSamplesInterceptor[] sources;
+    @NonNull
+    private final SamplesReadyCallback[] sourceCallbacks;
+    // Stato del mixer, protetto da mixLock
+    @NonNull
+    private final Object mixLock = new Object();
+    @NonNull
+    private final AudioTimeline[] timelines;
+    @NonNull
+    private final int[] timelineRates;
+    @NonNull
+    private final int[] timelineChannels;
+    @Nullable
+    private PcmMixer mixer;
+    // Blocco di uscita, riutilizzato: le callback devono copiare i dati
+    @Nullable
+    private AudioSamples output;
+    // Inizio dell'orologio comune alle sorgenti (System.nanoTime())
+    private long startNanos = -1;
+    private long droppedBlocks;
+
+    /**
+     * Crea il mixer.
+     *
+     * @param sources sorgenti da miscelare
+     */
+    public AudioMixer(@NonNull AudioSamplesInterceptor... sources) {
+        this.sources = sources;
+        sourceCallbacks = new SamplesReadyCallback[sources.length];
+        timelines = new AudioTimeline[sources.length];
+        timelineRates = new int[sources.length];
+        timelineChannels = new int[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            int source = i;
+            sourceCallbacks[i] = audioSamples -> onSourceSamples(source, audioSamples);
+        }
+    }
+
+    @Override
+    public synchronized void attachCallback(Integer id, SamplesReadyCallback callback) throws Exception {
+        if (!hasCallbacks()) {
+            for (int i = 0; i < sources.length; i++)
+                sources[i].attachCallback(SOURCE_CALLBACK_ID, sourceCallbacks[i]);
+        }
+        super.attachCallback(id, callback);
+    }
+
+    @Override
+    public synchronized void detachCallback(Integer id) {
+        super.detachCallback(id);
+        if (!hasCallbacks()) {
+            for (AudioSamplesInterceptor source : sources)
+                source.detachCallback(SOURCE_CALLBACK_ID);
+            synchronized (mixLock) {
+                if (mixer != null)
+                    Log.i(TAG, "Mixer stopped: " + mixer.getLateFrames() + " late frames, "
+                            + mixer.getSkippedFrames() + " skipped frames, " + droppedBlocks + " blocks dropped");
+            }
+        }
+    }
+
+    /**
+     * Aggiunge un blocco di una sorgente e passa alle callback i blocchi miscelati pronti.
+     * Eseguita sul thread della sorgente.
+     */
+    private void onSourceSamples(int source, @NonNull AudioSamples audioSamples) {
+        long now = System.nanoTime();
+        byte[] data = audioSamples.getData();
+        int sampleRate = audioSamples.getSampleRate();
+        int channelCount = audioSamples.getChannelCount();
+        synchronized (mixLock) {
+            if (mixer == null) {
+                mixer = new PcmMixer(sampleRate, channelCount, sources.length, BUFFER_MS, LATENCY_MS);
+                output = new AudioSamples(AudioFormat.ENCODING_PCM_16BIT, channelCount, sampleRate,
+                        new byte[sampleRate / 100 * channelCount * 2]);
+                startNanos = now;
+                Log.i(TAG, "Mixing " + sources.length + " sources at " + sampleRate + " Hz, " + channelCount + " channels");
+            } else if (sampleRate != mixer.getSampleRate()) {
+                // Le sorgenti vengono sommate senza ricampionamento
+                if (droppedBlocks++ == 0)
+                    Log.w(TAG, "Dropping audio of source " + source + ": " + sampleRate + " Hz");
+                return;
+            }
+            if (timelines[source] == null || timelineRates[source] != sampleRate || timelineChannels[source] != channelCount) {
+                timelines[source] = new AudioTimeline(sampleRate, channelCount);
+                timelineRates[source] = sampleRate;
+                timelineChannels[source] = channelCount;
+            }
+            long timeUs = timelines[source].next(data.length, Math.max(0, now - startNanos) / 1000);
+            mixer.write(source, data, data.length, channelCount, timeUs);
+
+            byte[] block = output.getData();
+            int blockFrames = block.length / (2 * mixer.getChannelCount());
+            while (mixer.available() >= blockFrames) {
+                mixer.read(block);
+                super.onWebRtcAudioRecordSamplesReady(output);
+            }
+        }
+    }
+}
@@ -1,26 +1,61 @@
 package it.unive.reciak.webrtc.record;
 
-import android.annotation.SuppressLint;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
 
 import org.webrtc.audio.JavaAudioDeviceModule.AudioSamples;
 import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
 
-import java.util.HashMap;
-
 /**
  * Gestione delle callback di JavaAudioDeviceModule per la registrazione locale.
  * JavaAudioDeviceModule consente l'aggiunta delle callback durante la costruzione dell'oggetto stesso.
  * Questa classe consente di aggiungere le callback successivamente.
+ * Le callback sono in un array copy-on-write: il thread audio le chiama senza lock e senza allocazioni,
+ * misurando il tempo di ognuna.
  */
 @SuppressWarnings("WeakerAccess")
 public class AudioSamplesInterceptor implements SamplesReadyCallback {
-    @SuppressLint("UseSparseArrays")
-    protected final HashMap<Integer, SamplesReadyCallback> callbacks = new HashMap<>();
+    private static final String TAG = "AudioSamplesInterceptor";
+    // Durata oltre la quale una callback rallenta il thread audio (un blocco dura 10 ms)
+    private static final long SLOW_CALLBACK_NS = 5000000L;
+
+    /**
+     * Callback registrata, con i tempi di esecuzione (scritti solo dal thread audio).
+     */
+    private static final class Entry {
+        final int id;
+        @NonNull
+        final SamplesReadyCallback callback;
+        long calls;
+        long totalNanos;
+        long maxNanos;
+        long slowCalls;
+
+        Entry(int id, @NonNull SamplesReadyCallback callback) {
+            this.id = id;
+            this.callback = callback;
+        }
+    }
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    // Callback registrate: l'array non viene modificato, attach e detach ne pubblicano uno nuovo
+    @NonNull
+    private volatile Entry[] entries = NO_ENTRIES;
 
     @Override
     public void onWebRtcAudioRecordSamplesReady(AudioSamples audioSamples) {
-        for (SamplesReadyCallback callback : callbacks.values()) {
-            callback.onWebRtcAudioRecordSamplesReady(audioSamples);
+        for (Entry entry : entries) {
+            long start = System.nanoTime();
+            entry.callback.onWebRtcAudioRecordSamplesReady(audioSamples);
+            long elapsed = System.nanoTime() - start;
+            entry.calls++;
+            entry.totalNanos += elapsed;
+            if (elapsed > entry.maxNanos)
+                entry.maxNanos = elapsed;
+            if (elapsed > SLOW_CALLBACK_NS && entry.slowCalls++ == 0)
+                Log.w(TAG, "Callback " + entry.id + " is slow: " + elapsed / 1000 + " us");
         }
     }
 
@@ -31,8 +66,20 @@ public class AudioSamplesInterceptor implements SamplesReadyCallback {
      * @param callback callback
      * @throws Exception impossibile aggiungere la callback
      */
-    public void attachCallback(Integer id, SamplesReadyCallback callback) throws Exception {
-        callbacks.put(id, callback);
+    public synchronized void attachCallback(Integer id, SamplesReadyCallback callback) throws Exception {
+        Entry[] current = entries;
+        int index = indexOf(current, id);
+        Entry[] updated;
+        if (index >= 0) {
+            // Sostituisce la callback con lo stesso id
+            updated = current.clone();
+        } else {
+            updated = new Entry[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            index = current.length;
+        }
+        updated[index] = new Entry(id, callback);
+        entries = updated;
     }
 
     /**
@@ -40,7 +87,36 @@ public class AudioSamplesInterceptor implements SamplesReadyCallback {
      *
      * @param id id callback
      */
-    public void detachCallback(Integer id) {
-        callbacks.remove(id);
+    public synchronized void detachCallback(Integer id) {
+        Entry[] current = entries;
+        int index = indexOf(current, id);
+        if (index < 0)
+            return;
+        Entry[] updated = new Entry[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        entries = updated;
+
+        Entry entry = current[index];
+        if (entry.calls > 0)
+            Log.i(TAG, "Callback " + id + ": " + entry.calls + " calls, average " + entry.totalNanos / entry.calls / 1000
+                    + " us, max " + entry.maxNanos / 1000 + " us, " + entry.slowCalls + " slow");
+    }
+
+    /**
+     * Ritorna se ci sono callback registrate.
+     *
+     * @return true se almeno una callback è registrata
+     */
+    protected boolean hasCallbacks() {
+        return entries.length > 0;
+    }
+
+    private static int indexOf(@NonNull Entry[] entries, int id) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].id == id)
+                return i;
+        }
+        return -1;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,102 @@
+package it.unive.reciak.webrtc.record;
+
+/**
+ * Timestamp dei blocchi audio PCM a 16 bit, calcolati dal numero di campioni.
+ * Il tempo di arrivo dei blocchi (sull'orologio della sessione) serve solo come riferimento:
+ * la deriva fra il clock della scheda audio e quello di sistema viene misurata su una finestra di
+ * blocchi e corretta gradualmente, mentre un'interruzione della sorgente viene lasciata in silenzio.
+ */
+final class AudioTimeline {
+    // Ritardo oltre il quale la sorgente è considerata interrotta (cambio di ingresso)
+    static final long GAP_US = 100000L;
+    // Blocchi su cui viene misurata la deriva (circa un secondo con blocchi da 10 ms)
+    static final int DRIFT_WINDOW = 100;
+    // Correzione massima della deriva per finestra
+    static final long MAX_SLEW_US = 5000L;
+
+    private final int sampleRate;
+    private final int bytesPerFrame;
+    // Arrivo del primo blocco
+    private long originUs = -1;
+    // Campioni (per canale) dall'inizio
+    private long samples;
+    // Spostamento accumulato da interruzioni e correzioni
+    private long offsetUs;
+    // Minimo anticipo dell'arrivo sul timestamp nella finestra corrente
+    private long windowMinErrorUs = Long.MAX_VALUE;
+    private int windowBlocks;
+    // Statistiche
+    private long driftCorrectionUs;
+    private long gapsUs;
+
+    /**
+     * Crea la timeline.
+     *
+     * @param sampleRate frequenza di campionamento
+     * @param channelCount numero di canali
+     */
+    AudioTimeline(int sampleRate, int channelCount) {
+        if (sampleRate <= 0 || channelCount <= 0)
+            throw new IllegalArgumentException("Invalid audio format: " + sampleRate + " Hz, " + channelCount + " channels");
+        this.sampleRate = sampleRate;
+        bytesPerFrame = channelCount * 2;
+    }
+
+    /**
+     * Ritorna il timestamp di un blocco e avanza della sua durata.
+     *
+     * @param size dimensione del blocco in byte
+     * @param arrivalUs arrivo del blocco sull'orologio della sessione
+     * @return timestamp del primo campione del blocco in microsecondi
+     */
+    long next(int size, long arrivalUs) {
+        if (originUs == -1)
+            originUs = arrivalUs;
+        long timeUs = originUs + offsetUs + samples * 1000000L / sampleRate;
+        long frames = size / bytesPerFrame;
+        // Il ritardo dell'arrivo è sempre positivo: il minimo sulla finestra stima la deriva
+        long errorUs = arrivalUs - timeUs;
+        if (errorUs > GAP_US) {
+            // Sorgente interrotta: il tempo trascorso resta in silenzio per non anticipare l'audio
+            offsetUs += errorUs;
+            gapsUs += errorUs;
+            timeUs = arrivalUs;
+            resetWindow();
+        } else {
+            windowMinErrorUs = Math.min(windowMinErrorUs, errorUs);
+            if (++windowBlocks == DRIFT_WINDOW) {
+                // Un rallentamento non può superare metà blocco, così i timestamp restano crescenti
+                long maxBackUs = Math.min(MAX_SLEW_US, frames * 1000000L / sampleRate / 2);
+                long slewUs = Math.max(-maxBackUs, Math.min(MAX_SLEW_US, windowMinErrorUs));
+                offsetUs += slewUs;
+                driftCorrectionUs += slewUs;
+                resetWindow();
+            }
+        }
+        samples += frames;
+        return timeUs;
+    }
+
+    /**
+     * Ritorna la correzione totale applicata per la deriva.
+     *
+     * @return correzione in microsecondi (positiva se l'audio era in ritardo)
+     */
+    long getDriftCorrectionUs() {
+        return driftCorrectionUs;
+    }
+
+    /**
+     * Ritorna la durata totale delle interruzioni della sorgente.
+     *
+     * @return silenzio inserito in microsecondi
+     */
+    long getGapsUs() {
+        return gapsUs;
+    }
+
+    private void resetWindow() {
+        windowMinErrorUs = Long.MAX_VALUE;
+        windowBlocks = 0;
+    }
+}
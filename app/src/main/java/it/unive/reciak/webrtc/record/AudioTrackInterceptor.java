@@ -5,23 +5,50 @@ import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.os.Build;
+import android.os.Process;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.webrtc.audio.JavaAudioDeviceModule.AudioSamples;
 import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Sottoclasse di AudioTrack.
  * Aggiunge le chiamate alle callback per catturare l'audio da registrare.
+ * Il thread audio di WebRTC copia ogni blocco in uno slot riutilizzato e lo passa a un thread
+ * dedicato, che chiama la callback: la riproduzione non alloca memoria e non attende la registrazione.
+ * I dati passati alla callback sono validi solo durante la chiamata.
  *
  * @see <a href="https://github.com/flutter-webrtc/flutter-webrtc/tree/master/android/src/main/java/com/cloudwebrtc/webrtc/record">Sorgente originale</a>
  */
 public final class AudioTrackInterceptor extends AudioTrack {
+    private static final String TAG = "AudioTrackInterceptor";
+    // Blocchi in attesa del thread del tap: WebRTC scrive un blocco ogni 10 ms
+    private static final int TAP_SLOTS = 16;
+
     final public AudioTrack originalTrack;
     final private SamplesReadyCallback callback;
+    // Formato della traccia originale, fisso per tutta la riproduzione
+    private final int audioFormat;
+    private final int channelCount;
+    private final int sampleRate;
+
+    // Ring single-producer/single-consumer: il thread audio scrive nello slot head, il thread
+    // del tap legge lo slot tail e lo libera solo dopo la callback
+    @NonNull
+    private final AudioSamples[] slots = new AudioSamples[TAP_SLOTS];
+    private volatile long head;
+    private volatile long tail;
+    // Blocchi scartati perché il ring era pieno
+    private volatile int droppedBlocks;
+    @NonNull
+    private final Thread tapThread;
+    private volatile boolean isTapping = true;
 
     @SuppressWarnings({"deprecation", "RedundantSuppression"})
     public AudioTrackInterceptor(@NonNull AudioTrack originalTrack, @NonNull SamplesReadyCallback callback) {
@@ -29,37 +56,100 @@ public final class AudioTrackInterceptor extends AudioTrack {
 
         this.originalTrack = originalTrack;
         this.callback = callback;
+        audioFormat = originalTrack.getAudioFormat();
+        channelCount = originalTrack.getChannelCount();
+        sampleRate = originalTrack.getSampleRate();
+        tapThread = new Thread(this::runTap, "AudioTap");
+        tapThread.start();
     }
 
     @Override
     public int write(@NonNull byte[] audioData, int offsetInBytes, int sizeInBytes) {
-        // Chiama la callback della registrazione
-        callback.onWebRtcAudioRecordSamplesReady(new AudioSamples(
-                originalTrack.getAudioFormat(),
-                originalTrack.getChannelCount(),
-                originalTrack.getSampleRate(),
-                audioData
-        ));
+        // Passa una copia del blocco alla registrazione
+        byte[] slot = nextSlot(sizeInBytes);
+        if (slot != null) {
+            System.arraycopy(audioData, offsetInBytes, slot, 0, sizeInBytes);
+            publishSlot();
+        }
         return originalTrack.write(audioData, offsetInBytes, sizeInBytes);
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     @Override
     public int write(@NonNull ByteBuffer audioData, int sizeInBytes, int writeMode) {
-        // Chiama la callback della registrazione
-        byte[] trimmed = new byte[sizeInBytes];
-        int position = audioData.position();
-        audioData.get(trimmed, 0, sizeInBytes);
-        audioData.position(position);
-        callback.onWebRtcAudioRecordSamplesReady(new AudioSamples(
-                originalTrack.getAudioFormat(),
-                originalTrack.getChannelCount(),
-                originalTrack.getSampleRate(),
-                trimmed
-        ));
+        // Passa una copia del blocco alla registrazione
+        byte[] slot = nextSlot(sizeInBytes);
+        if (slot != null) {
+            int position = audioData.position();
+            audioData.get(slot, 0, sizeInBytes);
+            audioData.position(position);
+            publishSlot();
+        }
         return originalTrack.write(audioData, sizeInBytes, writeMode);
     }
 
+    /**
+     * Ritorna lo slot libero in cui copiare il prossimo blocco (thread audio).
+     *
+     * @param size dimensione del blocco
+     * @return array dello slot, null se il tap è in ritardo e il blocco va scartato
+     */
+    @Nullable
+    private byte[] nextSlot(int size) {
+        if (!isTapping)
+            return null;
+        long next = head;
+        if (next - tail == TAP_SLOTS) {
+            droppedBlocks++;
+            return null;
+        }
+        int index = (int) (next % TAP_SLOTS);
+        AudioSamples samples = slots[index];
+        if (samples == null || samples.getData().length != size) {
+            // Primo giro del ring o blocco di dimensione diversa: unica allocazione
+            samples = new AudioSamples(audioFormat, channelCount, sampleRate, new byte[size]);
+            slots[index] = samples;
+        }
+        return samples.getData();
+    }
+
+    /**
+     * Rende visibile al tap lo slot appena scritto (thread audio).
+     */
+    private void publishSlot() {
+        head = head + 1;
+        LockSupport.unpark(tapThread);
+    }
+
+    /**
+     * Thread del tap: chiama la callback per ogni blocco, fuori dal thread audio.
+     */
+    private void runTap() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        while (isTapping) {
+            long next = tail;
+            if (next == head) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                callback.onWebRtcAudioRecordSamplesReady(slots[(int) (next % TAP_SLOTS)]);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            tail = next + 1;
+        }
+        Log.i(TAG, "Tap stopped: " + droppedBlocks + " blocks dropped");
+    }
+
+    /**
+     * Termina il thread del tap. I blocchi successivi vengono solo riprodotti.
+     */
+    public void stopTap() {
+        isTapping = false;
+        LockSupport.unpark(tapThread);
+    }
+
     // Stub traccia audio originale
     @Override
     public int getPlayState() {
@@ -96,6 +186,7 @@ public final class AudioTrackInterceptor extends AudioTrack {
 
     @Override
     public void release() {
+        stopTap();
         originalTrack.release();
     }
 
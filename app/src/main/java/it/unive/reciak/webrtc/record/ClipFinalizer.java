@@ -0,0 +1,93 @@
+package it.unive.reciak.webrtc.record;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Preparazione delle registrazioni completate, durante la chiamata.
+ * Ogni clip viene verificata leggendone l'indice (moov e frammenti) su un thread a bassa priorità,
+ * così RenderActivity riceve solo clip integre e non ripete il lavoro alla fine della chiamata.
+ */
+public class ClipFinalizer {
+    private static final String TAG = "ClipFinalizer";
+
+    /**
+     * Risultato della preparazione.
+     */
+    public interface Callback {
+        /**
+         * Chiamata sul thread del finalizer quando tutte le clip inviate sono pronte.
+         *
+         * @param clips nomi delle clip valide, nell'ordine di invio
+         */
+        void onFinished(@NonNull ArrayList<String> clips);
+    }
+
+    @NonNull
+    private final HandlerThread thread;
+    @NonNull
+    private final Handler handler;
+    // Clip pronte (thread del finalizer)
+    @NonNull
+    private final ArrayList<String> prepared = new ArrayList<>();
+    private long preparedDurationUs;
+
+    public ClipFinalizer() {
+        thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Aggiunge una clip completata.
+     *
+     * @param clip file della clip, già chiuso dal muxer
+     */
+    public void submit(@NonNull File clip) {
+        handler.post(() -> prepare(clip));
+    }
+
+    /**
+     * Termina il finalizer dopo le clip già inviate.
+     *
+     * @param callback eseguita con le clip pronte, null per scartarle
+     */
+    public void finish(@Nullable Callback callback) {
+        handler.post(() -> {
+            Log.i(TAG, prepared.size() + " clips ready, " + preparedDurationUs / 1000 + " ms");
+            if (callback != null)
+                callback.onFinished(new ArrayList<>(prepared));
+            thread.quitSafely();
+        });
+    }
+
+    /**
+     * Verifica una clip: le clip illeggibili o vuote non vengono passate al rendering.
+     */
+    private void prepare(@NonNull File clip) {
+        long start = System.nanoTime();
+        try {
+            long durationUs = Mp4Concatenator.getDurationUs(clip);
+            if (durationUs == 0) {
+                Log.w(TAG, "Skipping empty clip " + clip.getName());
+                return;
+            }
+            prepared.add(clip.getName());
+            preparedDurationUs += durationUs;
+            Log.i(TAG, "Clip " + clip.getName() + " (" + durationUs / 1000 + " ms) prepared in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            Log.e(TAG, "Skipping invalid clip " + clip.getName());
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,829 @@
+package it.unive.reciak.webrtc.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Scrittura di un MP4 frammentato (ISO BMFF): dopo l'intestazione (ftyp e moov senza campioni)
+ * i campioni vengono scritti in coppie moof/mdat ogni fragmentDuration.
+ * Ogni frammento completo è leggibile anche se l'app viene terminata durante la registrazione,
+ * e può essere letto mentre la registrazione continua.
+ * I video H.264/HEVC devono essere senza B-frame (timestamp crescenti), come quelli prodotti
+ * dagli encoder di MediaCodec con i profili usati dall'app.
+ */
+public final class FragmentedMp4Writer implements SampleWriter {
+    private static final String TAG = "FragmentedMp4Writer";
+
+    // Scale temporali (unità al secondo)
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    // Campioni per frame AAC
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    // Flag dei campioni (ISO/IEC 14496-12, 8.8.3.1): campione indipendente o dipendente
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    // Flag di trun: data_offset, durata, dimensione e flag di ogni campione
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    // Flag di tfhd: offset relativi all'inizio del moof
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    // Anticipo ammesso sul taglio: i frame chiave arrivano con qualche ms di jitter rispetto al GOP
+    private static final long CUT_TOLERANCE_US = 50000;
+    // Tipi di NAL HEVC
+    private static final int HEVC_NAL_VPS = 32;
+    private static final int HEVC_NAL_SPS = 33;
+    private static final int HEVC_NAL_PPS = 34;
+
+    @NonNull
+    private final FileOutputStream output;
+    @NonNull
+    private final FileChannel channel;
+    // Durata minima di un frammento
+    private final long fragmentDurationUs;
+    @NonNull
+    private final ArrayList<Track> tracks;
+    // Buffer dei box
+    @NonNull
+    private final Mp4BoxWriter boxes;
+
+    private boolean started;
+    private boolean released;
+    // Numero dell'ultimo frammento scritto
+    private int sequenceNumber;
+    // Timestamp del primo campione del frammento corrente
+    private long fragmentStartUs = -1;
+    // Copia del campione video da convertire
+    @NonNull
+    private byte[] scratch = new byte[64 * 1024];
+
+    /**
+     * Traccia del file e campioni del frammento corrente.
+     */
+    private static final class Track {
+        final int id;
+        @NonNull
+        final String mime;
+        final boolean video;
+        final int timescale;
+        // Video: dimensioni e parameter set (SPS/PPS, VPS/SPS/PPS) senza start code
+        int width;
+        int height;
+        @NonNull
+        byte[][] parameterSets = new byte[0][];
+        // Audio: canali, frequenza e AudioSpecificConfig
+        int channelCount;
+        int sampleRate;
+        @NonNull
+        byte[] audioConfig = new byte[0];
+
+        // Dati dei campioni del frammento corrente
+        @NonNull
+        byte[] data = new byte[64 * 1024];
+        int dataSize;
+        // Timestamp (nella scala della traccia), dimensioni e flag dei campioni
+        @NonNull
+        long[] times = new long[64];
+        @NonNull
+        int[] sizes = new int[64];
+        @NonNull
+        boolean[] sync = new boolean[64];
+        int count;
+        // Tempo di decodifica del primo campione del frammento
+        long decodeTime = -1;
+        // Durata dell'ultimo campione scritto
+        long lastDuration;
+        // Posizione del data_offset del trun nel moof
+        int dataOffsetPosition;
+
+        Track(int id, @NonNull String mime, boolean video, int timescale) {
+            this.id = id;
+            this.mime = mime;
+            this.video = video;
+            this.timescale = timescale;
+        }
+
+        /**
+         * Aggiunge un campione ai dati del frammento.
+         *
+         * @param time timestamp nella scala della traccia
+         * @param size dimensione dei dati già scritti da reserve()
+         * @param keyFrame campione indipendente
+         */
+        void addSample(long time, int size, boolean keyFrame) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                sync = Arrays.copyOf(sync, count * 2);
+            }
+            if (decodeTime == -1)
+                decodeTime = time;
+            times[count] = time;
+            sizes[count] = size;
+            sync[count] = keyFrame;
+            count++;
+            dataSize += size;
+        }
+
+        /**
+         * Garantisce lo spazio per altri dati.
+         *
+         * @param size byte da aggiungere
+         */
+        void reserve(int size) {
+            if (dataSize + size > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + size));
+        }
+
+        /**
+         * Durata di un campione del frammento.
+         *
+         * @param index indice del campione
+         * @param nextTime timestamp del campione successivo al frammento o -1 se non noto
+         * @return durata nella scala della traccia
+         */
+        long duration(int index, long nextTime) {
+            if (!video) {
+                // Le interruzioni dell'audio restano nella durata del campione precedente;
+                // l'ultimo campione del frammento dura un frame AAC e il frammento successivo
+                // riparte dal suo timestamp reale (tfdt)
+                long delta = index + 1 < count ? times[index + 1] - times[index] : 0;
+                return delta > 0 ? delta : AAC_FRAME_SAMPLES;
+            }
+            if (index + 1 < count)
+                return times[index + 1] - times[index];
+            if (nextTime > times[index])
+                return nextTime - times[index];
+            // Ultimo campione della registrazione: ripete la durata precedente
+            return index > 0 ? times[index] - times[index - 1] : lastDuration > 0 ? lastDuration : timescale / 30;
+        }
+
+        /**
+         * Svuota il frammento.
+         *
+         * @param nextDecodeTime tempo di decodifica del primo campione del frammento successivo
+         */
+        void clear(long nextDecodeTime) {
+            dataSize = 0;
+            count = 0;
+            decodeTime = nextDecodeTime;
+        }
+    }
+
+    /**
+     * Crea il file di output.
+     *
+     * @param outputFile file da scrivere
+     * @param fragmentDurationUs durata minima di un frammento; per il video i frammenti iniziano
+     *                           sempre con un frame chiave
+     * @throws IOException impossibile creare il file
+     */
+    public FragmentedMp4Writer(@NonNull File outputFile, long fragmentDurationUs) throws IOException {
+        if (fragmentDurationUs <= 0)
+            throw new IllegalArgumentException("Fragment duration must be positive");
+        output = new FileOutputStream(outputFile);
+        channel = output.getChannel();
+        this.fragmentDurationUs = fragmentDurationUs;
+        tracks = new ArrayList<>();
+        boxes = new Mp4BoxWriter(4096);
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat format) {
+        @Nullable
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime) || MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime)) {
+            ArrayList<byte[]> nals = new ArrayList<>();
+            for (String key : new String[]{"csd-0", "csd-1"}) {
+                if (format.containsKey(key))
+                    nals.addAll(splitAnnexB(toArray(format.getByteBuffer(key))));
+            }
+            return addVideoTrack(mime, format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), nals.toArray(new byte[0][]));
+        }
+        if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            return addAudioTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), toArray(format.getByteBuffer("csd-0")));
+        }
+        throw new IllegalArgumentException("Unsupported format " + mime);
+    }
+
+    /**
+     * Aggiunge una traccia video H.264 o HEVC.
+     *
+     * @param mime MediaFormat.MIMETYPE_VIDEO_AVC o MediaFormat.MIMETYPE_VIDEO_HEVC
+     * @param width larghezza
+     * @param height altezza
+     * @param parameterSets SPS e PPS (H.264) o VPS, SPS e PPS (HEVC) senza start code
+     * @return indice della traccia
+     */
+    public int addVideoTrack(@NonNull String mime, int width, int height, @NonNull byte[][] parameterSets) {
+        checkNotStarted();
+        Track track = new Track(tracks.size() + 1, mime, true, VIDEO_TIMESCALE);
+        track.width = width;
+        track.height = height;
+        track.parameterSets = parameterSets;
+        tracks.add(track);
+        return tracks.size() - 1;
+    }
+
+    /**
+     * Aggiunge una traccia audio AAC.
+     *
+     * @param sampleRate frequenza di campionamento
+     * @param channelCount numero di canali
+     * @param audioSpecificConfig configurazione del decoder (csd-0)
+     * @return indice della traccia
+     */
+    public int addAudioTrack(int sampleRate, int channelCount, @NonNull byte[] audioSpecificConfig) {
+        checkNotStarted();
+        Track track = new Track(tracks.size() + 1, MediaFormat.MIMETYPE_AUDIO_AAC, false, sampleRate);
+        track.sampleRate = sampleRate;
+        track.channelCount = channelCount;
+        track.audioConfig = audioSpecificConfig;
+        tracks.add(track);
+        return tracks.size() - 1;
+    }
+
+    /**
+     * Scrive l'intestazione del file (ftyp e moov).
+     *
+     * @throws IOException errore di scrittura
+     */
+    @Override
+    public void start() throws IOException {
+        checkNotStarted();
+        if (tracks.isEmpty())
+            throw new IllegalStateException("No tracks");
+        started = true;
+
+        boxes.reset();
+        writeFtyp();
+        writeMoov();
+        boxes.writeTo(channel);
+    }
+
+    @Override
+    public void writeSampleData(int track, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) throws IOException {
+        // La configurazione è già nell'intestazione, il campione di fine stream è vuoto
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0)
+            return;
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        writeSample(track, data, info.presentationTimeUs, (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+    }
+
+    /**
+     * Scrive un campione. Se il frammento corrente ha raggiunto la durata viene scritto su file:
+     * con una traccia video il taglio avviene sul frame chiave successivo.
+     *
+     * @param trackIndex indice della traccia
+     * @param data dati del campione (fra position e limit); il video è in formato Annex B
+     * @param presentationTimeUs timestamp in microsecondi
+     * @param keyFrame frame chiave (ignorato per l'audio)
+     * @throws IOException errore di scrittura
+     */
+    public void writeSample(int trackIndex, @NonNull ByteBuffer data, long presentationTimeUs, boolean keyFrame) throws IOException {
+        if (!started || released)
+            throw new IllegalStateException("Writer not started");
+        Track track = tracks.get(trackIndex);
+
+        if (fragmentStartUs == -1)
+            fragmentStartUs = presentationTimeUs;
+        // Taglia il frammento sul frame chiave (o sull'audio, se non c'è video)
+        boolean cutPoint = track.video ? keyFrame : !hasVideo();
+        if (cutPoint && presentationTimeUs - fragmentStartUs + CUT_TOLERANCE_US >= fragmentDurationUs && hasSamples()) {
+            writeFragment(presentationTimeUs);
+            fragmentStartUs = presentationTimeUs;
+        }
+
+        long time = presentationTimeUs * track.timescale / 1000000L;
+        int size;
+        if (track.video)
+            size = appendLengthPrefixed(track, data);
+        else {
+            size = data.remaining();
+            track.reserve(size);
+            data.get(track.data, track.dataSize, size);
+        }
+        track.addSample(time, size, !track.video || keyFrame);
+    }
+
+    /**
+     * Scrive l'ultimo frammento e chiude il file.
+     */
+    @Override
+    public void release() {
+        if (released)
+            return;
+        released = true;
+        try {
+            if (started && hasSamples())
+                writeFragment(-1);
+            Log.i(TAG, "Closed after " + sequenceNumber + " fragments");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Ritorna il numero di frammenti scritti.
+     *
+     * @return frammenti completi nel file
+     */
+    public int getFragmentCount() {
+        return sequenceNumber;
+    }
+
+    private void checkNotStarted() {
+        if (started)
+            throw new IllegalStateException("Writer already started");
+    }
+
+    private boolean hasVideo() {
+        for (Track track : tracks) {
+            if (track.video)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean hasSamples() {
+        for (Track track : tracks) {
+            if (track.count > 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Scrive il frammento corrente (moof e mdat) e lo rende persistente.
+     *
+     * @param nextTimeUs timestamp del primo campione del frammento successivo o -1
+     * @throws IOException errore di scrittura
+     */
+    private void writeFragment(long nextTimeUs) throws IOException {
+        sequenceNumber++;
+        boxes.reset();
+
+        boxes.startBox("moof");
+        boxes.startFullBox("mfhd", 0, 0).putInt(sequenceNumber).endBox();
+        long[] nextDecodeTimes = new long[tracks.size()];
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            long nextTime = nextTimeUs != -1 ? nextTimeUs * track.timescale / 1000000L : -1;
+            long decodeTime = track.decodeTime;
+            if (track.count > 0) {
+                boxes.startBox("traf");
+                boxes.startFullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).putInt(track.id).endBox();
+                boxes.startFullBox("tfdt", 1, 0).putLong(track.decodeTime).endBox();
+                boxes.startFullBox("trun", 0, TRUN_FLAGS).putInt(track.count);
+                track.dataOffsetPosition = boxes.position();
+                boxes.putInt(0);
+                for (int j = 0; j < track.count; j++) {
+                    long duration = track.duration(j, nextTime);
+                    boxes.putInt((int) duration)
+                            .putInt(track.sizes[j])
+                            .putInt(track.sync[j] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                    decodeTime += duration;
+                    track.lastDuration = duration;
+                }
+                boxes.endBox();
+                boxes.endBox();
+            }
+            // L'audio riparte dal timestamp del suo primo campione, per non perdere le interruzioni
+            if (!track.video)
+                nextDecodeTimes[i] = -1;
+            else
+                nextDecodeTimes[i] = track.count > 0 ? decodeTime : track.decodeTime;
+        }
+        boxes.endBox();
+
+        // Gli offset dei dati partono dall'inizio del moof (default-base-is-moof)
+        int offset = boxes.position() + 8;
+        for (Track track : tracks) {
+            if (track.count > 0) {
+                boxes.setInt(track.dataOffsetPosition, offset);
+                offset += track.dataSize;
+            }
+        }
+
+        boxes.putInt(offset - boxes.position()).putFourCc("mdat");
+        boxes.writeTo(channel);
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            ByteBuffer data = ByteBuffer.wrap(track.data, 0, track.dataSize);
+            while (data.hasRemaining())
+                channel.write(data);
+            track.clear(nextDecodeTimes[i]);
+        }
+        // Il frammento resta leggibile anche se l'app viene terminata
+        channel.force(false);
+    }
+
+    /**
+     * Intestazione del file.
+     */
+    private void writeFtyp() {
+        boxes.startBox("ftyp")
+                .putFourCc("isom")
+                .putInt(0x200)
+                .putFourCc("isom")
+                .putFourCc("iso6")
+                .putFourCc("mp41")
+                .endBox();
+    }
+
+    /**
+     * Descrizione delle tracce, senza campioni (mvex indica che seguono frammenti).
+     */
+    private void writeMoov() {
+        boxes.startBox("moov");
+
+        boxes.startFullBox("mvhd", 0, 0)
+                .putInt(0)
+                .putInt(0)
+                .putInt(MOVIE_TIMESCALE)
+                .putInt(0)
+                .putInt(0x00010000)
+                .putShort(0x0100)
+                .putZeros(10);
+        putMatrix();
+        boxes.putZeros(24)
+                .putInt(tracks.size() + 1)
+                .endBox();
+
+        for (Track track : tracks)
+            writeTrak(track);
+
+        boxes.startBox("mvex");
+        for (Track track : tracks) {
+            boxes.startFullBox("trex", 0, 0)
+                    .putInt(track.id)
+                    .putInt(1)
+                    .putInt(0)
+                    .putInt(0)
+                    .putInt(0)
+                    .endBox();
+        }
+        boxes.endBox();
+
+        boxes.endBox();
+    }
+
+    private void writeTrak(@NonNull Track track) {
+        boxes.startBox("trak");
+
+        boxes.startFullBox("tkhd", 0, 0x000003)
+                .putInt(0)
+                .putInt(0)
+                .putInt(track.id)
+                .putInt(0)
+                .putInt(0)
+                .putZeros(8)
+                .putShort(0)
+                .putShort(0)
+                .putShort(track.video ? 0 : 0x0100)
+                .putShort(0);
+        putMatrix();
+        boxes.putInt(track.width << 16)
+                .putInt(track.height << 16)
+                .endBox();
+
+        boxes.startBox("mdia");
+        boxes.startFullBox("mdhd", 0, 0)
+                .putInt(0)
+                .putInt(0)
+                .putInt(track.timescale)
+                .putInt(0)
+                // Lingua "und"
+                .putShort(0x55C4)
+                .putShort(0)
+                .endBox();
+        boxes.startFullBox("hdlr", 0, 0)
+                .putInt(0)
+                .putFourCc(track.video ? "vide" : "soun")
+                .putZeros(12)
+                .putBytes((track.video ? "VideoHandler" : "SoundHandler").getBytes(StandardCharsets.US_ASCII))
+                .putByte(0)
+                .endBox();
+
+        boxes.startBox("minf");
+        if (track.video)
+            boxes.startFullBox("vmhd", 0, 1).putShort(0).putZeros(6).endBox();
+        else
+            boxes.startFullBox("smhd", 0, 0).putShort(0).putShort(0).endBox();
+        boxes.startBox("dinf");
+        boxes.startFullBox("dref", 0, 0).putInt(1);
+        boxes.startFullBox("url ", 0, 1).endBox();
+        boxes.endBox();
+        boxes.endBox();
+
+        boxes.startBox("stbl");
+        boxes.startFullBox("stsd", 0, 0).putInt(1);
+        if (track.video)
+            writeVisualSampleEntry(track);
+        else
+            writeAudioSampleEntry(track);
+        boxes.endBox();
+        boxes.startFullBox("stts", 0, 0).putInt(0).endBox();
+        boxes.startFullBox("stsc", 0, 0).putInt(0).endBox();
+        boxes.startFullBox("stsz", 0, 0).putInt(0).putInt(0).endBox();
+        boxes.startFullBox("stco", 0, 0).putInt(0).endBox();
+        boxes.endBox();
+
+        boxes.endBox();
+        boxes.endBox();
+        boxes.endBox();
+    }
+
+    private void writeVisualSampleEntry(@NonNull Track track) {
+        boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(track.mime);
+        boxes.startBox(hevc ? "hvc1" : "avc1")
+                .putZeros(6)
+                .putShort(1)
+                .putZeros(16)
+                .putShort(track.width)
+                .putShort(track.height)
+                .putInt(0x00480000)
+                .putInt(0x00480000)
+                .putInt(0)
+                .putShort(1)
+                .putZeros(32)
+                .putShort(0x0018)
+                .putShort(0xFFFF);
+        if (hevc)
+            writeHvcC(track.parameterSets);
+        else
+            writeAvcC(track.parameterSets);
+        boxes.endBox();
+    }
+
+    /**
+     * Configurazione del decoder H.264 (ISO/IEC 14496-15, 5.3.3).
+     *
+     * @param parameterSets SPS e PPS
+     */
+    private void writeAvcC(@NonNull byte[][] parameterSets) {
+        ArrayList<byte[]> sps = new ArrayList<>();
+        ArrayList<byte[]> pps = new ArrayList<>();
+        for (byte[] nal : parameterSets) {
+            int type = nal[0] & 0x1F;
+            if (type == 7)
+                sps.add(nal);
+            else if (type == 8)
+                pps.add(nal);
+        }
+        if (sps.isEmpty() || sps.get(0).length < 4)
+            throw new IllegalArgumentException("Missing SPS");
+
+        byte[] first = sps.get(0);
+        int profile = first[1] & 0xFF;
+        boxes.startBox("avcC")
+                .putByte(1)
+                .putByte(profile)
+                .putByte(first[2])
+                .putByte(first[3])
+                // Lunghezza dei NAL su 4 byte
+                .putByte(0xFF)
+                .putByte(0xE0 | sps.size());
+        for (byte[] nal : sps)
+            boxes.putShort(nal.length).putBytes(nal);
+        boxes.putByte(pps.size());
+        for (byte[] nal : pps)
+            boxes.putShort(nal.length).putBytes(nal);
+        // Profili High: formato 4:2:0 a 8 bit, come prodotto dagli encoder su Surface
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 144)
+            boxes.putByte(0xFD).putByte(0xF8).putByte(0xF8).putByte(0);
+        boxes.endBox();
+    }
+
+    /**
+     * Configurazione del decoder HEVC (ISO/IEC 14496-15, 8.3.3). Profilo e livello vengono letti
+     * dall'SPS.
+     *
+     * @param parameterSets VPS, SPS e PPS
+     */
+    private void writeHvcC(@NonNull byte[][] parameterSets) {
+        @Nullable
+        byte[] sps = null;
+        for (byte[] nal : parameterSets) {
+            if (((nal[0] >> 1) & 0x3F) == HEVC_NAL_SPS) {
+                sps = unescape(nal);
+                break;
+            }
+        }
+        // Intestazione NAL (2 byte), id VPS/sub-layer (1 byte), profile_tier_level generale (12 byte)
+        if (sps == null || sps.length < 15)
+            throw new IllegalArgumentException("Missing SPS");
+        int maxSubLayers = ((sps[2] >> 1) & 0x07) + 1;
+        int temporalIdNested = sps[2] & 0x01;
+
+        boxes.startBox("hvcC")
+                .putByte(1)
+                .putBytes(sps, 3, 12)
+                .putShort(0xF000)
+                .putByte(0xFC)
+                // Formato 4:2:0 a 8 bit
+                .putByte(0xFD)
+                .putByte(0xF8)
+                .putByte(0xF8)
+                .putShort(0)
+                // Lunghezza dei NAL su 4 byte
+                .putByte((maxSubLayers << 3) | (temporalIdNested << 2) | 0x03);
+
+        int[] types = {HEVC_NAL_VPS, HEVC_NAL_SPS, HEVC_NAL_PPS};
+        boxes.putByte(types.length);
+        for (int type : types) {
+            int count = 0;
+            for (byte[] nal : parameterSets) {
+                if (((nal[0] >> 1) & 0x3F) == type)
+                    count++;
+            }
+            boxes.putByte(0x80 | type).putShort(count);
+            for (byte[] nal : parameterSets) {
+                if (((nal[0] >> 1) & 0x3F) == type)
+                    boxes.putShort(nal.length).putBytes(nal);
+            }
+        }
+        boxes.endBox();
+    }
+
+    private void writeAudioSampleEntry(@NonNull Track track) {
+        boxes.startBox("mp4a")
+                .putZeros(6)
+                .putShort(1)
+                .putZeros(8)
+                .putShort(track.channelCount)
+                .putShort(16)
+                .putShort(0)
+                .putShort(0)
+                .putInt(track.sampleRate << 16);
+
+        // Descrittori MPEG-4 (ISO/IEC 14496-1): ES, configurazione del decoder, SL
+        int decoderSpecificSize = 2 + track.audioConfig.length;
+        int decoderConfigSize = 13 + decoderSpecificSize;
+        int esSize = 3 + 2 + decoderConfigSize + 3;
+        boxes.startFullBox("esds", 0, 0)
+                .putByte(0x03).putByte(esSize)
+                .putShort(0)
+                .putByte(0)
+                .putByte(0x04).putByte(decoderConfigSize)
+                // Audio MPEG-4, stream audio
+                .putByte(0x40)
+                .putByte(0x15)
+                .putZeros(3)
+                .putInt(0)
+                .putInt(0)
+                .putByte(0x05).putByte(track.audioConfig.length)
+                .putBytes(track.audioConfig)
+                .putByte(0x06).putByte(1).putByte(0x02)
+                .endBox();
+        boxes.endBox();
+    }
+
+    private void putMatrix() {
+        boxes.putInt(0x00010000).putInt(0).putInt(0)
+                .putInt(0).putInt(0x00010000).putInt(0)
+                .putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    /**
+     * Converte un campione Annex B (NAL separati da start code) in NAL preceduti dalla lunghezza
+     * su 4 byte, aggiungendolo ai dati della traccia.
+     *
+     * @param track traccia video
+     * @param data campione Annex B
+     * @return dimensione del campione convertito
+     */
+    private int appendLengthPrefixed(@NonNull Track track, @NonNull ByteBuffer data) {
+        int length = data.remaining();
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        data.get(scratch, 0, length);
+
+        // Ogni start code (3 o 4 byte) viene sostituito da una lunghezza di 4 byte
+        track.reserve(length + length / 3 + 4);
+        int position = track.dataSize;
+        int start = nextNalStart(scratch, 0, length);
+        if (start == -1)
+            start = 0;
+        while (start < length) {
+            int next = nextNalStart(scratch, start, length);
+            int end = next == -1 ? length : next - 3;
+            if (next != -1 && end > start && scratch[end - 1] == 0)
+                end--;
+            int nalLength = end - start;
+            if (nalLength > 0) {
+                byte[] out = track.data;
+                out[position] = (byte) (nalLength >> 24);
+                out[position + 1] = (byte) (nalLength >> 16);
+                out[position + 2] = (byte) (nalLength >> 8);
+                out[position + 3] = (byte) nalLength;
+                System.arraycopy(scratch, start, out, position + 4, nalLength);
+                position += 4 + nalLength;
+            }
+            if (next == -1)
+                break;
+            start = next;
+        }
+        // addSample() aggiunge la dimensione al totale
+        return position - track.dataSize;
+    }
+
+    /**
+     * Divide un flusso Annex B nei NAL che lo compongono, senza start code.
+     * Se il flusso non inizia con uno start code viene considerato un solo NAL.
+     *
+     * @param stream dati Annex B
+     * @return NAL in ordine
+     */
+    @NonNull
+    static ArrayList<byte[]> splitAnnexB(@NonNull byte[] stream) {
+        ArrayList<byte[]> nals = new ArrayList<>();
+        int start = nextNalStart(stream, 0, stream.length);
+        if (start == -1) {
+            if (stream.length > 0)
+                nals.add(stream);
+            return nals;
+        }
+        while (start < stream.length) {
+            int next = nextNalStart(stream, start, stream.length);
+            int end = next == -1 ? stream.length : next - 3;
+            // Start code di 4 byte: lo zero iniziale appartiene allo start code
+            if (next != -1 && end > start && stream[end - 1] == 0)
+                end--;
+            if (end > start)
+                nals.add(Arrays.copyOfRange(stream, start, end));
+            if (next == -1)
+                break;
+            start = next;
+        }
+        return nals;
+    }
+
+    /**
+     * Cerca il NAL successivo.
+     *
+     * @param stream dati Annex B
+     * @param from posizione da cui cercare
+     * @param limit fine dei dati
+     * @return inizio del NAL dopo lo start code 00 00 01, -1 se non esiste
+     */
+    private static int nextNalStart(@NonNull byte[] stream, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if (stream[i] == 0 && stream[i + 1] == 0 && stream[i + 2] == 1)
+                return i + 3;
+        }
+        return -1;
+    }
+
+    /**
+     * Rimuove i byte di emulation prevention (00 00 03) da un NAL.
+     *
+     * @param nal NAL
+     * @return payload senza emulation prevention
+     */
+    @NonNull
+    private static byte[] unescape(@NonNull byte[] nal) {
+        byte[] out = new byte[nal.length];
+        int length = 0;
+        int zeros = 0;
+        for (byte b : nal) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            out[length++] = b;
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    @NonNull
+    private static byte[] toArray(@Nullable ByteBuffer buffer) {
+        if (buffer == null)
+            return new byte[0];
+        ByteBuffer copy = buffer.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,15 @@
+package it.unive.reciak.webrtc.record;
+
+/**
+ * Comportamento della registrazione quando il thread di rendering è in ritardo
+ * e il numero massimo di frame in attesa è stato raggiunto.
+ */
+public enum FrameDropPolicy {
+    // Scarta il frame in attesa da più tempo
+    DROP_OLDEST,
+    // Scarta il frame appena arrivato
+    DROP_NEWEST,
+    // Accetta i frame al massimo alla frequenza di registrazione (in base al timestamp),
+    // scartando il frame appena arrivato se la coda è piena
+    THROTTLE
+}
@@ -0,0 +1,48 @@
+package it.unive.reciak.webrtc.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Scrittura di un MP4 standard con MediaMuxer: il file è leggibile solo dopo release().
+ */
+final class MediaMuxerSampleWriter implements SampleWriter {
+    @NonNull
+    private final MediaMuxer mediaMuxer;
+
+    /**
+     * Crea il file di output.
+     *
+     * @param outputFile percorso del file
+     * @throws IOException impossibile creare il file
+     */
+    MediaMuxerSampleWriter(@NonNull String outputFile) throws IOException {
+        mediaMuxer = new MediaMuxer(outputFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(@NonNull MediaFormat format) {
+        return mediaMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mediaMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int track, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) {
+        mediaMuxer.writeSampleData(track, data, info);
+    }
+
+    @Override
+    public void release() {
+        mediaMuxer.release();
+    }
+}
@@ -0,0 +1,216 @@
+package it.unive.reciak.webrtc.record;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Scrittura dei box ISO BMFF (MP4) in un buffer riutilizzabile.
+ * Un box viene aperto con startBox() e chiuso con endBox(), che ne scrive la dimensione:
+ * i box possono essere annidati. I valori sono big-endian.
+ */
+final class Mp4BoxWriter {
+    // Profondità massima dei box annidati
+    private static final int MAX_DEPTH = 16;
+
+    @NonNull
+    private byte[] buffer;
+    private int position;
+    // Inizio dei box aperti
+    @NonNull
+    private final int[] openBoxes;
+    private int depth;
+
+    /**
+     * Crea il writer.
+     *
+     * @param capacity dimensione iniziale del buffer
+     */
+    Mp4BoxWriter(int capacity) {
+        buffer = new byte[Math.max(capacity, 16)];
+        openBoxes = new int[MAX_DEPTH];
+    }
+
+    /**
+     * Apre un box.
+     *
+     * @param type tipo del box (quattro caratteri)
+     * @return il writer stesso
+     */
+    @NonNull
+    Mp4BoxWriter startBox(@NonNull String type) {
+        if (depth == MAX_DEPTH)
+            throw new IllegalStateException("Boxes nested too deep");
+        openBoxes[depth++] = position;
+        putInt(0);
+        return putFourCc(type);
+    }
+
+    /**
+     * Apre un full box (box con versione e flag).
+     *
+     * @param type tipo del box (quattro caratteri)
+     * @param version versione
+     * @param flags flag (24 bit)
+     * @return il writer stesso
+     */
+    @NonNull
+    Mp4BoxWriter startFullBox(@NonNull String type, int version, int flags) {
+        startBox(type);
+        return putInt((version << 24) | (flags & 0xFFFFFF));
+    }
+
+    /**
+     * Chiude l'ultimo box aperto scrivendone la dimensione.
+     *
+     * @return il writer stesso
+     */
+    @NonNull
+    Mp4BoxWriter endBox() {
+        if (depth == 0)
+            throw new IllegalStateException("No open box");
+        int start = openBoxes[--depth];
+        setInt(start, position - start);
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxWriter putByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxWriter putShort(int value) {
+        ensureCapacity(2);
+        buffer[position++] = (byte) (value >> 8);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxWriter putInt(int value) {
+        ensureCapacity(4);
+        writeInt(position, value);
+        position += 4;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxWriter putLong(long value) {
+        putInt((int) (value >>> 32));
+        return putInt((int) value);
+    }
+
+    /**
+     * Scrive un codice di quattro caratteri ASCII.
+     *
+     * @param fourCc codice (tipo di box, brand, handler)
+     * @return il writer stesso
+     */
+    @NonNull
+    Mp4BoxWriter putFourCc(@NonNull String fourCc) {
+        byte[] bytes = fourCc.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length != 4)
+            throw new IllegalArgumentException("Invalid four-character code " + fourCc);
+        return putBytes(bytes, 0, 4);
+    }
+
+    @NonNull
+    Mp4BoxWriter putBytes(@NonNull byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxWriter putBytes(@NonNull byte[] bytes) {
+        return putBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Scrive byte a zero (campi riservati).
+     *
+     * @param count numero di byte
+     * @return il writer stesso
+     */
+    @NonNull
+    Mp4BoxWriter putZeros(int count) {
+        ensureCapacity(count);
+        Arrays.fill(buffer, position, position + count, (byte) 0);
+        position += count;
+        return this;
+    }
+
+    /**
+     * Sovrascrive un intero già scritto (dimensioni, offset).
+     *
+     * @param offset posizione dell'intero
+     * @param value valore
+     */
+    void setInt(int offset, int value) {
+        if (offset < 0 || offset + 4 > position)
+            throw new IndexOutOfBoundsException("Offset " + offset);
+        writeInt(offset, value);
+    }
+
+    /**
+     * Ritorna il numero di byte scritti.
+     *
+     * @return posizione corrente
+     */
+    int position() {
+        return position;
+    }
+
+    /**
+     * Svuota il buffer per riutilizzarlo.
+     */
+    void reset() {
+        position = 0;
+        depth = 0;
+    }
+
+    /**
+     * Ritorna una copia dei byte scritti.
+     *
+     * @return byte scritti
+     */
+    @NonNull
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * Scrive i byte su un canale.
+     *
+     * @param channel canale di output
+     * @throws IOException errore di scrittura
+     * @throws IllegalStateException box ancora aperti
+     */
+    void writeTo(@NonNull WritableByteChannel channel) throws IOException {
+        if (depth != 0)
+            throw new IllegalStateException(depth + " boxes still open");
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, position);
+        while (data.hasRemaining())
+            channel.write(data);
+    }
+
+    private void writeInt(int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private void ensureCapacity(int size) {
+        if (position + size > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + size));
+    }
+}
@@ -0,0 +1,1084 @@
+package it.unive.reciak.webrtc.record;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unione di clip MP4 senza ricodifica e senza file intermedi.
+ * Negli MP4 standard (MediaMuxer) le tabelle dei campioni (stbl) vengono fuse, i tempi di ogni
+ * clip spostati alla fine della precedente e gli offset dei chunk riscritti; negli MP4
+ * frammentati (FragmentedMp4Writer) i frammenti vengono copiati rinumerati e con i tempi di
+ * decodifica spostati. In entrambi i casi tutte le tracce di una clip vengono spostate dello
+ * stesso tempo: il ritardo di una traccia rispetto alle altre (edts/elst o tfdt) resta invariato.
+ * I dati dei campioni vengono letti e scritti una sola volta.
+ * Le clip devono avere le stesse tracce con la stessa configurazione (stsd), altrimenti viene
+ * lanciata una IOException e l'unione va fatta con ffmpeg.
+ */
+public final class Mp4Concatenator {
+    private static final String TAG = "Mp4Concatenator";
+
+    // Dimensione massima di moov e moof, letti in memoria
+    private static final long MAX_HEADER_SIZE = 64L * 1024 * 1024;
+    private static final long MAX_UINT32 = 0xFFFFFFFFL;
+    // Flag di tfhd
+    private static final int TFHD_BASE_DATA_OFFSET = 0x000001;
+    private static final int TFHD_SAMPLE_DESCRIPTION_INDEX = 0x000002;
+    private static final int TFHD_DEFAULT_SAMPLE_DURATION = 0x000008;
+    // Flag di trun
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x000004;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_FIELDS = 0x000F00;
+    // Posizione della durata in mvhd/mdhd e in tkhd (versione 0 e 1)
+    private static final int HEADER_DURATION_V0 = 24;
+    private static final int HEADER_DURATION_V1 = 32;
+    private static final int TKHD_DURATION_V0 = 28;
+    private static final int TKHD_DURATION_V1 = 36;
+    // Velocità delle voci di elst (1.0 in virgola fissa 16.16)
+    private static final int ELST_RATE = 0x10000;
+
+    /**
+     * Array di interi espandibile, senza boxing.
+     */
+    private static final class IntList {
+        @NonNull
+        private int[] values = new int[64];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        void set(int index, int value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Array di long espandibile, senza boxing.
+     */
+    private static final class LongList {
+        @NonNull
+        private long[] values = new long[64];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        void set(int index, long value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Traccia di una clip: box da copiare (posizioni in moov) e tabelle dei campioni.
+     */
+    private static final class Track {
+        int tkhd;
+        int mdhd;
+        int hdlr;
+        int minf;
+        int stsd;
+        int id;
+        @NonNull
+        String handler = "";
+        int timescale;
+        // Durata dei campioni da trex (MP4 frammentati)
+        int defaultDuration;
+
+        // Campioni (MP4 standard)
+        @NonNull
+        final IntList sizes = new IntList();
+        @NonNull
+        final IntList durations = new IntList();
+        @Nullable
+        IntList compositionOffsets;
+        // Campioni chiave (a partire da 1), null se lo sono tutti
+        @Nullable
+        IntList syncSamples;
+        @NonNull
+        final LongList chunkOffsets = new LongList();
+        @NonNull
+        final IntList chunkSamples = new IntList();
+        @NonNull
+        final IntList chunkDescriptions = new IntList();
+        // Durata nella timescale della traccia
+        long duration;
+        // Lista delle modifiche (MP4 standard): ritardo iniziale nella timescale del filmato e
+        // primo istante dei campioni presentato, nella timescale della traccia
+        long delay;
+        long mediaTime;
+
+        // Tempi di decodifica dei frammenti (MP4 frammentati)
+        long firstDecodeTime = -1;
+        long endDecodeTime;
+    }
+
+    /**
+     * Frammento: moof in memoria e mdat che lo segue.
+     */
+    private static final class Fragment {
+        @NonNull
+        final byte[] moof;
+        long mdatOffset;
+        long mdatSize;
+
+        Fragment(@NonNull byte[] moof) {
+            this.moof = moof;
+        }
+    }
+
+    /**
+     * Clip da unire.
+     */
+    private static final class Clip {
+        @NonNull
+        final File file;
+        @Nullable
+        byte[] ftyp;
+        @NonNull
+        byte[] moov = new byte[0];
+        @NonNull
+        ByteBuffer data = ByteBuffer.wrap(moov);
+        int mvhd;
+        int movieTimescale;
+        boolean fragmented;
+        @NonNull
+        final ArrayList<Track> tracks = new ArrayList<>();
+        @NonNull
+        final ArrayList<Fragment> fragments = new ArrayList<>();
+        // Inizio nel video finale e durata (la traccia più lunga)
+        long startUs;
+        long durationUs;
+        // Primo campione di tutte le tracce (MP4 frammentati)
+        long originUs;
+
+        Clip(@NonNull File file) {
+            this.file = file;
+        }
+
+        @Nullable
+        Track findTrack(int id) {
+            for (Track track : tracks) {
+                if (track.id == id)
+                    return track;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Traccia del video finale (MP4 standard).
+     */
+    private static final class MergedTrack {
+        @NonNull
+        final IntList sizes = new IntList();
+        @NonNull
+        final IntList durations = new IntList();
+        @Nullable
+        IntList compositionOffsets;
+        @Nullable
+        IntList syncSamples;
+        // Offset relativi all'inizio dei dati in mdat
+        @NonNull
+        final LongList chunkOffsets = new LongList();
+        @NonNull
+        final IntList chunkSamples = new IntList();
+        @NonNull
+        final IntList chunkDescriptions = new IntList();
+        long duration;
+    }
+
+    private Mp4Concatenator() {
+    }
+
+    /**
+     * Unisce le clip nell'ordine dato. Se l'unione fallisce il file di output viene eliminato.
+     *
+     * @param inputs clip da unire
+     * @param output video finale
+     * @throws IOException errore di lettura o scrittura, clip non valide o non compatibili
+     */
+    public static void concat(@NonNull List<File> inputs, @NonNull File output) throws IOException {
+        if (inputs.isEmpty())
+            throw new IllegalArgumentException("No clips to concatenate");
+        long start = System.nanoTime();
+
+        ArrayList<Clip> clips = new ArrayList<>(inputs.size());
+        for (File input : inputs)
+            clips.add(readClip(input));
+        Clip first = clips.get(0);
+        long startUs = 0;
+        for (Clip clip : clips) {
+            checkCompatible(first, clip);
+            clip.startUs = startUs;
+            startUs += clip.durationUs;
+        }
+
+        long size;
+        try (FileChannel out = new FileOutputStream(output).getChannel()) {
+            if (first.fragmented)
+                writeFragmented(clips, out);
+            else
+                writeStandard(clips, out, startUs);
+            size = out.position();
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            output.delete();
+            throw e;
+        }
+        Log.i(TAG, "Concatenated " + clips.size() + " clips (" + size + " bytes, " + startUs / 1000 + " ms) in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Verifica una clip leggendone l'indice, senza leggere i campioni.
+     *
+     * @param clip clip completata
+     * @return durata della traccia più lunga
+     * @throws IOException clip illeggibile, incompleta o non supportata
+     */
+    public static long getDurationUs(@NonNull File clip) throws IOException {
+        return readClip(clip).durationUs;
+    }
+
+    /**
+     * Legge i box di primo livello di una clip e ne analizza l'intestazione.
+     */
+    @NonNull
+    private static Clip readClip(@NonNull File file) throws IOException {
+        Clip clip = new Clip(file);
+        boolean hasMoov = false;
+        try (FileChannel in = new FileInputStream(file).getChannel()) {
+            long fileSize = in.size();
+            long offset = 0;
+            @Nullable
+            Fragment fragment = null;
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (offset < fileSize) {
+                // Intestazione del box: dimensione a 32 bit, 64 bit (1) o fino alla fine del file (0)
+                header.clear();
+                header.limit((int) Math.min(16, fileSize - offset));
+                readFully(in, header, offset);
+                if (header.limit() < 8)
+                    throw new IOException("Truncated box in " + file.getName() + " at " + offset);
+                long size = header.getInt(0) & MAX_UINT32;
+                String type = new String(header.array(), 4, 4, StandardCharsets.US_ASCII);
+                int headerSize = 8;
+                if (size == 1) {
+                    if (header.limit() < 16)
+                        throw new IOException("Truncated box in " + file.getName() + " at " + offset);
+                    size = header.getLong(8);
+                    headerSize = 16;
+                } else if (size == 0) {
+                    size = fileSize - offset;
+                }
+                if (size < headerSize || offset + size > fileSize)
+                    throw new IOException("Invalid box " + type + " in " + file.getName() + " at " + offset);
+
+                switch (type) {
+                    case "ftyp":
+                        clip.ftyp = readBox(in, offset, size);
+                        break;
+                    case "moov":
+                        clip.moov = readBox(in, offset, size);
+                        hasMoov = true;
+                        break;
+                    case "moof":
+                        fragment = new Fragment(readBox(in, offset, size));
+                        clip.fragments.add(fragment);
+                        break;
+                    case "mdat":
+                        if (fragment != null && fragment.mdatSize == 0) {
+                            fragment.mdatOffset = offset;
+                            fragment.mdatSize = size;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                offset += size;
+            }
+        }
+        if (!hasMoov)
+            throw new IOException("No moov in " + file.getName());
+
+        parseMoov(clip);
+        if (clip.fragmented) {
+            for (Fragment fragment : clip.fragments)
+                scanFragment(clip, fragment);
+        }
+        if (clip.fragmented) {
+            // Le tracce iniziano con il loro primo campione: la clip con il primo di tutti
+            clip.originUs = Long.MAX_VALUE;
+            for (Track track : clip.tracks) {
+                if (track.firstDecodeTime >= 0)
+                    clip.originUs = Math.min(clip.originUs, track.firstDecodeTime * 1000000 / track.timescale);
+            }
+            if (clip.originUs == Long.MAX_VALUE)
+                clip.originUs = 0;
+            for (Track track : clip.tracks) {
+                if (track.firstDecodeTime >= 0)
+                    clip.durationUs = Math.max(clip.durationUs, track.endDecodeTime * 1000000 / track.timescale - clip.originUs);
+            }
+        } else {
+            for (Track track : clip.tracks)
+                clip.durationUs = Math.max(clip.durationUs, delayUs(clip, track) + track.duration * 1000000 / track.timescale);
+        }
+        return clip;
+    }
+
+    private static void parseMoov(@NonNull Clip clip) throws IOException {
+        byte[] moov = clip.moov;
+        ByteBuffer data = ByteBuffer.wrap(moov);
+        clip.data = data;
+        clip.mvhd = requireChild(moov, 0, "mvhd");
+        clip.movieTimescale = data.getInt(clip.mvhd + (version(moov, clip.mvhd) == 1 ? 28 : 20));
+        int mvex = findChild(moov, 0, "mvex");
+        clip.fragmented = mvex >= 0;
+
+        IntList traks = findChildren(moov, 0, "trak");
+        for (int i = 0; i < traks.size(); i++) {
+            int trak = traks.get(i);
+            Track track = new Track();
+            track.tkhd = requireChild(moov, trak, "tkhd");
+            track.id = data.getInt(track.tkhd + (version(moov, track.tkhd) == 1 ? 28 : 20));
+            int mdia = requireChild(moov, trak, "mdia");
+            track.mdhd = requireChild(moov, mdia, "mdhd");
+            track.timescale = data.getInt(track.mdhd + (version(moov, track.mdhd) == 1 ? 28 : 20));
+            if (track.timescale <= 0)
+                throw new IOException("Invalid timescale in " + clip.file.getName());
+            track.hdlr = requireChild(moov, mdia, "hdlr");
+            track.handler = new String(moov, track.hdlr + 16, 4, StandardCharsets.US_ASCII);
+            track.minf = requireChild(moov, mdia, "minf");
+            int stbl = requireChild(moov, track.minf, "stbl");
+            track.stsd = requireChild(moov, stbl, "stsd");
+            if (!clip.fragmented) {
+                readSampleTable(clip, track, stbl);
+                int edts = findChild(moov, trak, "edts");
+                int elst = edts >= 0 ? findChild(moov, edts, "elst") : -1;
+                if (elst >= 0)
+                    readEditList(clip, track, elst);
+            }
+            clip.tracks.add(track);
+        }
+        if (clip.tracks.isEmpty())
+            throw new IOException("No tracks in " + clip.file.getName());
+
+        if (clip.fragmented) {
+            IntList trexes = findChildren(moov, mvex, "trex");
+            for (int i = 0; i < trexes.size(); i++) {
+                int trex = trexes.get(i);
+                Track track = clip.findTrack(data.getInt(trex + 12));
+                if (track != null)
+                    track.defaultDuration = data.getInt(trex + 20);
+            }
+        }
+    }
+
+    /**
+     * Legge le tabelle stts, ctts, stss, stsz, stsc e stco/co64 di una traccia.
+     */
+    private static void readSampleTable(@NonNull Clip clip, @NonNull Track track, int stbl) throws IOException {
+        byte[] moov = clip.moov;
+        ByteBuffer data = clip.data;
+        String name = clip.file.getName();
+
+        // Dimensioni
+        int stsz = requireChild(moov, stbl, "stsz");
+        int sampleSize = data.getInt(stsz + 12);
+        int sampleCount = checkCount(data.getInt(stsz + 16), sampleSize == 0 ? 4 : 0, stsz + 20, moov, stsz, name);
+        for (int i = 0; i < sampleCount; i++)
+            track.sizes.add(sampleSize != 0 ? sampleSize : data.getInt(stsz + 20 + i * 4));
+
+        // Durate
+        int stts = requireChild(moov, stbl, "stts");
+        int entries = checkCount(data.getInt(stts + 12), 8, stts + 16, moov, stts, name);
+        for (int i = 0; i < entries; i++) {
+            int count = data.getInt(stts + 16 + i * 8);
+            int delta = data.getInt(stts + 20 + i * 8);
+            if (count < 0 || track.durations.size() + (long) count > sampleCount)
+                throw new IOException("Invalid stts in " + name);
+            for (int j = 0; j < count; j++)
+                track.durations.add(delta);
+            track.duration += (long) count * delta;
+        }
+        if (track.durations.size() != sampleCount)
+            throw new IOException("Invalid stts in " + name);
+
+        // Differenze fra presentazione e decodifica
+        int ctts = findChild(moov, stbl, "ctts");
+        if (ctts >= 0) {
+            IntList offsets = new IntList();
+            entries = checkCount(data.getInt(ctts + 12), 8, ctts + 16, moov, ctts, name);
+            for (int i = 0; i < entries; i++) {
+                int count = data.getInt(ctts + 16 + i * 8);
+                int offset = data.getInt(ctts + 20 + i * 8);
+                if (count < 0 || offsets.size() + (long) count > sampleCount)
+                    throw new IOException("Invalid ctts in " + name);
+                for (int j = 0; j < count; j++)
+                    offsets.add(offset);
+            }
+            if (offsets.size() != sampleCount)
+                throw new IOException("Invalid ctts in " + name);
+            track.compositionOffsets = offsets;
+        }
+
+        // Campioni chiave
+        int stss = findChild(moov, stbl, "stss");
+        if (stss >= 0) {
+            IntList syncSamples = new IntList();
+            entries = checkCount(data.getInt(stss + 12), 4, stss + 16, moov, stss, name);
+            for (int i = 0; i < entries; i++)
+                syncSamples.add(data.getInt(stss + 16 + i * 4));
+            track.syncSamples = syncSamples;
+        }
+
+        // Offset dei chunk
+        int stco = findChild(moov, stbl, "stco");
+        boolean co64 = stco < 0;
+        if (co64)
+            stco = requireChild(moov, stbl, "co64");
+        int chunkCount = checkCount(data.getInt(stco + 12), co64 ? 8 : 4, stco + 16, moov, stco, name);
+        for (int i = 0; i < chunkCount; i++)
+            track.chunkOffsets.add(co64 ? data.getLong(stco + 16 + i * 8) : data.getInt(stco + 16 + i * 4) & MAX_UINT32);
+
+        // Campioni per chunk: ogni voce vale fino al primo chunk della successiva
+        int stsc = requireChild(moov, stbl, "stsc");
+        entries = checkCount(data.getInt(stsc + 12), 12, stsc + 16, moov, stsc, name);
+        long samples = 0;
+        for (int i = 0; i < entries; i++) {
+            int firstChunk = data.getInt(stsc + 16 + i * 12);
+            int samplesPerChunk = data.getInt(stsc + 20 + i * 12);
+            int description = data.getInt(stsc + 24 + i * 12);
+            int lastChunk = i + 1 < entries ? data.getInt(stsc + 28 + i * 12) - 1 : chunkCount;
+            if (firstChunk < 1 || firstChunk != track.chunkSamples.size() + 1 || lastChunk > chunkCount || samplesPerChunk < 0)
+                throw new IOException("Invalid stsc in " + name);
+            for (int chunk = firstChunk; chunk <= lastChunk; chunk++) {
+                track.chunkSamples.add(samplesPerChunk);
+                track.chunkDescriptions.add(description);
+                samples += samplesPerChunk;
+            }
+        }
+        if (track.chunkSamples.size() != chunkCount || samples != sampleCount)
+            throw new IOException("Invalid stsc in " + name);
+    }
+
+    /**
+     * Legge la lista delle modifiche di una traccia: le voci vuote iniziali (ritardo della traccia)
+     * e una sola voce con i campioni, come quelle scritte da MediaMuxer.
+     */
+    private static void readEditList(@NonNull Clip clip, @NonNull Track track, int elst) throws IOException {
+        byte[] moov = clip.moov;
+        ByteBuffer data = clip.data;
+        String name = clip.file.getName();
+        boolean v1 = version(moov, elst) == 1;
+        int entrySize = v1 ? 20 : 12;
+        int entries = checkCount(data.getInt(elst + 12), entrySize, elst + 16, moov, elst, name);
+        boolean media = false;
+        for (int i = 0; i < entries; i++) {
+            int entry = elst + 16 + i * entrySize;
+            long duration = v1 ? data.getLong(entry) : data.getInt(entry) & MAX_UINT32;
+            long mediaTime = v1 ? data.getLong(entry + 8) : data.getInt(entry + 4);
+            if (mediaTime == -1 && !media) {
+                track.delay += duration;
+            } else if (mediaTime >= 0 && !media) {
+                track.mediaTime = mediaTime;
+                media = true;
+            } else {
+                throw new IOException("Unsupported edit list in " + name);
+            }
+        }
+    }
+
+    /**
+     * Ritardo iniziale di una traccia in una clip standard.
+     */
+    private static long delayUs(@NonNull Clip clip, @NonNull Track track) {
+        return clip.movieTimescale > 0 ? track.delay * 1000000 / clip.movieTimescale : 0;
+    }
+
+    /**
+     * Calcola l'intervallo dei tempi di decodifica di ogni traccia in un frammento.
+     */
+    private static void scanFragment(@NonNull Clip clip, @NonNull Fragment fragment) throws IOException {
+        byte[] moof = fragment.moof;
+        ByteBuffer data = ByteBuffer.wrap(moof);
+        String name = clip.file.getName();
+        IntList trafs = findChildren(moof, 0, "traf");
+        for (int i = 0; i < trafs.size(); i++) {
+            int traf = trafs.get(i);
+            int tfhd = requireChild(moof, traf, "tfhd");
+            int flags = data.getInt(tfhd + 8) & 0xFFFFFF;
+            // Gli offset assoluti non sarebbero più validi nel file unito
+            if ((flags & TFHD_BASE_DATA_OFFSET) != 0)
+                throw new IOException("Absolute data offsets not supported in " + name);
+            Track track = clip.findTrack(data.getInt(tfhd + 12));
+            if (track == null)
+                throw new IOException("Unknown track in " + name);
+            int position = tfhd + 16;
+            if ((flags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0)
+                position += 4;
+            int defaultDuration = (flags & TFHD_DEFAULT_SAMPLE_DURATION) != 0 ? data.getInt(position) : track.defaultDuration;
+
+            int tfdt = requireChild(moof, traf, "tfdt");
+            long decodeTime = version(moof, tfdt) == 1 ? data.getLong(tfdt + 12) : data.getInt(tfdt + 12) & MAX_UINT32;
+            long duration = 0;
+            IntList truns = findChildren(moof, traf, "trun");
+            for (int j = 0; j < truns.size(); j++) {
+                int trun = truns.get(j);
+                int trunFlags = data.getInt(trun + 8) & 0xFFFFFF;
+                int count = data.getInt(trun + 12);
+                int sample = trun + 16;
+                if ((trunFlags & TRUN_DATA_OFFSET) != 0)
+                    sample += 4;
+                if ((trunFlags & TRUN_FIRST_SAMPLE_FLAGS) != 0)
+                    sample += 4;
+                int sampleBytes = Integer.bitCount(trunFlags & TRUN_SAMPLE_FIELDS) * 4;
+                checkCount(count, sampleBytes, sample, moof, trun, name);
+                if ((trunFlags & TRUN_SAMPLE_DURATION) != 0) {
+                    // La durata è il primo campo di ogni campione
+                    for (int k = 0; k < count; k++)
+                        duration += data.getInt(sample + k * sampleBytes) & MAX_UINT32;
+                } else {
+                    duration += (long) count * defaultDuration;
+                }
+            }
+            if (track.firstDecodeTime < 0)
+                track.firstDecodeTime = decodeTime;
+            track.endDecodeTime = Math.max(track.endDecodeTime, decodeTime + duration);
+        }
+    }
+
+    /**
+     * Verifica che una clip abbia le stesse tracce, con la stessa configurazione, della prima.
+     */
+    private static void checkCompatible(@NonNull Clip first, @NonNull Clip clip) throws IOException {
+        String name = clip.file.getName();
+        if (clip.fragmented != first.fragmented)
+            throw new IOException("Incompatible clip " + name + ": mixed fragmented and standard MP4");
+        if (clip.tracks.size() != first.tracks.size())
+            throw new IOException("Incompatible clip " + name + ": " + clip.tracks.size() + " tracks");
+        for (int i = 0; i < first.tracks.size(); i++) {
+            Track expected = first.tracks.get(i);
+            Track track = clip.tracks.get(i);
+            if (!track.handler.equals(expected.handler) || track.timescale != expected.timescale)
+                throw new IOException("Incompatible clip " + name + ": track " + i + " differs");
+            if (first.fragmented && track.id != expected.id)
+                throw new IOException("Incompatible clip " + name + ": track " + i + " has id " + track.id);
+            int size = boxSize(first.moov, expected.stsd);
+            if (boxSize(clip.moov, track.stsd) != size || !Arrays.equals(
+                    Arrays.copyOfRange(first.moov, expected.stsd, expected.stsd + size),
+                    Arrays.copyOfRange(clip.moov, track.stsd, track.stsd + size)))
+                throw new IOException("Incompatible clip " + name + ": track " + i + " has a different configuration");
+        }
+    }
+
+    /**
+     * Scrive un MP4 standard: moov con le tabelle fuse seguito dai dati delle clip, nell'ordine
+     * in cui sono nei file originali.
+     */
+    private static void writeStandard(@NonNull List<Clip> clips, @NonNull FileChannel out, long durationUs) throws IOException {
+        Clip first = clips.get(0);
+        int trackCount = first.tracks.size();
+        MergedTrack[] merged = new MergedTrack[trackCount];
+        for (int i = 0; i < trackCount; i++)
+            merged[i] = new MergedTrack();
+
+        // Chunk da copiare: clip, offset e dimensione nel file originale
+        IntList copyClips = new IntList();
+        LongList copyOffsets = new LongList();
+        LongList copySizes = new LongList();
+        long dataSize = 0;
+
+        for (int c = 0; c < clips.size(); c++) {
+            Clip clip = clips.get(c);
+            int chunkCount = 0;
+            for (int t = 0; t < trackCount; t++)
+                chunkCount += clip.tracks.get(t).chunkOffsets.size();
+            // Chunk della clip: traccia, indice e dimensione
+            int[] chunkTracks = new int[chunkCount];
+            int[] chunkIndexes = new int[chunkCount];
+            long[] chunkSizes = new long[chunkCount];
+            Integer[] order = new Integer[chunkCount];
+            int n = 0;
+            for (int t = 0; t < trackCount; t++) {
+                Track track = clip.tracks.get(t);
+                int sample = 0;
+                for (int k = 0; k < track.chunkOffsets.size(); k++) {
+                    long size = 0;
+                    for (int s = 0; s < track.chunkSamples.get(k); s++)
+                        size += track.sizes.get(sample++) & MAX_UINT32;
+                    chunkTracks[n] = t;
+                    chunkIndexes[n] = k;
+                    chunkSizes[n] = size;
+                    order[n] = n;
+                    n++;
+                }
+            }
+            // I dati mantengono l'intercalazione audio/video del file originale
+            Arrays.sort(order, (a, b) -> Long.compare(
+                    clip.tracks.get(chunkTracks[a]).chunkOffsets.get(chunkIndexes[a]),
+                    clip.tracks.get(chunkTracks[b]).chunkOffsets.get(chunkIndexes[b])));
+            long[] outputOffsets = new long[chunkCount];
+            for (Integer index : order) {
+                long offset = clip.tracks.get(chunkTracks[index]).chunkOffsets.get(chunkIndexes[index]);
+                outputOffsets[index] = dataSize;
+                int last = copyOffsets.size() - 1;
+                if (last >= 0 && copyClips.get(last) == c && copyOffsets.get(last) + copySizes.get(last) == offset) {
+                    // Chunk contiguo al precedente: una sola copia
+                    copySizes.set(last, copySizes.get(last) + chunkSizes[index]);
+                } else {
+                    copyClips.add(c);
+                    copyOffsets.add(offset);
+                    copySizes.add(chunkSizes[index]);
+                }
+                dataSize += chunkSizes[index];
+            }
+
+            n = 0;
+            for (int t = 0; t < trackCount; t++) {
+                Track track = clip.tracks.get(t);
+                appendTrack(merged[t], track, clip, first.tracks.get(t), first);
+                for (int k = 0; k < track.chunkOffsets.size(); k++, n++) {
+                    merged[t].chunkOffsets.add(outputOffsets[n]);
+                    merged[t].chunkSamples.add(track.chunkSamples.get(k));
+                    merged[t].chunkDescriptions.add(track.chunkDescriptions.get(k));
+                }
+            }
+        }
+
+        // L'intestazione viene scritta due volte: la prima per conoscerne la dimensione
+        boolean co64 = dataSize > MAX_UINT32 - MAX_HEADER_SIZE;
+        boolean largeMdat = dataSize + 8 > MAX_UINT32;
+        Mp4BoxWriter boxes = new Mp4BoxWriter(64 * 1024);
+        writeFtyp(boxes, "iso2");
+        writeMoov(boxes, first, merged, durationUs, 0, co64);
+        long dataStart = boxes.position() + (largeMdat ? 16 : 8);
+        boxes.reset();
+        writeFtyp(boxes, "iso2");
+        writeMoov(boxes, first, merged, durationUs, dataStart, co64);
+        if (largeMdat)
+            boxes.putInt(1).putFourCc("mdat").putLong(dataSize + 16);
+        else
+            boxes.putInt((int) (dataSize + 8)).putFourCc("mdat");
+        boxes.writeTo(out);
+
+        FileChannel in = null;
+        int inputClip = -1;
+        try {
+            for (int i = 0; i < copyOffsets.size(); i++) {
+                if (copyClips.get(i) != inputClip) {
+                    if (in != null)
+                        in.close();
+                    inputClip = copyClips.get(i);
+                    in = new FileInputStream(clips.get(inputClip).file).getChannel();
+                }
+                transfer(in, copyOffsets.get(i), copySizes.get(i), out);
+            }
+        } finally {
+            if (in != null)
+                in.close();
+        }
+    }
+
+    /**
+     * Aggiunge i campioni di una clip a una traccia finale. L'ultimo campione della clip precedente
+     * viene allungato fino all'inizio della traccia in questa clip: tutte le tracce della clip
+     * iniziano dallo stesso istante, con il proprio ritardo. La lista delle modifiche del video
+     * finale è quella della prima clip, quindi il ritardo e il primo istante presentato di ogni
+     * clip sono relativi a quelli della prima.
+     */
+    private static void appendTrack(@NonNull MergedTrack merged, @NonNull Track track, @NonNull Clip clip,
+                                    @NonNull Track firstTrack, @NonNull Clip first) {
+        long start = (clip.startUs + delayUs(clip, track) - delayUs(first, firstTrack)) * track.timescale / 1000000
+                - track.mediaTime + firstTrack.mediaTime;
+        long padding = start - merged.duration;
+        if (padding > 0 && merged.durations.size() > 0
+                && padding <= Integer.MAX_VALUE - merged.durations.get(merged.durations.size() - 1)) {
+            int last = merged.durations.size() - 1;
+            merged.durations.set(last, merged.durations.get(last) + (int) padding);
+            merged.duration += padding;
+        }
+
+        int base = merged.sizes.size();
+        int count = track.sizes.size();
+        for (int i = 0; i < count; i++) {
+            merged.sizes.add(track.sizes.get(i));
+            merged.durations.add(track.durations.get(i));
+        }
+
+        if (track.compositionOffsets != null && merged.compositionOffsets == null) {
+            merged.compositionOffsets = new IntList();
+            for (int i = 0; i < base; i++)
+                merged.compositionOffsets.add(0);
+        }
+        if (merged.compositionOffsets != null) {
+            for (int i = 0; i < count; i++)
+                merged.compositionOffsets.add(track.compositionOffsets != null ? track.compositionOffsets.get(i) : 0);
+        }
+
+        if (track.syncSamples != null && merged.syncSamples == null) {
+            merged.syncSamples = new IntList();
+            for (int i = 1; i <= base; i++)
+                merged.syncSamples.add(i);
+        }
+        if (merged.syncSamples != null) {
+            if (track.syncSamples != null) {
+                for (int i = 0; i < track.syncSamples.size(); i++)
+                    merged.syncSamples.add(base + track.syncSamples.get(i));
+            } else {
+                for (int i = 1; i <= count; i++)
+                    merged.syncSamples.add(base + i);
+            }
+        }
+
+        merged.duration += track.duration;
+    }
+
+    private static void writeFtyp(@NonNull Mp4BoxWriter boxes, @NonNull String brand) {
+        boxes.startBox("ftyp")
+                .putFourCc("isom")
+                .putInt(0x200)
+                .putFourCc("isom")
+                .putFourCc(brand)
+                .putFourCc("mp41")
+                .endBox();
+    }
+
+    /**
+     * Scrive moov: le intestazioni vengono copiate dalla prima clip, le tabelle dei campioni
+     * ricostruite dalle tracce finali.
+     */
+    private static void writeMoov(@NonNull Mp4BoxWriter boxes, @NonNull Clip first, @NonNull MergedTrack[] merged,
+                                  long durationUs, long dataStart, boolean co64) {
+        byte[] moov = first.moov;
+        boxes.startBox("moov");
+        putWithDuration(boxes, moov, first.mvhd, HEADER_DURATION_V0, HEADER_DURATION_V1,
+                durationUs * first.movieTimescale / 1000000);
+
+        for (int t = 0; t < merged.length; t++) {
+            Track track = first.tracks.get(t);
+            MergedTrack output = merged[t];
+            // Durata presentata dalla lista delle modifiche, nella timescale del filmato
+            long mediaDuration = Math.max(0, output.duration - track.mediaTime) * first.movieTimescale / track.timescale;
+            boxes.startBox("trak");
+            putWithDuration(boxes, moov, track.tkhd, TKHD_DURATION_V0, TKHD_DURATION_V1, track.delay + mediaDuration);
+            if (track.delay > 0 || track.mediaTime != 0)
+                writeEdts(boxes, track.delay, track.mediaTime, mediaDuration);
+            boxes.startBox("mdia");
+            putWithDuration(boxes, moov, track.mdhd, HEADER_DURATION_V0, HEADER_DURATION_V1, output.duration);
+            putBox(boxes, moov, track.hdlr);
+
+            boxes.startBox("minf");
+            int minfEnd = track.minf + boxSize(moov, track.minf);
+            for (int child = track.minf + 8; child < minfEnd; child += boxSize(moov, child)) {
+                if (!"stbl".equals(new String(moov, child + 4, 4, StandardCharsets.US_ASCII)))
+                    putBox(boxes, moov, child);
+            }
+
+            boxes.startBox("stbl");
+            putBox(boxes, moov, track.stsd);
+            writeStts(boxes, output.durations);
+            if (output.compositionOffsets != null)
+                writeCtts(boxes, output.compositionOffsets);
+            if (output.syncSamples != null) {
+                boxes.startFullBox("stss", 0, 0).putInt(output.syncSamples.size());
+                for (int i = 0; i < output.syncSamples.size(); i++)
+                    boxes.putInt(output.syncSamples.get(i));
+                boxes.endBox();
+            }
+            writeStsc(boxes, output);
+            writeStsz(boxes, output.sizes);
+            boxes.startFullBox(co64 ? "co64" : "stco", 0, 0).putInt(output.chunkOffsets.size());
+            for (int i = 0; i < output.chunkOffsets.size(); i++) {
+                if (co64)
+                    boxes.putLong(dataStart + output.chunkOffsets.get(i));
+                else
+                    boxes.putInt((int) (dataStart + output.chunkOffsets.get(i)));
+            }
+            boxes.endBox();
+            boxes.endBox();
+
+            boxes.endBox();
+            boxes.endBox();
+            boxes.endBox();
+        }
+        boxes.endBox();
+    }
+
+    /**
+     * Scrive la lista delle modifiche: un'eventuale voce vuota per il ritardo e la voce dei campioni.
+     */
+    private static void writeEdts(@NonNull Mp4BoxWriter boxes, long delay, long mediaTime, long mediaDuration) {
+        boolean v1 = delay > MAX_UINT32 || mediaDuration > MAX_UINT32 || mediaTime > Integer.MAX_VALUE;
+        boxes.startBox("edts");
+        boxes.startFullBox("elst", v1 ? 1 : 0, 0).putInt(delay > 0 ? 2 : 1);
+        if (delay > 0)
+            putEdit(boxes, v1, delay, -1);
+        putEdit(boxes, v1, mediaDuration, mediaTime);
+        boxes.endBox();
+        boxes.endBox();
+    }
+
+    private static void putEdit(@NonNull Mp4BoxWriter boxes, boolean v1, long duration, long mediaTime) {
+        if (v1)
+            boxes.putLong(duration).putLong(mediaTime);
+        else
+            boxes.putInt((int) duration).putInt((int) mediaTime);
+        boxes.putInt(ELST_RATE);
+    }
+
+    private static void writeStts(@NonNull Mp4BoxWriter boxes, @NonNull IntList durations) {
+        boxes.startFullBox("stts", 0, 0);
+        int countPosition = boxes.position();
+        boxes.putInt(0);
+        int entries = 0;
+        for (int i = 0; i < durations.size(); ) {
+            int run = 1;
+            while (i + run < durations.size() && durations.get(i + run) == durations.get(i))
+                run++;
+            boxes.putInt(run).putInt(durations.get(i));
+            entries++;
+            i += run;
+        }
+        boxes.setInt(countPosition, entries);
+        boxes.endBox();
+    }
+
+    private static void writeCtts(@NonNull Mp4BoxWriter boxes, @NonNull IntList offsets) {
+        // La versione 1 ammette differenze negative
+        int version = 0;
+        for (int i = 0; i < offsets.size(); i++) {
+            if (offsets.get(i) < 0)
+                version = 1;
+        }
+        boxes.startFullBox("ctts", version, 0);
+        int countPosition = boxes.position();
+        boxes.putInt(0);
+        int entries = 0;
+        for (int i = 0; i < offsets.size(); ) {
+            int run = 1;
+            while (i + run < offsets.size() && offsets.get(i + run) == offsets.get(i))
+                run++;
+            boxes.putInt(run).putInt(offsets.get(i));
+            entries++;
+            i += run;
+        }
+        boxes.setInt(countPosition, entries);
+        boxes.endBox();
+    }
+
+    private static void writeStsc(@NonNull Mp4BoxWriter boxes, @NonNull MergedTrack track) {
+        boxes.startFullBox("stsc", 0, 0);
+        int countPosition = boxes.position();
+        boxes.putInt(0);
+        int entries = 0;
+        for (int i = 0; i < track.chunkSamples.size(); i++) {
+            if (i == 0 || track.chunkSamples.get(i) != track.chunkSamples.get(i - 1)
+                    || track.chunkDescriptions.get(i) != track.chunkDescriptions.get(i - 1)) {
+                boxes.putInt(i + 1).putInt(track.chunkSamples.get(i)).putInt(track.chunkDescriptions.get(i));
+                entries++;
+            }
+        }
+        boxes.setInt(countPosition, entries);
+        boxes.endBox();
+    }
+
+    private static void writeStsz(@NonNull Mp4BoxWriter boxes, @NonNull IntList sizes) {
+        boolean constant = sizes.size() > 0;
+        for (int i = 1; i < sizes.size() && constant; i++)
+            constant = sizes.get(i) == sizes.get(0);
+        boxes.startFullBox("stsz", 0, 0);
+        if (constant) {
+            boxes.putInt(sizes.get(0)).putInt(sizes.size());
+        } else {
+            boxes.putInt(0).putInt(sizes.size());
+            for (int i = 0; i < sizes.size(); i++)
+                boxes.putInt(sizes.get(i));
+        }
+        boxes.endBox();
+    }
+
+    /**
+     * Scrive un MP4 frammentato: intestazione della prima clip e frammenti di tutte le clip,
+     * con numeri di sequenza consecutivi e tempi di decodifica spostati all'inizio della clip.
+     * Le tracce vengono spostate rispetto al primo campione della clip, non al proprio.
+     */
+    private static void writeFragmented(@NonNull List<Clip> clips, @NonNull FileChannel out) throws IOException {
+        Clip first = clips.get(0);
+        Mp4BoxWriter boxes = new Mp4BoxWriter(first.moov.length + 64);
+        if (first.ftyp != null)
+            boxes.putBytes(first.ftyp);
+        else
+            writeFtyp(boxes, "iso6");
+        boxes.putBytes(first.moov);
+        boxes.writeTo(out);
+
+        int sequenceNumber = 1;
+        for (Clip clip : clips) {
+            try (FileChannel in = new FileInputStream(clip.file).getChannel()) {
+                for (Fragment fragment : clip.fragments) {
+                    byte[] moof = fragment.moof;
+                    ByteBuffer data = ByteBuffer.wrap(moof);
+                    data.putInt(requireChild(moof, 0, "mfhd") + 12, sequenceNumber++);
+                    IntList trafs = findChildren(moof, 0, "traf");
+                    for (int i = 0; i < trafs.size(); i++) {
+                        int traf = trafs.get(i);
+                        Track track = clip.findTrack(data.getInt(requireChild(moof, traf, "tfhd") + 12));
+                        int tfdt = requireChild(moof, traf, "tfdt");
+                        //noinspection ConstantConditions
+                        long shift = clip.startUs * track.timescale / 1000000 - clip.originUs * track.timescale / 1000000;
+                        if (version(moof, tfdt) == 1) {
+                            data.putLong(tfdt + 12, data.getLong(tfdt + 12) + shift);
+                        } else {
+                            long decodeTime = (data.getInt(tfdt + 12) & MAX_UINT32) + shift;
+                            if (decodeTime > MAX_UINT32)
+                                throw new IOException("Decode time overflow in " + clip.file.getName());
+                            data.putInt(tfdt + 12, (int) decodeTime);
+                        }
+                    }
+                    while (data.hasRemaining())
+                        out.write(data);
+                    transfer(in, fragment.mdatOffset, fragment.mdatSize, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copia un box della prima clip sostituendone la durata.
+     */
+    private static void putWithDuration(@NonNull Mp4BoxWriter boxes, @NonNull byte[] source, int box,
+                                        int offsetV0, int offsetV1, long duration) {
+        int start = boxes.position();
+        putBox(boxes, source, box);
+        if (version(source, box) == 1) {
+            boxes.setInt(start + offsetV1, (int) (duration >>> 32));
+            boxes.setInt(start + offsetV1 + 4, (int) duration);
+        } else {
+            boxes.setInt(start + offsetV0, (int) Math.min(duration, MAX_UINT32));
+        }
+    }
+
+    private static void putBox(@NonNull Mp4BoxWriter boxes, @NonNull byte[] source, int box) {
+        boxes.putBytes(source, box, boxSize(source, box));
+    }
+
+    private static int boxSize(@NonNull byte[] bytes, int box) {
+        return ((bytes[box] & 0xFF) << 24) | ((bytes[box + 1] & 0xFF) << 16) | ((bytes[box + 2] & 0xFF) << 8) | (bytes[box + 3] & 0xFF);
+    }
+
+    private static int version(@NonNull byte[] bytes, int box) {
+        return bytes[box + 8];
+    }
+
+    /**
+     * Cerca il primo figlio di un box con il tipo dato.
+     *
+     * @return posizione del figlio, -1 se assente
+     */
+    private static int findChild(@NonNull byte[] bytes, int parent, @NonNull String type) throws IOException {
+        IntList children = findChildren(bytes, parent, type);
+        return children.size() > 0 ? children.get(0) : -1;
+    }
+
+    private static int requireChild(@NonNull byte[] bytes, int parent, @NonNull String type) throws IOException {
+        int child = findChild(bytes, parent, type);
+        if (child < 0)
+            throw new IOException("Missing box " + type);
+        return child;
+    }
+
+    /**
+     * Cerca i figli di un box (contenitore senza campi propri) con il tipo dato.
+     */
+    @NonNull
+    private static IntList findChildren(@NonNull byte[] bytes, int parent, @NonNull String type) throws IOException {
+        IntList children = new IntList();
+        int end = parent + boxSize(bytes, parent);
+        int child = parent + 8;
+        while (child + 8 <= end) {
+            int size = boxSize(bytes, child);
+            if (size < 8 || child + size > end)
+                throw new IOException("Invalid box at " + child);
+            if (type.equals(new String(bytes, child + 4, 4, StandardCharsets.US_ASCII)))
+                children.add(child);
+            child += size;
+        }
+        return children;
+    }
+
+    /**
+     * Verifica che una tabella di voci sia contenuta nel box.
+     *
+     * @return numero di voci
+     */
+    private static int checkCount(int count, int entrySize, int start, @NonNull byte[] bytes, int box, @NonNull String name) throws IOException {
+        if (count < 0 || start + (long) count * entrySize > box + boxSize(bytes, box))
+            throw new IOException("Invalid table in " + name);
+        return count;
+    }
+
+    @NonNull
+    private static byte[] readBox(@NonNull FileChannel in, long offset, long size) throws IOException {
+        if (size > MAX_HEADER_SIZE)
+            throw new IOException("Box too large: " + size + " bytes");
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        readFully(in, buffer, offset);
+        return buffer.array();
+    }
+
+    private static void readFully(@NonNull FileChannel in, @NonNull ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, offset + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        buffer.flip();
+    }
+
+    private static void transfer(@NonNull FileChannel in, long offset, long size, @NonNull FileChannel out) throws IOException {
+        while (size > 0) {
+            long transferred = in.transferTo(offset, size, out);
+            if (transferred <= 0)
+                throw new IOException("Unexpected end of file");
+            offset += transferred;
+            size -= transferred;
+        }
+    }
+}
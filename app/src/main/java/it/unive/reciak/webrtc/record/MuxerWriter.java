@@ -0,0 +1,312 @@
+package it.unive.reciak.webrtc.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scrittura del file su un thread dedicato.
+ * I campioni codificati vengono copiati in buffer diretti riutilizzati, così l'encoder può
+ * liberare subito i propri buffer; la coda è limitata dal numero di buffer disponibili.
+ * Tutte le operazioni sul SampleWriter (MediaMuxer o MP4 frammentato) vengono eseguite dal
+ * thread di scrittura.
+ */
+class MuxerWriter implements Runnable {
+    private static final String TAG = "MuxerWriter";
+
+    // Tracce del file
+    static final int TRACK_VIDEO = 0;
+    static final int TRACK_AUDIO = 1;
+
+    // Tipi di operazione in coda
+    private static final int COMMAND_FORMAT = 0;
+    private static final int COMMAND_SAMPLE = 1;
+    private static final int COMMAND_STOP = 2;
+
+    // Attesa massima di un buffer libero prima di ricontrollare lo stato
+    private static final long ACQUIRE_TIMEOUT_MS = 100;
+
+    @NonNull
+    private final SampleWriter sampleWriter;
+    // Numero di tracce da aggiungere prima di avviare il muxer
+    private final int trackCount;
+    // Numero massimo di campioni in coda
+    private final int capacity;
+    @NonNull
+    private final Thread thread;
+
+    // Operazioni da eseguire
+    @NonNull
+    private final LinkedBlockingQueue<Sample> queue;
+    // Buffer liberi e numero di buffer creati
+    @NonNull
+    private final ArrayBlockingQueue<Sample> pool;
+    private int allocated;
+
+    // Indici delle tracce nel muxer (solo thread di scrittura)
+    private final int[] muxerTracks = {-1, -1};
+    private int addedTracks;
+
+    private volatile boolean started;
+    private volatile boolean stopped;
+    // Eseguita dopo il rilascio del SampleWriter
+    @Nullable
+    private volatile Runnable onStopped;
+    // Campioni in coda e massimo raggiunto
+    @NonNull
+    private final AtomicInteger queuedSamples = new AtomicInteger();
+    private volatile int highWaterMark;
+    // Campioni scritti e scartati (solo thread di scrittura)
+    private long writtenSamples;
+    private long droppedSamples;
+
+    /**
+     * Operazione in coda: formato di una traccia, campione o terminazione.
+     */
+    private static final class Sample {
+        int command;
+        int track;
+        @Nullable
+        MediaFormat format;
+        @Nullable
+        ByteBuffer data;
+        @NonNull
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    }
+
+    /**
+     * Crea e avvia il thread di scrittura.
+     *
+     * @param sampleWriter destinazione dei campioni
+     * @param trackCount numero di tracce del file
+     * @param capacity numero massimo di campioni in coda
+     */
+    MuxerWriter(@NonNull SampleWriter sampleWriter, int trackCount, int capacity) {
+        this.sampleWriter = sampleWriter;
+        this.trackCount = trackCount;
+        this.capacity = capacity;
+        queue = new LinkedBlockingQueue<>();
+        pool = new ArrayBlockingQueue<>(capacity);
+
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    /**
+     * Aggiunge una traccia al file. Il muxer parte quando tutte le tracce sono state aggiunte.
+     *
+     * @param track TRACK_VIDEO o TRACK_AUDIO
+     * @param format formato di output dell'encoder
+     */
+    void addTrack(int track, @NonNull MediaFormat format) {
+        if (stopped)
+            return;
+
+        Sample command = new Sample();
+        command.command = COMMAND_FORMAT;
+        command.track = track;
+        command.format = format;
+        queue.add(command);
+    }
+
+    /**
+     * Copia un campione codificato e lo accoda per la scrittura.
+     * Se la coda è piena attende che il thread di scrittura liberi un buffer.
+     *
+     * @param track TRACK_VIDEO o TRACK_AUDIO
+     * @param encodedData dati del campione (fra position e limit)
+     * @param info informazioni del campione
+     * @return false se la scrittura è terminata
+     */
+    boolean writeSample(int track, @NonNull ByteBuffer encodedData, @NonNull MediaCodec.BufferInfo info) {
+        @Nullable
+        Sample sample = acquire();
+        if (sample == null)
+            return false;
+
+        int size = encodedData.remaining();
+        if (sample.data == null || sample.data.capacity() < size)
+            sample.data = ByteBuffer.allocateDirect(Math.max(size, sample.data != null ? sample.data.capacity() * 2 : size));
+        sample.data.clear();
+        sample.data.put(encodedData);
+        sample.data.flip();
+        sample.info.set(0, size, info.presentationTimeUs, info.flags);
+        sample.command = COMMAND_SAMPLE;
+        sample.track = track;
+
+        int queued = queuedSamples.incrementAndGet();
+        queue.add(sample);
+        if (queued > highWaterMark)
+            highWaterMark = queued;
+        return true;
+    }
+
+    /**
+     * Termina la scrittura dopo i campioni già in coda e rilascia il muxer.
+     *
+     * @param onStopped eseguita sul thread di scrittura quando il file è completo
+     */
+    void stop(@Nullable Runnable onStopped) {
+        if (stopped)
+            return;
+        this.onStopped = onStopped;
+        stopped = true;
+
+        Sample command = new Sample();
+        command.command = COMMAND_STOP;
+        queue.add(command);
+    }
+
+    /**
+     * Verifica se il muxer è stato avviato.
+     *
+     * @return true se il muxer sta scrivendo il file
+     */
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Ritorna il numero di campioni in coda.
+     *
+     * @return campioni in coda
+     */
+    int getQueueSize() {
+        return queuedSamples.get();
+    }
+
+    /**
+     * Ritorna il massimo numero di campioni in coda raggiunto.
+     *
+     * @return campioni in coda
+     */
+    int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Ritorna un buffer libero, creandolo se non è stata raggiunta la capacità.
+     *
+     * @return buffer libero o null se la scrittura è terminata
+     */
+    @Nullable
+    private Sample acquire() {
+        while (!stopped) {
+            @Nullable
+            Sample sample = pool.poll();
+            if (sample != null)
+                return sample;
+
+            synchronized (pool) {
+                if (allocated < capacity) {
+                    allocated++;
+                    return new Sample();
+                }
+            }
+
+            try {
+                sample = pool.poll(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (sample != null)
+                    return sample;
+                Log.w(TAG, "Writer is late: " + queuedSamples.get() + " samples queued");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Sample sample;
+            try {
+                sample = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (sample.command == COMMAND_STOP)
+                break;
+
+            try {
+                if (sample.command == COMMAND_FORMAT)
+                    onFormat(sample.track, sample.format);
+                else
+                    onSample(sample);
+            } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+                Log.e(TAG, "Muxer error", e);
+            }
+
+            if (sample.command == COMMAND_SAMPLE) {
+                queuedSamples.decrementAndGet();
+                pool.offer(sample);
+            }
+        }
+
+        release();
+    }
+
+    /**
+     * Aggiunge una traccia e avvia il muxer quando sono presenti tutte.
+     *
+     * @param track TRACK_VIDEO o TRACK_AUDIO
+     * @param format formato della traccia
+     */
+    private void onFormat(int track, @Nullable MediaFormat format) throws IOException {
+        if (format == null || started || muxerTracks[track] != -1)
+            return;
+
+        muxerTracks[track] = sampleWriter.addTrack(format);
+        addedTracks++;
+        if (addedTracks == trackCount) {
+            sampleWriter.start();
+            started = true;
+            Log.i(TAG, "Muxer started with " + trackCount + " tracks");
+        }
+    }
+
+    /**
+     * Scrive un campione. I campioni arrivati prima dell'avvio del muxer vengono scartati.
+     *
+     * @param sample campione da scrivere
+     */
+    private void onSample(@NonNull Sample sample) throws IOException {
+        if (!started || sample.data == null) {
+            droppedSamples++;
+            return;
+        }
+        sampleWriter.writeSampleData(muxerTracks[sample.track], sample.data, sample.info);
+        writtenSamples++;
+    }
+
+    /**
+     * Rilascia il muxer.
+     */
+    private void release() {
+        try {
+            sampleWriter.release();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        started = false;
+        queue.clear();
+        pool.clear();
+        @Nullable
+        Runnable callback = onStopped;
+        if (callback != null)
+            callback.run();
+        Log.i(TAG, "Muxer stopped: " + writtenSamples + " samples written, " + droppedSamples + " dropped, high water mark " + highWaterMark + "/" + capacity);
+    }
+}
@@ -16,16 +16,16 @@ public class OutputAudioSamplesInterceptor extends AudioSamplesInterceptor {
     }
 
     @Override
-    public void attachCallback(Integer id, JavaAudioDeviceModule.SamplesReadyCallback callback) throws Exception {
-        if (callbacks.isEmpty())
+    public synchronized void attachCallback(Integer id, JavaAudioDeviceModule.SamplesReadyCallback callback) throws Exception {
+        if (!hasCallbacks())
             WebRTCAudioTrackUtils.attachOutputCallback(this, audioDeviceModule);
         super.attachCallback(id, callback);
     }
 
     @Override
-    public void detachCallback(Integer id) {
+    public synchronized void detachCallback(Integer id) {
         super.detachCallback(id);
-        if (callbacks.isEmpty())
+        if (!hasCallbacks())
             WebRTCAudioTrackUtils.detachOutputCallback(audioDeviceModule);
     }
 }
\ No newline at end of file
@@ -0,0 +1,229 @@
+package it.unive.reciak.webrtc.record;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Miscelazione di più sorgenti PCM a 16 bit, allineate per timestamp.
+ * Ogni sorgente scrive i suoi campioni nella posizione data dal timestamp (in frame dall'inizio),
+ * convertiti al numero di canali di uscita. L'uscita avanza fino al punto raggiunto da tutte le
+ * sorgenti attive: una sorgente ferma da più della latenza non blocca le altre e vale silenzio.
+ * I campioni vengono sommati con saturazione, senza allocazioni durante la registrazione.
+ * Non è thread-safe: le scritture e le letture vanno sincronizzate dal chiamante.
+ */
+final class PcmMixer {
+    private final int sampleRate;
+    private final int channelCount;
+    private final int capacityFrames;
+    private final int latencyFrames;
+    // Campioni delle sorgenti per posizione (indice = frame % capacityFrames * channelCount)
+    @NonNull
+    private final short[][] rings;
+    // Fine dei campioni scritti da ogni sorgente, in frame
+    @NonNull
+    private final long[] written;
+    // Primo frame non ancora letto, -1 prima della prima scrittura
+    private long readFrame = -1;
+    // Somma dei campioni durante la lettura
+    @NonNull
+    private int[] mix = new int[0];
+    // Statistiche
+    private long lateFrames;
+    private long skippedFrames;
+
+    /**
+     * Crea il mixer.
+     *
+     * @param sampleRate frequenza di campionamento di sorgenti e uscita
+     * @param channelCount canali di uscita
+     * @param sources numero di sorgenti
+     * @param capacityMs durata massima dei campioni in attesa per sorgente
+     * @param latencyMs ritardo dopo il quale una sorgente senza campioni viene considerata in silenzio
+     */
+    PcmMixer(int sampleRate, int channelCount, int sources, int capacityMs, int latencyMs) {
+        if (sampleRate <= 0 || channelCount <= 0 || sources <= 0 || latencyMs < 0 || capacityMs <= latencyMs)
+            throw new IllegalArgumentException("Invalid mixer: " + sampleRate + " Hz, " + channelCount + " channels, "
+                    + sources + " sources, " + capacityMs + "/" + latencyMs + " ms");
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        capacityFrames = (int) ((long) sampleRate * capacityMs / 1000);
+        latencyFrames = (int) ((long) sampleRate * latencyMs / 1000);
+        rings = new short[sources][capacityFrames * channelCount];
+        written = new long[sources];
+        for (int i = 0; i < sources; i++)
+            written[i] = Long.MIN_VALUE;
+    }
+
+    /**
+     * Aggiunge i campioni di una sorgente.
+     *
+     * @param source indice della sorgente
+     * @param data campioni little-endian interlacciati
+     * @param length dimensione dei campioni in byte
+     * @param sourceChannels canali della sorgente
+     * @param timeUs timestamp del primo campione, sull'orologio comune alle sorgenti
+     */
+    void write(int source, @NonNull byte[] data, int length, int sourceChannels, long timeUs) {
+        int frames = length / (2 * sourceChannels);
+        if (frames == 0)
+            return;
+        long position = timeUs * sampleRate / 1000000L;
+        if (readFrame == -1)
+            readFrame = position;
+        // La sorgente riprende dopo una pausa più lunga del buffer: il tempo trascorso non viene letto
+        long end = position + frames;
+        if (end - readFrame > capacityFrames)
+            skipTo(Math.max(end - capacityFrames, position - latencyFrames));
+        // Campioni già letti: la sorgente era in ritardo oltre la latenza
+        int skip = 0;
+        if (position < readFrame) {
+            skip = (int) Math.min(frames, readFrame - position);
+            lateFrames += skip;
+            if (skip == frames)
+                return;
+        }
+
+        short[] ring = rings[source];
+        int index = (int) ((position + skip) % capacityFrames) * channelCount;
+        int offset = skip * sourceChannels * 2;
+        for (int frame = skip; frame < frames; frame++) {
+            if (sourceChannels == channelCount) {
+                for (int c = 0; c < channelCount; c++) {
+                    ring[index++] = (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+                    offset += 2;
+                }
+            } else if (channelCount == 1) {
+                // Downmix: media dei canali
+                int sum = 0;
+                for (int c = 0; c < sourceChannels; c++) {
+                    sum += (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+                    offset += 2;
+                }
+                ring[index++] = (short) (sum / sourceChannels);
+            } else {
+                // Upmix: i canali mancanti ripetono quelli della sorgente
+                for (int c = 0; c < channelCount; c++) {
+                    int at = offset + (c % sourceChannels) * 2;
+                    ring[index++] = (short) ((data[at] & 0xFF) | (data[at + 1] << 8));
+                }
+                offset += sourceChannels * 2;
+            }
+            if (index == ring.length)
+                index = 0;
+        }
+        written[source] = Math.max(written[source], end);
+    }
+
+    /**
+     * Ritorna i frame che possono essere letti senza attendere le sorgenti attive.
+     *
+     * @return frame pronti
+     */
+    int available() {
+        if (readFrame == -1)
+            return 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (long end : written) {
+            first = Math.min(first, end);
+            last = Math.max(last, end);
+        }
+        // Le sorgenti in ritardo vengono attese al massimo per la latenza
+        long limit = Math.max(first, last - latencyFrames);
+        return (int) Math.max(0, limit - readFrame);
+    }
+
+    /**
+     * Legge i campioni miscelati.
+     *
+     * @param out campioni little-endian interlacciati, riempito per intero
+     * @return timestamp del primo campione letto
+     */
+    long read(@NonNull byte[] out) {
+        int frames = out.length / (2 * channelCount);
+        int samples = frames * channelCount;
+        if (mix.length < samples)
+            mix = new int[samples];
+        int start = (int) (readFrame % capacityFrames) * channelCount;
+        int first = Math.min(samples, capacityFrames * channelCount - start);
+
+        // Somma delle sorgenti; i campioni letti vengono azzerati per le scritture successive
+        short[] ring = rings[0];
+        for (int i = 0; i < first; i++) {
+            mix[i] = ring[start + i];
+            ring[start + i] = 0;
+        }
+        for (int i = first; i < samples; i++) {
+            mix[i] = ring[i - first];
+            ring[i - first] = 0;
+        }
+        for (int s = 1; s < rings.length; s++) {
+            ring = rings[s];
+            for (int i = 0; i < first; i++) {
+                mix[i] += ring[start + i];
+                ring[start + i] = 0;
+            }
+            for (int i = first; i < samples; i++) {
+                mix[i] += ring[i - first];
+                ring[i - first] = 0;
+            }
+        }
+
+        // Saturazione a 16 bit
+        for (int i = 0, o = 0; i < samples; i++, o += 2) {
+            int value = mix[i];
+            if (value > Short.MAX_VALUE)
+                value = Short.MAX_VALUE;
+            else if (value < Short.MIN_VALUE)
+                value = Short.MIN_VALUE;
+            out[o] = (byte) value;
+            out[o + 1] = (byte) (value >> 8);
+        }
+
+        long timeUs = readFrame * 1000000L / sampleRate;
+        readFrame += frames;
+        return timeUs;
+    }
+
+    /**
+     * Ritorna i frame scartati perché arrivati dopo la lettura.
+     *
+     * @return frame in ritardo
+     */
+    long getLateFrames() {
+        return lateFrames;
+    }
+
+    /**
+     * Ritorna i frame saltati dopo le pause delle sorgenti.
+     *
+     * @return frame saltati
+     */
+    long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Sposta la lettura in avanti, azzerando i campioni saltati.
+     */
+    private void skipTo(long frame) {
+        int frames = (int) Math.min(frame - readFrame, capacityFrames);
+        int start = (int) (readFrame % capacityFrames) * channelCount;
+        int first = Math.min(frames * channelCount, capacityFrames * channelCount - start);
+        for (short[] ring : rings) {
+            Arrays.fill(ring, start, start + first, (short) 0);
+            Arrays.fill(ring, 0, frames * channelCount - first, (short) 0);
+        }
+        skippedFrames += frame - readFrame;
+        readFrame = frame;
+    }
+}
@@ -0,0 +1,217 @@
+package it.unive.reciak.webrtc.record;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Buffer circolare di campioni PCM a 16 bit in attesa dell'encoder audio.
+ * I blocchi vengono accumulati e letti a pezzi della dimensione dei buffer di input dell'encoder:
+ * un encoder temporaneamente bloccato non fa perdere campioni finché c'è spazio.
+ * Il timestamp di ogni campione è ricavato dai punti di discontinuità (interruzioni della sorgente
+ * e correzioni della deriva): una lettura non attraversa mai una discontinuità.
+ * I metodi sono sincronizzati: scrive il thread della sorgente audio, legge il thread dell'encoder.
+ */
+final class PcmRingBuffer {
+    // Discontinuità in attesa di essere lette
+    private static final int MAX_ANCHORS = 64;
+    // Scarto oltre il quale un blocco non è contiguo al precedente
+    static final long JOIN_TOLERANCE_US = 1000L;
+
+    @NonNull
+    private final byte[] buffer;
+    private final int sampleRate;
+    private final int channelCount;
+    private final int bytesPerFrame;
+    // Posizioni assolute in byte: l'indice nel buffer è position % buffer.length
+    private long readPosition;
+    private long writePosition;
+    // Discontinuità: posizione e timestamp del primo campione (la prima è quella corrente)
+    @NonNull
+    private final long[] anchorPositions = new long[MAX_ANCHORS];
+    @NonNull
+    private final long[] anchorTimes = new long[MAX_ANCHORS];
+    private int anchorHead;
+    private int anchorCount;
+    // Statistiche
+    private long overruns;
+    private long underruns;
+    private long droppedBytes;
+
+    /**
+     * Crea il buffer.
+     *
+     * @param capacityMs durata massima dei campioni in attesa
+     * @param sampleRate frequenza di campionamento
+     * @param channelCount numero di canali
+     */
+    PcmRingBuffer(int capacityMs, int sampleRate, int channelCount) {
+        if (capacityMs <= 0 || sampleRate <= 0 || channelCount <= 0)
+            throw new IllegalArgumentException("Invalid buffer: " + capacityMs + " ms, " + sampleRate + " Hz, " + channelCount + " channels");
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        bytesPerFrame = channelCount * 2;
+        buffer = new byte[(int) Math.max(1, (long) sampleRate * capacityMs / 1000) * bytesPerFrame];
+    }
+
+    /**
+     * Aggiunge un blocco. Se non c'è spazio vengono scartati i campioni più vecchi.
+     *
+     * @param data campioni
+     * @param offset inizio del blocco
+     * @param length dimensione del blocco in byte (i campioni incompleti vengono ignorati)
+     * @param timeUs timestamp del primo campione del blocco
+     */
+    synchronized void write(@NonNull byte[] data, int offset, int length, long timeUs) {
+        length -= length % bytesPerFrame;
+        if (length == 0)
+            return;
+        if (length > buffer.length) {
+            // Il blocco da solo supera la capacità: resta solo la parte finale
+            int skip = length - buffer.length;
+            offset += skip;
+            timeUs += framesToUs(skip);
+            length = buffer.length;
+            droppedBytes += skip;
+            overruns++;
+        }
+        int space = buffer.length - available();
+        if (length > space) {
+            int drop = length - space;
+            readPosition += drop;
+            droppedBytes += drop;
+            overruns++;
+            pruneAnchors();
+        }
+
+        if (writePosition == readPosition) {
+            // Buffer vuoto: il blocco fissa il tempo
+            anchorHead = 0;
+            anchorCount = 0;
+            addAnchor(timeUs);
+        } else if (Math.abs(timeUs - timeAt(writePosition, lastAnchor())) > JOIN_TOLERANCE_US && anchorCount < MAX_ANCHORS) {
+            addAnchor(timeUs);
+        }
+
+        int index = (int) (writePosition % buffer.length);
+        int first = Math.min(length, buffer.length - index);
+        System.arraycopy(data, offset, buffer, index, first);
+        System.arraycopy(data, offset + first, buffer, 0, length - first);
+        writePosition += length;
+    }
+
+    /**
+     * Verifica se c'è abbastanza da riempire un buffer dell'encoder.
+     * Un pezzo seguito da una discontinuità può essere letto anche se più corto.
+     *
+     * @param size capacità del buffer di input
+     * @return true se una lettura non deve attendere altri campioni
+     */
+    synchronized boolean canFill(int size) {
+        int chunk = chunk();
+        return chunk > 0 && (chunk >= size - size % bytesPerFrame || anchorCount > 1);
+    }
+
+    /**
+     * Copia i campioni in attesa, fino a riempire il buffer o alla prossima discontinuità.
+     *
+     * @param dst buffer di input dell'encoder, scritto dalla posizione corrente
+     * @return timestamp del primo campione copiato
+     */
+    synchronized long read(@NonNull ByteBuffer dst) {
+        int wanted = dst.remaining() - dst.remaining() % bytesPerFrame;
+        int length = Math.min(wanted, chunk());
+        if (length < wanted)
+            underruns++;
+        long timeUs = anchorCount > 0 ? timeAt(readPosition, anchorHead) : 0;
+        int index = (int) (readPosition % buffer.length);
+        int first = Math.min(length, buffer.length - index);
+        dst.put(buffer, index, first);
+        dst.put(buffer, 0, length - first);
+        readPosition += length;
+        pruneAnchors();
+        return timeUs;
+    }
+
+    /**
+     * Ritorna i byte in attesa.
+     *
+     * @return byte scritti e non ancora letti
+     */
+    synchronized int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Ritorna il numero di scritture che hanno scartato campioni per mancanza di spazio.
+     *
+     * @return overrun
+     */
+    synchronized long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Ritorna il numero di letture che non hanno riempito il buffer dell'encoder.
+     *
+     * @return underrun
+     */
+    synchronized long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Ritorna i byte scartati per mancanza di spazio.
+     *
+     * @return byte scartati
+     */
+    synchronized long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Byte leggibili prima della prossima discontinuità.
+     */
+    private int chunk() {
+        if (anchorCount > 1)
+            return (int) (anchorPositions[(anchorHead + 1) % MAX_ANCHORS] - readPosition);
+        return available();
+    }
+
+    private int lastAnchor() {
+        return (anchorHead + anchorCount - 1) % MAX_ANCHORS;
+    }
+
+    private void addAnchor(long timeUs) {
+        int index = (anchorHead + anchorCount) % MAX_ANCHORS;
+        anchorPositions[index] = writePosition;
+        anchorTimes[index] = timeUs;
+        anchorCount++;
+    }
+
+    /**
+     * Scarta le discontinuità già superate dalla lettura.
+     */
+    private void pruneAnchors() {
+        while (anchorCount > 1 && anchorPositions[(anchorHead + 1) % MAX_ANCHORS] <= readPosition) {
+            anchorHead = (anchorHead + 1) % MAX_ANCHORS;
+            anchorCount--;
+        }
+    }
+
+    private long timeAt(long position, int anchor) {
+        return anchorTimes[anchor] + framesToUs(position - anchorPositions[anchor]);
+    }
+
+    private long framesToUs(long bytes) {
+        return bytes / bytesPerFrame * 1000000L / sampleRate;
+    }
+}
@@ -0,0 +1,575 @@
+package it.unive.reciak.webrtc.record;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Parametri di codifica di una registrazione.
+ * Tutte le clip di una sessione devono usare lo stesso profilo (con risoluzione bloccata), così
+ * l'unione finale non richiede una nuova codifica.
+ */
+public final class RecordingProfile {
+    private static final String TAG = "RecordingProfile";
+
+    // Valore non impostato: viene usato quello predefinito dell'encoder
+    public static final int DEFAULT = -1;
+    // Bitrate HEVC rispetto a quello H.264 a parità di qualità (percentuale)
+    private static final int HEVC_BITRATE_PERCENT = 60;
+
+    /**
+     * Controllo del bitrate dell'encoder video.
+     */
+    public enum BitrateMode {
+        // Bitrate costante
+        CBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR),
+        // Bitrate variabile
+        VBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR),
+        // Qualità costante, il bitrate viene ignorato
+        CQ(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ);
+
+        private final int value;
+
+        BitrateMode(int value) {
+            this.value = value;
+        }
+
+        /**
+         * Ritorna la costante di MediaCodecInfo.EncoderCapabilities.
+         *
+         * @return modalità per MediaFormat.KEY_BITRATE_MODE
+         */
+        public int getValue() {
+            return value;
+        }
+    }
+
+    @NonNull
+    private final String videoMime;
+    // Encoder scelto da resolve()
+    @Nullable
+    private final String encoderName;
+    private final boolean preferHevc;
+    private final int videoBitrate;
+    @NonNull
+    private final BitrateMode bitrateMode;
+    private final int quality;
+    private final int profile;
+    private final int level;
+    private final int width;
+    private final int height;
+    private final int frameRate;
+    private final int iFrameInterval;
+    private final int audioBitrate;
+    private final int fragmentDuration;
+
+    private RecordingProfile(@NonNull Builder builder) {
+        videoMime = builder.videoMime;
+        encoderName = builder.encoderName;
+        preferHevc = builder.preferHevc;
+        videoBitrate = builder.videoBitrate;
+        bitrateMode = builder.bitrateMode;
+        quality = builder.quality;
+        profile = builder.profile;
+        level = builder.level;
+        width = builder.width;
+        height = builder.height;
+        frameRate = builder.frameRate;
+        iFrameInterval = builder.iFrameInterval;
+        audioBitrate = builder.audioBitrate;
+        fragmentDuration = builder.fragmentDuration;
+    }
+
+    @NonNull
+    public String getVideoMime() {
+        return videoMime;
+    }
+
+    /**
+     * Ritorna il nome dell'encoder video scelto da resolve().
+     *
+     * @return nome per MediaCodec.createByCodecName() o null per l'encoder predefinito
+     */
+    @Nullable
+    public String getEncoderName() {
+        return encoderName;
+    }
+
+    public boolean isHevcPreferred() {
+        return preferHevc;
+    }
+
+    public int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    @NonNull
+    public BitrateMode getBitrateMode() {
+        return bitrateMode;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public int getProfile() {
+        return profile;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public int getIFrameInterval() {
+        return iFrameInterval;
+    }
+
+    public int getAudioBitrate() {
+        return audioBitrate;
+    }
+
+    /**
+     * Ritorna la durata dei frammenti del file.
+     *
+     * @return millisecondi, 0 per un MP4 non frammentato
+     */
+    public int getFragmentDuration() {
+        return fragmentDuration;
+    }
+
+    /**
+     * Verifica se la risoluzione è bloccata.
+     *
+     * @return true se tutte le clip usano la stessa risoluzione
+     */
+    public boolean hasLockedResolution() {
+        return width > 0 && height > 0;
+    }
+
+    /**
+     * Ritorna un builder inizializzato con questo profilo.
+     *
+     * @return builder modificabile
+     */
+    @NonNull
+    public Builder buildUpon() {
+        return new Builder()
+                .setVideoMime(videoMime)
+                .setEncoderName(encoderName)
+                .setPreferHevc(preferHevc)
+                .setVideoBitrate(videoBitrate)
+                .setBitrateMode(bitrateMode)
+                .setQuality(quality)
+                .setProfileLevel(profile, level)
+                .setResolution(width, height)
+                .setFrameRate(frameRate)
+                .setIFrameInterval(iFrameInterval)
+                .setAudioBitrate(audioBitrate)
+                .setFragmentDuration(fragmentDuration);
+    }
+
+    /**
+     * Crea il formato dell'encoder video.
+     *
+     * @param width larghezza del video
+     * @param height altezza del video
+     * @return formato da passare a MediaCodec.configure()
+     */
+    @NonNull
+    MediaFormat createVideoFormat(int width, int height) {
+        MediaFormat format = MediaFormat.createVideoFormat(videoMime, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode.getValue());
+        if (bitrateMode == BitrateMode.CQ) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && quality != DEFAULT)
+                format.setInteger(MediaFormat.KEY_QUALITY, quality);
+        } else
+            format.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        if (profile != DEFAULT) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile);
+            if (level != DEFAULT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                format.setInteger(MediaFormat.KEY_LEVEL, level);
+        }
+        return format;
+    }
+
+    /**
+     * Crea il formato dell'encoder audio (AAC-LC).
+     *
+     * @param sampleRate frequenza di campionamento
+     * @param channelCount numero di canali
+     * @return formato da passare a MediaCodec.configure()
+     */
+    @NonNull
+    MediaFormat createAudioFormat(int sampleRate, int channelCount) {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, audioBitrate);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        return format;
+    }
+
+    /**
+     * Verifica il profilo con le capacità degli encoder del dispositivo e ritorna un profilo
+     * supportato: i parametri non supportati vengono sostituiti o adattati.
+     * Se è preferito HEVC e il dispositivo ha un encoder HEVC hardware, il video viene codificato
+     * in HEVC con un bitrate ridotto; altrimenti viene usato H.264 con il bitrate del profilo.
+     * Da eseguire una volta per sessione, prima della prima registrazione.
+     *
+     * @return profilo supportato dal dispositivo
+     * @throws IllegalStateException nessun encoder per il formato video
+     */
+    @NonNull
+    public RecordingProfile resolve() {
+        Builder builder = buildUpon();
+        String mime = videoMime;
+        int bitrate = videoBitrate;
+
+        @Nullable
+        MediaCodecInfo codec = null;
+        if (preferHevc) {
+            codec = findEncoder(MediaFormat.MIMETYPE_VIDEO_HEVC, true);
+            if (codec != null) {
+                mime = MediaFormat.MIMETYPE_VIDEO_HEVC;
+                bitrate = videoBitrate / 100 * HEVC_BITRATE_PERCENT;
+            } else {
+                Log.i(TAG, "No hardware HEVC encoder, falling back to H.264");
+                mime = MediaFormat.MIMETYPE_VIDEO_AVC;
+            }
+        }
+        if (codec == null)
+            codec = findEncoder(mime, false);
+        if (codec == null)
+            throw new IllegalStateException("No encoder for " + mime);
+        // Profilo e livello dipendono dal codec: se il formato cambia vengono scartati
+        if (!mime.equals(videoMime))
+            builder.setProfileLevel(DEFAULT, DEFAULT);
+        // Il profilo risultante non viene più convertito
+        builder.setVideoMime(mime).setEncoderName(codec.getName()).setPreferHevc(false);
+
+        MediaCodecInfo.CodecCapabilities capabilities = codec.getCapabilitiesForType(mime);
+        MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+        MediaCodecInfo.EncoderCapabilities encoder = capabilities.getEncoderCapabilities();
+
+        // Modalità bitrate
+        BitrateMode mode = bitrateMode;
+        if (mode == BitrateMode.CQ && Build.VERSION.SDK_INT < Build.VERSION_CODES.P)
+            mode = BitrateMode.VBR;
+        if (!encoder.isBitrateModeSupported(mode.getValue())) {
+            Log.w(TAG, "Bitrate mode " + mode + " not supported");
+            mode = encoder.isBitrateModeSupported(BitrateMode.VBR.getValue()) ? BitrateMode.VBR : BitrateMode.CBR;
+        }
+        builder.setBitrateMode(mode);
+        if (mode == BitrateMode.CQ && quality != DEFAULT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+            builder.setQuality(encoder.getQualityRange().clamp(quality));
+
+        // Bitrate e frame rate
+        builder.setVideoBitrate(video.getBitrateRange().clamp(bitrate));
+        builder.setFrameRate(video.getSupportedFrameRates().clamp(frameRate));
+
+        // Profilo e livello
+        if (profile != DEFAULT && mime.equals(videoMime) && !isProfileSupported(capabilities)) {
+            Log.w(TAG, "Profile " + profile + " level " + level + " not supported");
+            builder.setProfileLevel(DEFAULT, DEFAULT);
+        }
+
+        // Risoluzione: se non supportata viene dimezzata mantenendo il rapporto
+        if (hasLockedResolution()) {
+            int supportedWidth = width;
+            int supportedHeight = height;
+            while (!isSizeSupported(video, supportedWidth, supportedHeight) && supportedWidth > 16 && supportedHeight > 16) {
+                supportedWidth = align(supportedWidth / 2);
+                supportedHeight = align(supportedHeight / 2);
+            }
+            if (supportedWidth != width || supportedHeight != height)
+                Log.w(TAG, "Resolution " + width + "x" + height + " not supported, using " + supportedWidth + "x" + supportedHeight);
+            builder.setResolution(supportedWidth, supportedHeight);
+        }
+
+        RecordingProfile resolved = builder.build();
+        Log.i(TAG, "Recording profile: " + resolved);
+        return resolved;
+    }
+
+    /**
+     * Cerca un encoder per un formato, preferendo quelli hardware.
+     *
+     * @param mime tipo MIME del video
+     * @param hardwareOnly ignora gli encoder software
+     * @return encoder o null se non esiste
+     */
+    @Nullable
+    static MediaCodecInfo findEncoder(@NonNull String mime, boolean hardwareOnly) {
+        @Nullable
+        MediaCodecInfo software = null;
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (!info.isEncoder() || !supportsType(info, mime))
+                continue;
+            if (isHardware(info))
+                return info;
+            if (software == null)
+                software = info;
+        }
+        return hardwareOnly ? null : software;
+    }
+
+    /**
+     * Verifica se un codec supporta un formato.
+     *
+     * @param info codec
+     * @param mime tipo MIME
+     * @return true se supportato
+     */
+    private static boolean supportsType(@NonNull MediaCodecInfo info, @NonNull String mime) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Verifica se un codec è hardware. Prima di Android 10 si riconoscono dal nome gli encoder
+     * software di sistema.
+     *
+     * @param info codec
+     * @return true se hardware
+     */
+    private static boolean isHardware(@NonNull MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return info.isHardwareAccelerated();
+        String name = info.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+    }
+
+    /**
+     * Verifica se l'encoder supporta il profilo e il livello richiesti.
+     *
+     * @param capabilities capacità dell'encoder
+     * @return true se supportati
+     */
+    private boolean isProfileSupported(@NonNull MediaCodecInfo.CodecCapabilities capabilities) {
+        for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+            if (profileLevel.profile == profile && (level == DEFAULT || profileLevel.level >= level))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Verifica la risoluzione in entrambi gli orientamenti, perché viene adattata al primo frame.
+     *
+     * @param video capacità video dell'encoder
+     * @param width larghezza
+     * @param height altezza
+     * @return true se supportata
+     */
+    private static boolean isSizeSupported(@NonNull MediaCodecInfo.VideoCapabilities video, int width, int height) {
+        return video.isSizeSupported(width, height) && video.isSizeSupported(height, width);
+    }
+
+    /**
+     * Allinea una dimensione a un multiplo di 16.
+     *
+     * @param size dimensione
+     * @return dimensione allineata
+     */
+    private static int align(int size) {
+        return Math.max(16, size / 16 * 16);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return videoMime + (encoderName != null ? " (" + encoderName + ")" : "") + " " + (hasLockedResolution() ? width + "x" + height : "auto") + "@" + frameRate
+                + " " + bitrateMode + " " + videoBitrate + " bps, GOP " + iFrameInterval + " s"
+                + (profile != DEFAULT ? ", profile " + profile + " level " + level : "")
+                + ", audio " + audioBitrate + " bps"
+                + (fragmentDuration > 0 ? ", fragments " + fragmentDuration + " ms" : "");
+    }
+
+    /**
+     * Costruzione di un profilo. I valori predefiniti corrispondono alla registrazione originale:
+     * H.264 a 6 Mbps, 30 fps, un I-frame al secondo, audio AAC-LC a 64 kbps.
+     */
+    public static final class Builder {
+        @NonNull
+        private String videoMime = MediaFormat.MIMETYPE_VIDEO_AVC;
+        @Nullable
+        private String encoderName;
+        private boolean preferHevc;
+        private int videoBitrate = 6000000;
+        @NonNull
+        private BitrateMode bitrateMode = BitrateMode.VBR;
+        private int quality = DEFAULT;
+        private int profile = DEFAULT;
+        private int level = DEFAULT;
+        private int width = DEFAULT;
+        private int height = DEFAULT;
+        private int frameRate = 30;
+        private int iFrameInterval = 1;
+        private int audioBitrate = 64 * 1024;
+        private int fragmentDuration;
+
+        @NonNull
+        public Builder setVideoMime(@NonNull String videoMime) {
+            this.videoMime = videoMime;
+            return this;
+        }
+
+        /**
+         * Encoder video da usare (impostato da resolve()).
+         *
+         * @param encoderName nome del codec o null per l'encoder predefinito
+         * @return il builder stesso
+         */
+        @NonNull
+        public Builder setEncoderName(@Nullable String encoderName) {
+            this.encoderName = encoderName;
+            return this;
+        }
+
+        /**
+         * Usa HEVC se il dispositivo ha un encoder hardware. Il bitrate va indicato per H.264:
+         * con HEVC viene ridotto da resolve().
+         *
+         * @param preferHevc true per preferire HEVC
+         * @return il builder stesso
+         */
+        @NonNull
+        public Builder setPreferHevc(boolean preferHevc) {
+            this.preferHevc = preferHevc;
+            return this;
+        }
+
+        @NonNull
+        public Builder setVideoBitrate(int videoBitrate) {
+            this.videoBitrate = videoBitrate;
+            return this;
+        }
+
+        @NonNull
+        public Builder setBitrateMode(@NonNull BitrateMode bitrateMode) {
+            this.bitrateMode = bitrateMode;
+            return this;
+        }
+
+        /**
+         * Qualità in modalità CQ (scala dell'encoder).
+         *
+         * @param quality qualità o DEFAULT
+         * @return il builder stesso
+         */
+        @NonNull
+        public Builder setQuality(int quality) {
+            this.quality = quality;
+            return this;
+        }
+
+        /**
+         * Profilo e livello (costanti di MediaCodecInfo.CodecProfileLevel).
+         *
+         * @param profile profilo o DEFAULT
+         * @param level livello o DEFAULT
+         * @return il builder stesso
+         */
+        @NonNull
+        public Builder setProfileLevel(int profile, int level) {
+            this.profile = profile;
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * Blocca la risoluzione di tutte le clip. L'orientamento viene adattato al primo frame.
+         *
+         * @param width larghezza o DEFAULT per usare quella del primo frame
+         * @param height altezza o DEFAULT per usare quella del primo frame
+         * @return il builder stesso
+         */
+        @NonNull
+        public Builder setResolution(int width, int height) {
+            this.width = width;
+            this.height = height;
+            return this;
+        }
+
+        @NonNull
+        public Builder setFrameRate(int frameRate) {
+            this.frameRate = frameRate;
+            return this;
+        }
+
+        /**
+         * Distanza fra due I-frame (GOP).
+         *
+         * @param iFrameInterval secondi
+         * @return il builder stesso
+         */
+        @NonNull
+        public Builder setIFrameInterval(int iFrameInterval) {
+            this.iFrameInterval = iFrameInterval;
+            return this;
+        }
+
+        @NonNull
+        public Builder setAudioBitrate(int audioBitrate) {
+            this.audioBitrate = audioBitrate;
+            return this;
+        }
+
+        /**
+         * Scrive un MP4 frammentato: ogni frammento è leggibile anche se la registrazione viene
+         * interrotta.
+         *
+         * @param fragmentDuration durata minima di un frammento in millisecondi, 0 per un MP4
+         *                         non frammentato
+         * @return il builder stesso
+         */
+        @NonNull
+        public Builder setFragmentDuration(int fragmentDuration) {
+            this.fragmentDuration = fragmentDuration;
+            return this;
+        }
+
+        /**
+         * Crea il profilo.
+         *
+         * @return profilo non modificabile
+         * @throws IllegalArgumentException parametri non validi
+         */
+        @NonNull
+        public RecordingProfile build() {
+            if (videoBitrate <= 0 || audioBitrate <= 0)
+                throw new IllegalArgumentException("Bitrate must be positive");
+            if (frameRate <= 0)
+                throw new IllegalArgumentException("Frame rate must be positive");
+            if (iFrameInterval < 0)
+                throw new IllegalArgumentException("I-frame interval must not be negative");
+            if (fragmentDuration < 0)
+                throw new IllegalArgumentException("Fragment duration must not be negative");
+            if ((width > 0) != (height > 0))
+                throw new IllegalArgumentException("Both width and height must be set");
+            return new RecordingProfile(this);
+        }
+    }
+}
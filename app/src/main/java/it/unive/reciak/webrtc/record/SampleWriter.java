@@ -0,0 +1,46 @@
+package it.unive.reciak.webrtc.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destinazione dei campioni codificati di una registrazione.
+ * I metodi vengono chiamati da un solo thread (MuxerWriter), nell'ordine addTrack(), start(),
+ * writeSampleData() e release().
+ */
+interface SampleWriter {
+    /**
+     * Aggiunge una traccia.
+     *
+     * @param format formato di output dell'encoder, con i dati di configurazione (csd)
+     * @return indice della traccia
+     */
+    int addTrack(@NonNull MediaFormat format);
+
+    /**
+     * Inizia la scrittura: le tracce non possono più essere aggiunte.
+     *
+     * @throws IOException errore di scrittura
+     */
+    void start() throws IOException;
+
+    /**
+     * Scrive un campione.
+     *
+     * @param track indice della traccia
+     * @param data dati del campione (fra position e limit)
+     * @param info informazioni del campione
+     * @throws IOException errore di scrittura
+     */
+    void writeSampleData(int track, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) throws IOException;
+
+    /**
+     * Completa il file e rilascia le risorse.
+     */
+    void release();
+}
@@ -0,0 +1,147 @@
+package it.unive.reciak.webrtc.record;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.webrtc.VideoTrack;
+
+import java.io.File;
+
+import it.unive.reciak.webrtc.EglUtils;
+
+/**
+ * Registrazione continua di una stanza in un unico file.
+ * Encoder e muxer restano attivi per tutta la sessione: al cambio di chi registra viene
+ * sostituito solo l'ingresso (traccia video e audio), senza creare una nuova clip.
+ */
+public class SessionRecorder {
+    private static final String TAG = "SessionRecorder";
+    // Id della callback audio
+    private static final int AUDIO_CALLBACK_ID = 1;
+
+    @NonNull
+    private final File file;
+    @NonNull
+    private final RecordingProfile profile;
+    @Nullable
+    private VideoFileRenderer videoFileRenderer;
+    // Ingresso corrente
+    @Nullable
+    private VideoTrack videoTrack;
+    @Nullable
+    private AudioSamplesInterceptor audioInterceptor;
+    private boolean isStopped = false;
+
+    /**
+     * Prepara la registrazione: il file viene creato al primo ingresso.
+     *
+     * @param file file della registrazione
+     * @param profile parametri di codifica, già verificati con RecordingProfile.resolve()
+     */
+    public SessionRecorder(@NonNull File file, @NonNull RecordingProfile profile) {
+        this.file = file;
+        this.profile = profile;
+    }
+
+    /**
+     * Registra da un nuovo ingresso, staccando quello corrente.
+     *
+     * @param videoTrack traccia video
+     * @param audioInterceptor audio associato alla traccia
+     */
+    public synchronized void switchTo(@NonNull VideoTrack videoTrack, @Nullable AudioSamplesInterceptor audioInterceptor) {
+        if (isStopped)
+            return;
+        // Lo stesso audio (ad esempio il mixer della stanza) resta collegato senza interruzioni
+        detachVideo();
+        if (audioInterceptor != this.audioInterceptor)
+            detachAudio();
+        if (videoFileRenderer == null) {
+            Log.i(TAG, "Recording to " + file.getName());
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            try {
+                // L'audio è sempre presente: la traccia va dichiarata prima di avviare il muxer
+                videoFileRenderer = new VideoFileRenderer(file.getAbsolutePath(), EglUtils.getEglBaseContext(), true, profile,
+                        FrameDropPolicy.DROP_OLDEST, VideoFileRenderer.DEFAULT_MAX_PENDING_FRAMES);
+            } catch (Exception e) {
+                e.printStackTrace();
+                isStopped = true;
+                return;
+            }
+        }
+        this.videoTrack = videoTrack;
+        videoTrack.addSink(videoFileRenderer);
+        if (audioInterceptor != null && this.audioInterceptor == null) {
+            this.audioInterceptor = audioInterceptor;
+            try {
+                audioInterceptor.attachCallback(AUDIO_CALLBACK_ID, videoFileRenderer);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sospende la registrazione finché non viene scelto un nuovo ingresso.
+     */
+    public synchronized void pause() {
+        detach();
+    }
+
+    /**
+     * Termina la registrazione.
+     *
+     * @param onStopped eseguita quando il file è completo, su un thread di registrazione
+     */
+    public synchronized void stop(@Nullable Runnable onStopped) {
+        if (isStopped) {
+            if (onStopped != null)
+                onStopped.run();
+            return;
+        }
+        isStopped = true;
+        detach();
+        if (videoFileRenderer != null) {
+            Log.d(TAG, "Dropped frames: " + videoFileRenderer.getDroppedFrames());
+            videoFileRenderer.release(onStopped);
+            videoFileRenderer = null;
+        } else if (onStopped != null) {
+            onStopped.run();
+        }
+    }
+
+    /**
+     * Ritorna il file della registrazione.
+     *
+     * @return file di output
+     */
+    @NonNull
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Stacca l'ingresso corrente dal renderer.
+     */
+    private void detach() {
+        detachAudio();
+        detachVideo();
+    }
+
+    private void detachAudio() {
+        if (audioInterceptor != null) {
+            audioInterceptor.detachCallback(AUDIO_CALLBACK_ID);
+            audioInterceptor = null;
+        }
+    }
+
+    private void detachVideo() {
+        if (videoTrack != null && videoFileRenderer != null) {
+            videoTrack.removeSink(videoFileRenderer);
+            videoTrack = null;
+        }
+    }
+}
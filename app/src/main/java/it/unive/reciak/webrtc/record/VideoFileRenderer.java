@@ -1,14 +1,17 @@
 package it.unive.reciak.webrtc.record;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
 import org.webrtc.EglBase;
 import org.webrtc.GlRectDrawer;
 import org.webrtc.VideoFrame;
@@ -17,43 +20,126 @@ import org.webrtc.VideoSink;
 import org.webrtc.audio.JavaAudioDeviceModule;
 import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Registrazione con encoding audio e video.
+ * Da Android 6.0 i codec lavorano in modalità asincrona (MediaCodec.Callback): i campioni codificati
+ * arrivano al muxer dalle callback e il thread di rendering non interroga mai l'encoder.
+ * Il file viene scritto da MuxerWriter su un thread dedicato: i buffer dell'encoder vengono
+ * copiati e rilasciati subito, senza attendere il disco.
+ * Audio e video hanno come timestamp l'arrivo sullo stesso orologio di sessione (System.nanoTime()):
+ * il video tramite il tempo di presentazione della Surface, l'audio tramite AudioTimeline.
  *
  * @see <a href="https://github.com/flutter-webrtc/flutter-webrtc/tree/master/android/src/main/java/com/cloudwebrtc/webrtc/record">Sorgente originale</a>
  */
 public class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
     private static final String TAG = "VideoFileRenderer";
+    // Codec in modalità asincrona (setCallback con Handler disponibile da API 23)
+    private static final boolean ASYNC_CODEC = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    // Durata massima dei campioni audio in attesa dell'encoder
+    private static final int PCM_BUFFER_MS = 2000;
+    // Campioni codificati in attesa di essere scritti
+    private static final int MUXER_QUEUE_SIZE = 64;
+    // Frame in attesa del thread di rendering
+    public static final int DEFAULT_MAX_PENDING_FRAMES = 3;
+    // Attesa massima della fine del flusso dall'encoder audio
+    private static final long AUDIO_EOS_TIMEOUT_MS = 1000;
 
     private final HandlerThread renderThread;
     private final Handler renderThreadHandler;
     private final HandlerThread audioThread;
     private final Handler audioThreadHandler;
+    // Thread delle callback dell'encoder video (modalità asincrona)
+    private final HandlerThread encoderThread;
+    private final Handler encoderThreadHandler;
+    // Buffer di input dell'encoder audio liberi (solo thread audio)
+    private final ArrayDeque<Integer> freeAudioInputs = new ArrayDeque<>();
     private int outputFileWidth = -1;
     private int outputFileHeight = -1;
     private EglBase eglBase;
     private final EglBase.Context sharedContext;
     private VideoFrameDrawer frameDrawer;
+    // Frame trattenuti in attesa del rendering
+    private final ArrayDeque<VideoFrame> pendingFrames = new ArrayDeque<>();
+    // Arrivo dei frame in attesa sull'orologio della sessione, nello stesso ordine (buffer circolare)
+    @NonNull
+    private final long[] pendingArrivals;
+    private int pendingHead;
+    @NonNull
+    private final FrameDropPolicy framePolicy;
+    private final int maxPendingFrames;
+    // Timestamp dell'ultimo frame accettato (THROTTLE)
+    private long lastFrameTimeNs = -1;
+    // Frame scartati durante la registrazione
+    private long droppedFrames;
 
-    private static final String MIME_TYPE = "video/avc";
-    private static final int FRAME_RATE = 30;
-    private static final int IFRAME_INTERVAL = 1;
+    // Parametri di codifica
+    @NonNull
+    private final RecordingProfile profile;
+    // Intervallo minimo fra due frame accettati (THROTTLE), con tolleranza per il jitter
+    private final long minFrameIntervalNs;
 
-    private final MediaMuxer mediaMuxer;
+    private final MuxerWriter muxerWriter;
     private MediaCodec encoder;
     private final MediaCodec.BufferInfo bufferInfo;
     private MediaCodec.BufferInfo audioBufferInfo;
-    private int trackIndex = -1;
-    private int audioTrackIndex;
-    private boolean isRunning = true;
+    private volatile boolean isRunning = true;
     private GlRectDrawer drawer;
     private Surface surface;
     private MediaCodec audioEncoder;
+    // Inizio della sessione (System.nanoTime()), fissato dal primo frame o blocco audio
+    private final AtomicLong sessionStartNs = new AtomicLong(Long.MIN_VALUE);
+    // Timestamp dell'ultimo frame inviato all'encoder (thread di rendering)
+    private long lastVideoTimeNs = -1;
+    // Encoder non ancora fermati: il muxer viene chiuso dopo l'ultimo
+    @NonNull
+    private final AtomicInteger pendingEncoders = new AtomicInteger();
+    @Nullable
+    private Runnable onReleased;
+    // Fine della registrazione: i campioni rimasti e la fine del flusso vanno all'encoder (solo thread audio)
+    private boolean audioEnding;
+    private boolean audioEosQueued;
+    private boolean audioReleased;
+    // Fine dell'ultimo blocco inviato all'encoder audio (solo thread audio)
+    private long audioEndUs;
+    @NonNull
+    private final Runnable audioEosTimeout = () -> {
+        Log.w(TAG, "Audio encoder did not reach end of stream");
+        releaseAudio();
+    };
 
     public VideoFileRenderer(String outputFile, final EglBase.Context sharedContext, boolean withAudio) throws IOException {
+        this(outputFile, sharedContext, withAudio, new RecordingProfile.Builder().build(),
+                FrameDropPolicy.DROP_OLDEST, DEFAULT_MAX_PENDING_FRAMES);
+    }
+
+    /**
+     * Crea il renderer con un profilo di codifica e un limite ai frame in attesa del rendering.
+     *
+     * @param outputFile file di output
+     * @param sharedContext contesto EGL condiviso
+     * @param withAudio registra anche l'audio
+     * @param profile parametri di codifica
+     * @param framePolicy frame da scartare quando il rendering è in ritardo
+     * @param maxPendingFrames numero massimo di frame trattenuti
+     * @throws IOException impossibile creare il file
+     */
+    public VideoFileRenderer(String outputFile, final EglBase.Context sharedContext, boolean withAudio,
+                             @NonNull RecordingProfile profile, @NonNull FrameDropPolicy framePolicy,
+                             int maxPendingFrames) throws IOException {
+        if (maxPendingFrames < 1)
+            throw new IllegalArgumentException("maxPendingFrames must be positive");
+        this.profile = profile;
+        minFrameIntervalNs = 1000000000L / profile.getFrameRate() * 3 / 4;
+        this.framePolicy = framePolicy;
+        this.maxPendingFrames = maxPendingFrames;
+        pendingArrivals = new long[maxPendingFrames];
         renderThread = new HandlerThread(TAG + "RenderThread");
         renderThread.start();
         renderThreadHandler = new Handler(renderThread.getLooper());
@@ -65,25 +151,50 @@ public class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
             audioThread = null;
             audioThreadHandler = null;
         }
+        if (ASYNC_CODEC) {
+            encoderThread = new HandlerThread(TAG + "EncoderThread");
+            encoderThread.start();
+            encoderThreadHandler = new Handler(encoderThread.getLooper());
+        } else {
+            encoderThread = null;
+            encoderThreadHandler = null;
+        }
         bufferInfo = new MediaCodec.BufferInfo();
         this.sharedContext = sharedContext;
 
-        mediaMuxer = new MediaMuxer(outputFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        // MP4 frammentato se il profilo lo richiede, altrimenti MP4 standard
+        SampleWriter sampleWriter = profile.getFragmentDuration() > 0
+                ? new FragmentedMp4Writer(new File(outputFile), profile.getFragmentDuration() * 1000L)
+                : new MediaMuxerSampleWriter(outputFile);
+        muxerWriter = new MuxerWriter(sampleWriter, withAudio ? 2 : 1, MUXER_QUEUE_SIZE);
+    }
 
-        audioTrackIndex = withAudio ? -1 : 0;
+    /**
+     * Ritorna il massimo numero di campioni rimasti in attesa di scrittura.
+     *
+     * @return campioni in coda
+     */
+    public int getMuxerHighWaterMark() {
+        return muxerWriter.getHighWaterMark();
     }
 
-    private void initVideoEncoder() {
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, outputFileWidth, outputFileHeight);
+    /**
+     * Verifica se il file è in scrittura.
+     *
+     * @return true se il muxer è stato avviato
+     */
+    public boolean isMuxerStarted() {
+        return muxerWriter.isStarted();
+    }
 
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, 6000000);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+    private void initVideoEncoder() {
+        MediaFormat format = profile.createVideoFormat(outputFileWidth, outputFileHeight);
 
         try {
-            encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            encoder = profile.getEncoderName() != null ? MediaCodec.createByCodecName(profile.getEncoderName())
+                    : MediaCodec.createEncoderByType(profile.getVideoMime());
+            if (ASYNC_CODEC)
+                encoder.setCallback(new VideoEncoderCallback(), encoderThreadHandler);
             encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             renderThreadHandler.post(() -> {
                 eglBase = EglBase.create(sharedContext, EglBase.CONFIG_RECORDABLE);
@@ -91,63 +202,230 @@ public class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
                 eglBase.createSurface(surface);
                 eglBase.makeCurrent();
                 drawer = new GlRectDrawer();
+                // In modalità asincrona l'encoder parte subito e consegna i campioni alle callback
+                if (ASYNC_CODEC) {
+                    encoder.start();
+                    encoderStarted = true;
+                }
             });
         } catch (Exception e) {
             Log.wtf(TAG, e);
         }
     }
 
+    /**
+     * Ritorna il numero di frame scartati perché il rendering era in ritardo.
+     *
+     * @return frame scartati
+     */
+    public long getDroppedFrames() {
+        synchronized (pendingFrames) {
+            return droppedFrames;
+        }
+    }
+
     @Override
     public void onFrame(VideoFrame frame) {
-        frame.retain();
+        if (!isRunning)
+            return;
+        long arrival = sessionTimeNs(System.nanoTime());
         if (outputFileWidth == -1) {
-            outputFileWidth = frame.getRotatedWidth();
-            outputFileHeight = frame.getRotatedHeight();
+            if (profile.hasLockedResolution()) {
+                // Risoluzione del profilo, orientata come il frame
+                int longSide = Math.max(profile.getWidth(), profile.getHeight());
+                int shortSide = Math.min(profile.getWidth(), profile.getHeight());
+                boolean portrait = frame.getRotatedHeight() > frame.getRotatedWidth();
+                outputFileWidth = portrait ? shortSide : longSide;
+                outputFileHeight = portrait ? longSide : shortSide;
+            } else {
+                outputFileWidth = frame.getRotatedWidth();
+                outputFileHeight = frame.getRotatedHeight();
+            }
             initVideoEncoder();
         }
-        renderThreadHandler.post(() -> renderFrameOnRenderThread(frame));
+
+        synchronized (pendingFrames) {
+            // Registrazione terminata: i frame in attesa sono già stati rilasciati
+            if (!isRunning)
+                return;
+            if (framePolicy == FrameDropPolicy.THROTTLE) {
+                long timestamp = frame.getTimestampNs();
+                if (lastFrameTimeNs != -1 && timestamp - lastFrameTimeNs < minFrameIntervalNs) {
+                    droppedFrames++;
+                    return;
+                }
+                lastFrameTimeNs = timestamp;
+            }
+            if (pendingFrames.size() >= maxPendingFrames) {
+                droppedFrames++;
+                if (framePolicy != FrameDropPolicy.DROP_OLDEST)
+                    return;
+                pendingFrames.poll().release();
+                pendingHead = (pendingHead + 1) % maxPendingFrames;
+            }
+            frame.retain();
+            pendingArrivals[(pendingHead + pendingFrames.size()) % maxPendingFrames] = arrival;
+            pendingFrames.add(frame);
+        }
+        renderThreadHandler.post(this::renderNextFrame);
+    }
+
+    /**
+     * Disegna il primo frame in attesa, se non è stato scartato.
+     */
+    private void renderNextFrame() {
+        VideoFrame frame;
+        long arrival;
+        synchronized (pendingFrames) {
+            frame = pendingFrames.poll();
+            if (frame == null)
+                return;
+            arrival = pendingArrivals[pendingHead];
+            pendingHead = (pendingHead + 1) % maxPendingFrames;
+        }
+        renderFrameOnRenderThread(frame, arrival);
+    }
+
+    /**
+     * Rilascia i frame non ancora disegnati.
+     */
+    private void releasePendingFrames() {
+        synchronized (pendingFrames) {
+            for (VideoFrame frame : pendingFrames)
+                frame.release();
+            pendingFrames.clear();
+            pendingHead = 0;
+        }
     }
 
-    private void renderFrameOnRenderThread(VideoFrame frame) {
+    /**
+     * Converte un istante nel tempo della sessione, che parte dal primo frame o blocco audio.
+     *
+     * @param nanos istante di System.nanoTime()
+     * @return nanosecondi dall'inizio della sessione
+     */
+    private long sessionTimeNs(long nanos) {
+        sessionStartNs.compareAndSet(Long.MIN_VALUE, nanos);
+        // L'altra traccia può aver fissato l'inizio subito dopo questo istante
+        return Math.max(0, nanos - sessionStartNs.get());
+    }
+
+    /**
+     * Disegna un frame sulla Surface dell'encoder.
+     *
+     * @param frame frame da disegnare
+     * @param arrival arrivo del frame sull'orologio della sessione (ns)
+     */
+    private void renderFrameOnRenderThread(VideoFrame frame, long arrival) {
         if (frameDrawer == null) {
             frameDrawer = new VideoFrameDrawer();
         }
         frameDrawer.drawFrame(frame, drawer, null, 0, 0, outputFileWidth, outputFileHeight);
         frame.release();
-        drainEncoder();
-        eglBase.swapBuffers();
+        if (!ASYNC_CODEC)
+            drainEncoder();
+        // Il timestamp della Surface diventa quello del campione codificato, sull'orologio della sessione
+        long timeNs = arrival;
+        if (timeNs <= lastVideoTimeNs)
+            timeNs = lastVideoTimeNs + 1000;
+        lastVideoTimeNs = timeNs;
+        eglBase.swapBuffers(timeNs);
     }
 
     public void release() {
+        release(null);
+    }
+
+    /**
+     * Termina la registrazione.
+     *
+     * @param onReleased eseguita sul thread di scrittura quando il file è completo
+     */
+    public void release(@Nullable Runnable onReleased) {
         isRunning = false;
+        this.onReleased = onReleased;
+        pendingEncoders.set(audioThreadHandler != null ? 2 : 1);
         if (audioThreadHandler != null)
-             audioThreadHandler.post(() -> {
-                 if (audioEncoder != null) {
-                     audioEncoder.stop();
-                     audioEncoder.release();
-                     audioThread.quit();
-                 }
-            });
-        muxerStarted = false;
+            audioThreadHandler.post(this::endAudio);
         renderThreadHandler.post(() -> {
+            releasePendingFrames();
+            Log.i(TAG, "Recording stopped, " + getDroppedFrames() + " frames dropped");
             if (encoder != null) {
                 encoder.stop();
                 encoder.release();
             }
             if (eglBase != null)
                 eglBase.release();
-            try {
-                mediaMuxer.release();
-            } catch(IllegalStateException e) {
-                e.printStackTrace();
-            }
+            onEncoderReleased();
             renderThread.quit();
+            if (encoderThread != null)
+                encoderThread.quitSafely();
         });
     }
 
+    /**
+     * Un encoder è stato fermato: dopo l'ultimo il muxer viene rilasciato, con i campioni già in coda.
+     */
+    private void onEncoderReleased() {
+        if (pendingEncoders.decrementAndGet() == 0)
+            muxerWriter.stop(onReleased);
+    }
+
+    /**
+     * Invia all'encoder audio i campioni rimasti nel buffer PCM, anche se non riempiono un buffer
+     * di input, e la fine del flusso; l'encoder viene fermato quando ha restituito gli ultimi frame.
+     * Deve essere eseguita sul thread audio.
+     */
+    private void endAudio() {
+        if (audioEncoder == null) {
+            releaseAudio();
+            return;
+        }
+        audioEnding = true;
+        if (ASYNC_CODEC) {
+            // Gli ultimi frame arrivano dalle callback dell'encoder
+            audioThreadHandler.postDelayed(audioEosTimeout, AUDIO_EOS_TIMEOUT_MS);
+            feedAudio();
+            return;
+        }
+        long deadline = System.nanoTime() + AUDIO_EOS_TIMEOUT_MS * 1000000L;
+        while (!audioReleased && System.nanoTime() < deadline) {
+            feedAudio();
+            drainAudio();
+        }
+        if (!audioReleased)
+            audioEosTimeout.run();
+    }
+
+    /**
+     * Ferma l'encoder audio e chiude il thread audio. Deve essere eseguita sul thread audio.
+     */
+    private void releaseAudio() {
+        if (audioReleased)
+            return;
+        audioReleased = true;
+        audioThreadHandler.removeCallbacks(audioEosTimeout);
+        if (audioEncoder != null) {
+            audioEncoder.stop();
+            audioEncoder.release();
+            audioEncoder = null;
+            freeAudioInputs.clear();
+        }
+        synchronized (audioLock) {
+            if (audioTimeline != null)
+                Log.i(TAG, "Audio drift corrected by " + audioTimeline.getDriftCorrectionUs() / 1000
+                        + " ms, " + audioTimeline.getGapsUs() / 1000 + " ms of gaps");
+            if (droppedAudioBlocks > 0)
+                Log.w(TAG, droppedAudioBlocks + " audio blocks dropped for format mismatch");
+            if (pcmBuffer != null)
+                Log.i(TAG, "Audio buffer: " + pcmBuffer.getOverruns() + " overruns ("
+                        + pcmBuffer.getDroppedBytes() + " bytes dropped), " + pcmBuffer.getUnderruns() + " underruns");
+        }
+        audioThread.quit();
+        onEncoderReleased();
+    }
+
     private boolean encoderStarted = false;
-    private volatile boolean muxerStarted = false;
-    private long videoFrameStart = 0;
 
     private void drainEncoder() {
         if (!encoderStarted) {
@@ -160,16 +438,7 @@ public class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 break;
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat newFormat = encoder.getOutputFormat();
-
-                Log.e(TAG, "encoder output format changed: " + newFormat);
-                trackIndex = mediaMuxer.addTrack(newFormat);
-                if (audioTrackIndex != -1 && !muxerStarted) {
-                    mediaMuxer.start();
-                    muxerStarted = true;
-                }
-                if (!muxerStarted)
-                    break;
+                onVideoFormatChanged(encoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.e(TAG, "unexpected result fr om encoder.dequeueOutputBuffer: " + encoderStatus);
             } else {
@@ -179,15 +448,7 @@ public class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
                         Log.e(TAG, "encoderOutputBuffer " + encoderStatus + " was null");
                         break;
                     }
-                    encodedData.position(bufferInfo.offset);
-                    encodedData.limit(bufferInfo.offset + bufferInfo.size);
-                    if (videoFrameStart == 0 && bufferInfo.presentationTimeUs != 0) {
-                        videoFrameStart = bufferInfo.presentationTimeUs;
-                    }
-                    bufferInfo.presentationTimeUs -= videoFrameStart;
-                    if (muxerStarted)
-                        mediaMuxer.writeSampleData(trackIndex, encodedData, bufferInfo);
-                    isRunning = isRunning && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0;
+                    writeVideoSample(encodedData, bufferInfo);
                     encoder.releaseOutputBuffer(encoderStatus, false);
                     if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         break;
@@ -200,7 +461,203 @@ public class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
         }
     }
 
-    private long presTime = 0L;
+    /**
+     * Aggiunge al file la traccia video; il muxer parte quando sono pronte tutte le tracce.
+     *
+     * @param newFormat formato di output dell'encoder
+     */
+    private void onVideoFormatChanged(@NonNull MediaFormat newFormat) {
+        Log.i(TAG, "encoder output format changed: " + newFormat);
+        muxerWriter.addTrack(MuxerWriter.TRACK_VIDEO, newFormat);
+    }
+
+    /**
+     * Aggiunge al file la traccia audio; il muxer parte quando sono pronte tutte le tracce.
+     *
+     * @param newFormat formato di output dell'encoder
+     */
+    private void onAudioFormatChanged(@NonNull MediaFormat newFormat) {
+        Log.i(TAG, "audio encoder output format changed: " + newFormat);
+        muxerWriter.addTrack(MuxerWriter.TRACK_AUDIO, newFormat);
+    }
+
+    /**
+     * Accoda un campione video codificato. Il buffer dell'encoder può essere rilasciato subito.
+     *
+     * @param encodedData dati del campione
+     * @param info informazioni del campione
+     */
+    private void writeVideoSample(@NonNull ByteBuffer encodedData, @NonNull MediaCodec.BufferInfo info) {
+        encodedData.position(info.offset);
+        encodedData.limit(info.offset + info.size);
+        muxerWriter.writeSample(MuxerWriter.TRACK_VIDEO, encodedData, info);
+        isRunning = isRunning && (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0;
+    }
+
+    /**
+     * Accoda un campione audio codificato. Il buffer dell'encoder può essere rilasciato subito.
+     *
+     * @param encodedData dati del campione
+     * @param info informazioni del campione
+     */
+    private void writeAudioSample(@NonNull ByteBuffer encodedData, @NonNull MediaCodec.BufferInfo info) {
+        // Buffer vuoto di fine flusso
+        if (info.size == 0)
+            return;
+        encodedData.position(info.offset);
+        encodedData.limit(info.offset + info.size);
+        muxerWriter.writeSample(MuxerWriter.TRACK_AUDIO, encodedData, info);
+        isRunning = isRunning && (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0;
+    }
+
+    /**
+     * Callback dell'encoder video: l'input arriva dalla Surface, l'output va al muxer.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private final class VideoEncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            try {
+                ByteBuffer encodedData = codec.getOutputBuffer(index);
+                if (encodedData != null)
+                    writeVideoSample(encodedData, info);
+                codec.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException e) {
+                // Encoder già fermato
+                Log.w(TAG, "video output after stop: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "video encoder error", e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            onVideoFormatChanged(format);
+        }
+    }
+
+    /**
+     * Callback dell'encoder audio, eseguite sul thread audio.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private final class AudioEncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            freeAudioInputs.add(index);
+            feedAudio();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            try {
+                ByteBuffer encodedData = codec.getOutputBuffer(index);
+                if (encodedData != null)
+                    writeAudioSample(encodedData, info);
+                codec.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException e) {
+                // Encoder già fermato
+                Log.w(TAG, "audio output after stop: " + e.getMessage());
+                return;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                releaseAudio();
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "audio encoder error", e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            onAudioFormatChanged(format);
+        }
+    }
+
+    /**
+     * Riempie i buffer di input liberi con i campioni accumulati.
+     * Un buffer viene inviato solo se pieno (o prima di una discontinuità): se l'encoder è in ritardo
+     * i campioni restano nel buffer PCM. Alla fine della registrazione vengono inviati anche i
+     * campioni che non riempiono un buffer, seguiti dalla fine del flusso.
+     * Deve essere eseguita sul thread audio.
+     */
+    private void feedAudio() {
+        PcmRingBuffer pcm = pcmBuffer;
+        if (audioEncoder == null || pcm == null || audioEosQueued)
+            return;
+        while (true) {
+            if (!ASYNC_CODEC && freeAudioInputs.isEmpty()) {
+                int bufferIndex = audioEncoder.dequeueInputBuffer(0);
+                if (bufferIndex < 0)
+                    break;
+                freeAudioInputs.add(bufferIndex);
+            }
+            Integer bufferIndex = freeAudioInputs.peek();
+            if (bufferIndex == null)
+                break;
+            ByteBuffer buffer = audioEncoder.getInputBuffer(bufferIndex);
+            if (buffer == null) {
+                freeAudioInputs.poll();
+                continue;
+            }
+            buffer.clear();
+            if (!audioEnding && !pcm.canFill(buffer.remaining()))
+                break;
+            freeAudioInputs.poll();
+            if (pcm.available() == 0) {
+                // Campioni terminati: l'encoder restituisce gli ultimi frame e la fine del flusso
+                audioEncoder.queueInputBuffer(bufferIndex, 0, 0, audioEndUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                audioEosQueued = true;
+                break;
+            }
+            long timeUs = pcm.read(buffer);
+            audioEncoder.queueInputBuffer(bufferIndex, 0, buffer.position(), timeUs, 0);
+            audioEndUs = timeUs + buffer.position() / (2L * pcm.getChannelCount()) * 1000000L / pcm.getSampleRate();
+        }
+    }
+
+    /**
+     * Avvia l'encoder audio al primo blocco e gli passa i campioni accumulati.
+     * Deve essere eseguita sul thread audio.
+     */
+    private void encodeAudio() {
+        PcmRingBuffer pcm = pcmBuffer;
+        // Registrazione terminata prima dell'esecuzione
+        if (pcm == null || (audioEncoder == null && !isRunning))
+            return;
+        if (audioEncoder == null) try {
+            audioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            if (ASYNC_CODEC)
+                audioEncoder.setCallback(new AudioEncoderCallback(), audioThreadHandler);
+            MediaFormat format = profile.createAudioFormat(pcm.getSampleRate(), pcm.getChannelCount());
+            audioEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            audioEncoder.start();
+        } catch (IOException exception) {
+            Log.wtf(TAG, exception);
+            return;
+        }
+        feedAudio();
+        if (!ASYNC_CODEC)
+            drainAudio();
+    }
+
+    // Eseguito sul thread audio dopo ogni blocco
+    private final Runnable encodeAudioTask = this::encodeAudio;
+    // Timestamp e accumulo dei campioni audio, scritti dal thread della sorgente
+    private final Object audioLock = new Object();
+    @Nullable
+    private AudioTimeline audioTimeline;
+    @Nullable
+    private volatile PcmRingBuffer pcmBuffer;
+    // Blocchi scartati perché in un formato diverso da quello dell'encoder
+    private long droppedAudioBlocks;
 
     private void drainAudio() {
         if (audioBufferInfo == null)
@@ -210,16 +667,7 @@ public class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 break;
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat newFormat = audioEncoder.getOutputFormat();
-
-                Log.w(TAG, "encoder output format changed: " + newFormat);
-                audioTrackIndex = mediaMuxer.addTrack(newFormat);
-                if (trackIndex != -1 && !muxerStarted) {
-                    mediaMuxer.start();
-                    muxerStarted = true;
-                }
-                if (!muxerStarted)
-                    break;
+                onAudioFormatChanged(audioEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.e(TAG, "unexpected result fr om encoder.dequeueOutputBuffer: " + encoderStatus);
             } else { // encoderStatus >= 0
@@ -229,13 +677,10 @@ public class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
                         Log.e(TAG, "encoderOutputBuffer " + encoderStatus + " was null");
                         break;
                     }
-                    encodedData.position(audioBufferInfo.offset);
-                    encodedData.limit(audioBufferInfo.offset + audioBufferInfo.size);
-                    if (muxerStarted)
-                        mediaMuxer.writeSampleData(audioTrackIndex, encodedData, audioBufferInfo);
-                    isRunning = isRunning && (audioBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0;
+                    writeAudioSample(encodedData, audioBufferInfo);
                     audioEncoder.releaseOutputBuffer(encoderStatus, false);
                     if ((audioBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        releaseAudio();
                         break;
                     }
                 } catch (Exception e) {
@@ -250,30 +695,26 @@ public class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
     public void onWebRtcAudioRecordSamplesReady(JavaAudioDeviceModule.AudioSamples audioSamples) {
         if (!isRunning)
             return;
-        audioThreadHandler.post(() -> {
-            if (audioEncoder == null) try {
-                audioEncoder = MediaCodec.createEncoderByType("audio/mp4a-latm");
-                MediaFormat format = new MediaFormat();
-                format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
-                format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, audioSamples.getChannelCount());
-                format.setInteger(MediaFormat.KEY_SAMPLE_RATE, audioSamples.getSampleRate());
-                format.setInteger(MediaFormat.KEY_BIT_RATE, 64 * 1024);
-                format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-                audioEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                audioEncoder.start();
-            } catch (IOException exception) {
-                Log.wtf(TAG, exception);
-            }
-            int bufferIndex = audioEncoder.dequeueInputBuffer(0);
-            if (bufferIndex >= 0) {
-                ByteBuffer buffer = audioEncoder.getInputBuffer(bufferIndex);
-                buffer.clear();
-                byte[] data = audioSamples.getData();
-                buffer.put(data);
-                audioEncoder.queueInputBuffer(bufferIndex, 0, data.length, presTime, 0);
-                presTime += data.length * 125 / 12;
+        long arrival = sessionTimeNs(System.nanoTime());
+        byte[] data = audioSamples.getData();
+        int sampleRate = audioSamples.getSampleRate();
+        int channelCount = audioSamples.getChannelCount();
+        synchronized (audioLock) {
+            if (pcmBuffer == null) {
+                audioTimeline = new AudioTimeline(sampleRate, channelCount);
+                pcmBuffer = new PcmRingBuffer(PCM_BUFFER_MS, sampleRate, channelCount);
+            } else if (sampleRate != pcmBuffer.getSampleRate() || channelCount != pcmBuffer.getChannelCount()) {
+                // L'encoder non può cambiare formato durante la registrazione
+                if (droppedAudioBlocks++ == 0)
+                    Log.w(TAG, "Dropping audio: " + sampleRate + " Hz, " + channelCount + " channels");
+                return;
             }
-            drainAudio();
-        });
+            // Il timestamp viene assegnato all'arrivo: le interruzioni della sorgente (cambio di ingresso)
+            // restano in silenzio. I blocchi dell'uscita audio vengono riutilizzati dopo la callback:
+            // sono copiati subito nel buffer PCM
+            long timeUs = audioTimeline.next(data.length, arrival / 1000);
+            pcmBuffer.write(data, 0, data.length, timeUs);
+        }
+        audioThreadHandler.post(encodeAudioTask);
     }
-}
\ No newline at end of file
+}
@@ -48,6 +48,7 @@ public class WebRTCAudioTrackUtils {
                 if (audioTrack instanceof AudioTrackInterceptor) {
                     AudioTrackInterceptor interceptor = (AudioTrackInterceptor) audioTrack;
                     audioTrackField.set(audioOutput, interceptor.originalTrack);
+                    interceptor.stopTap();
                     Log.i(TAG, "audioTrack found");
                 } else {
                     Log.w(TAG, "audioTrack lost");
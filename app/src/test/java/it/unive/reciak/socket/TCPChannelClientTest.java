@@ -0,0 +1,110 @@
+package it.unive.reciak.socket;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import it.unive.reciak.webrtc.PeerInfo;
+
+import static org.junit.Assert.*;
+
+/**
+ * Socket di segnalazione sul SelectorLoop, in loopback: connessione, messaggi JSON e chiusura.
+ */
+public class TCPChannelClientTest {
+    private static final long TIMEOUT_S = 5;
+
+    private ExecutorService serverExecutor;
+    private ExecutorService clientExecutor;
+
+    /**
+     * Registra gli eventi del socket in una coda.
+     */
+    private static final class Events implements TCPChannelClient.TCPChannelEvents {
+        final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onTCPConnected() {
+            queue.add("connected");
+        }
+
+        @Override
+        public void onTCPMessage(JSONObject message) {
+            queue.add(message);
+        }
+
+        @Override
+        public void onTCPError() {
+            queue.add("error");
+        }
+
+        @Override
+        public void onTCPClose() {
+            queue.add("close");
+        }
+
+        Object next() throws InterruptedException {
+            Object event = queue.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            assertNotNull("No event within " + TIMEOUT_S + " s", event);
+            return event;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        serverExecutor = Executors.newSingleThreadExecutor();
+        clientExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        serverExecutor.shutdownNow();
+        clientExecutor.shutdownNow();
+    }
+
+    @Test
+    public void loopback_roundTripAndClose() throws Exception {
+        int port = freePort();
+        Events serverEvents = new Events();
+        Events clientEvents = new Events();
+        // Il loop apre i socket nell'ordine di creazione: il server è in ascolto prima della connessione
+        TCPChannelClient server = new TCPChannelClient(serverExecutor, serverEvents, new PeerInfo("127.0.0.1", port, true));
+        TCPChannelClient client = new TCPChannelClient(clientExecutor, clientEvents, new PeerInfo("127.0.0.1", port, false));
+        assertEquals("connected", serverEvents.next());
+        assertEquals("connected", clientEvents.next());
+        assertTrue(server.isConnected());
+        assertTrue(client.isConnected());
+
+        client.send("ping", new JSONObject().put("text", "àèé").put("n", 1));
+        JSONObject ping = (JSONObject) serverEvents.next();
+        assertEquals("ping", ping.getString("action"));
+        assertEquals("àèé", ping.getJSONObject("value").getString("text"));
+        assertEquals(1, ping.getJSONObject("value").getInt("n"));
+
+        server.send("pong", new JSONObject().put("n", 2));
+        JSONObject pong = (JSONObject) clientEvents.next();
+        assertEquals("pong", pong.getString("action"));
+        assertEquals(2, pong.getJSONObject("value").getInt("n"));
+
+        // La chiusura di un lato viene notificata a entrambi
+        client.disconnect();
+        assertEquals("close", clientEvents.next());
+        assertEquals("close", serverEvents.next());
+        assertFalse(client.isConnected());
+        assertFalse(server.isConnected());
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
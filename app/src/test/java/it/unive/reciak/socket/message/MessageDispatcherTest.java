@@ -0,0 +1,107 @@
+package it.unive.reciak.socket.message;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import it.unive.reciak.socket.FrameReader;
+import it.unive.reciak.socket.FrameWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Codifica e smistamento dei messaggi di segnalazione in frame binari.
+ */
+public class MessageDispatcherTest {
+    /**
+     * Codifica un messaggio come lo invia TCPChannelClient e ritorna il frame senza intestazione.
+     */
+    private static byte[] encode(SignalingMessage message) {
+        FrameWriter writer = new FrameWriter(message.getType(), message.sizeHint());
+        message.write(writer);
+        ByteBuffer buffer = writer.toByteBuffer();
+
+        assertEquals(buffer.remaining() - FrameWriter.HEADER_SIZE, buffer.getInt(buffer.position()));
+        return Arrays.copyOfRange(buffer.array(), buffer.position() + FrameWriter.HEADER_SIZE, buffer.limit());
+    }
+
+    @Test
+    public void sessionDescription_roundTrip() {
+        ArrayList<String> received = new ArrayList<>();
+        MessageDispatcher dispatcher = new MessageDispatcher()
+                .register(new SessionDescriptionMessage(), m -> received.add(m.type + ":" + m.description));
+
+        byte[] frame = encode(new SessionDescriptionMessage("offer", "v=0\r\no=- àèé 2 IN IP4 127.0.0.1\r\n"));
+
+        assertTrue(dispatcher.dispatch(new FrameReader(frame)));
+        assertEquals(Arrays.asList("offer:v=0\r\no=- àèé 2 IN IP4 127.0.0.1\r\n"), received);
+    }
+
+    @Test
+    public void holder_isReused() {
+        ArrayList<SignalingMessage> holders = new ArrayList<>();
+        ArrayList<Integer> ports = new ArrayList<>();
+        MessageDispatcher dispatcher = new MessageDispatcher()
+                .register(new AddUserMessage(), m -> {
+                    holders.add(m);
+                    ports.add(m.partnerPort);
+                });
+        FrameReader reader = new FrameReader();
+
+        byte[] first = encode(new AddUserMessage("192.168.49.2", 10551, true));
+        byte[] second = encode(new AddUserMessage("192.168.49.3", 10552, false));
+        assertTrue(dispatcher.dispatch(reader.reset(first, 0, first.length)));
+        assertTrue(dispatcher.dispatch(reader.reset(second, 0, second.length)));
+
+        assertSame(holders.get(0), holders.get(1));
+        assertEquals(Arrays.asList(10551, 10552), ports);
+        AddUserMessage last = (AddUserMessage) holders.get(1);
+        assertEquals("192.168.49.3", last.partnerIp);
+        assertFalse(last.isInitiator);
+    }
+
+    @Test
+    public void iceCandidates_roundTrip() {
+        IceCandidatesMessage sent = new IceCandidatesMessage();
+        for (int i = 0; i < 20; i++)
+            sent.add("candidate:" + i, i % 2, i % 2 == 0 ? "0" : null);
+
+        IceCandidatesMessage holder = new IceCandidatesMessage();
+        holder.add("stale", 9, "9");
+        MessageDispatcher dispatcher = new MessageDispatcher().register(holder, m -> { });
+
+        byte[] frame = encode(sent);
+        assertTrue(dispatcher.dispatch(new FrameReader(frame)));
+
+        assertEquals(20, holder.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("candidate:" + i, holder.getSdp(i));
+            assertEquals(i % 2, holder.getSdpMLineIndex(i));
+            assertEquals(i % 2 == 0 ? "0" : null, holder.getSdpMid(i));
+        }
+    }
+
+    @Test
+    public void unregisteredType_isNotHandled() {
+        MessageDispatcher dispatcher = new MessageDispatcher()
+                .register(new IceCandidateMessage(), m -> fail());
+
+        byte[] frame = encode(new AddressMessage("192.168.49.2", 10551));
+        FrameReader reader = new FrameReader(frame);
+
+        assertFalse(dispatcher.dispatch(reader));
+        // Il frame non è stato consumato
+        assertEquals(AddressMessage.TYPE, reader.peekType());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void truncatedFrame_throws() {
+        MessageDispatcher dispatcher = new MessageDispatcher()
+                .register(new IceCandidateMessage(), m -> { });
+
+        byte[] frame = encode(new IceCandidateMessage("candidate:1", 0, "0"));
+        dispatcher.dispatch(new FrameReader(Arrays.copyOf(frame, frame.length - 3)));
+    }
+}
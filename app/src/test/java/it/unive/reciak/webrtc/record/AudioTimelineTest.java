@@ -0,0 +1,84 @@
+package it.unive.reciak.webrtc.record;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Timestamp audio: conteggio dei campioni, interruzioni e correzione della deriva.
+ */
+public class AudioTimelineTest {
+    // Blocco da 10 ms a 48 kHz stereo
+    private static final int BLOCK = 480 * 4;
+
+    @Test
+    public void next_countsSamples() {
+        AudioTimeline timeline = new AudioTimeline(48000, 2);
+        assertEquals(1000, timeline.next(BLOCK, 1000));
+        assertEquals(11000, timeline.next(BLOCK, 11500));
+        assertEquals(21000, timeline.next(BLOCK, 21200));
+    }
+
+    @Test
+    public void next_sampleAccurateForAnyRate() {
+        // 441 campioni mono a 44.1 kHz: 10 ms esatti, senza errori di arrotondamento accumulati
+        AudioTimeline timeline = new AudioTimeline(44100, 1);
+        long time = 0;
+        for (int i = 0; i < 1000; i++)
+            time = timeline.next(441 * 2, i * 10000L);
+        assertEquals(999 * 10000L, time);
+        assertEquals(0, timeline.getDriftCorrectionUs());
+    }
+
+    @Test
+    public void next_realignsAfterGap() {
+        AudioTimeline timeline = new AudioTimeline(48000, 2);
+        timeline.next(BLOCK, 0);
+        timeline.next(BLOCK, 10000);
+        // Sorgente ferma per mezzo secondo
+        assertEquals(520000, timeline.next(BLOCK, 520000));
+        assertEquals(530000, timeline.next(BLOCK, 530000));
+        assertEquals(500000, timeline.getGapsUs());
+    }
+
+    @Test
+    public void next_ignoresJitter() {
+        AudioTimeline timeline = new AudioTimeline(48000, 2);
+        for (int i = 0; i < 10 * AudioTimeline.DRIFT_WINDOW; i++)
+            timeline.next(BLOCK, i * 10000L + (i % 3 == 0 ? 0 : 4000));
+        assertEquals(0, timeline.getDriftCorrectionUs());
+    }
+
+    @Test
+    public void next_correctsDrift() {
+        // La scheda audio produce campioni lo 0,1% più lentamente del clock di sistema
+        AudioTimeline timeline = new AudioTimeline(48000, 2);
+        long time = 0;
+        long arrival = 0;
+        for (int i = 0; i < 30 * AudioTimeline.DRIFT_WINDOW; i++) {
+            arrival = i * 10010L;
+            time = timeline.next(BLOCK, arrival);
+        }
+        assertTrue(timeline.getDriftCorrectionUs() > 0);
+        // Resta al massimo la deriva di due finestre (10 us per blocco)
+        assertTrue(Math.abs(arrival - time) <= 2 * AudioTimeline.DRIFT_WINDOW * 10);
+    }
+
+    @Test
+    public void next_staysMonotonic() {
+        // Campioni più veloci del clock: la correzione rallenta i timestamp senza invertirli
+        AudioTimeline timeline = new AudioTimeline(48000, 2);
+        long last = -1;
+        for (int i = 0; i < 10 * AudioTimeline.DRIFT_WINDOW; i++) {
+            long time = timeline.next(BLOCK, i * 9900L);
+            assertTrue(time > last);
+            last = time;
+        }
+        assertTrue(timeline.getDriftCorrectionUs() < 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_invalidFormat() {
+        new AudioTimeline(0, 2);
+    }
+}
@@ -0,0 +1,217 @@
+package it.unive.reciak.webrtc.record;
+
+import android.media.MediaFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Struttura del file scritto da FragmentedMp4Writer: intestazione, frammenti tagliati sui frame
+ * chiave e campioni video convertiti da Annex B.
+ */
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, 0x00, 0x1F, (byte) 0xE9, 0x01, 0x40};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUDIO_CONFIG = {0x12, 0x10};
+    private static final long FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 1024 * 1000000L / 48000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Box di primo livello: tipo, inizio e dimensione.
+     */
+    private static final class Box {
+        final String type;
+        final int offset;
+        final int size;
+
+        Box(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    @Test
+    public void fragments_cutOnKeyFrames() throws IOException {
+        File file = folder.newFile("clip.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 1000000);
+        int video = writer.addVideoTrack(MediaFormat.MIMETYPE_VIDEO_AVC, 640, 480, new byte[][]{SPS, PPS});
+        int audio = writer.addAudioTrack(48000, 1, AUDIO_CONFIG);
+        writer.start();
+
+        // 3 secondi di video con un frame chiave al secondo, audio intercalato
+        long audioTime = 0;
+        for (int i = 0; i < 90; i++) {
+            long time = i * FRAME_US;
+            writer.writeSample(video, frame(i), time, i % 30 == 0);
+            while (audioTime <= time) {
+                writer.writeSample(audio, ByteBuffer.wrap(new byte[]{1, 2, 3}), audioTime, false);
+                audioTime += AUDIO_FRAME_US;
+            }
+        }
+        writer.release();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        List<Box> boxes = parse(bytes);
+        assertEquals(listOf("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"), types(boxes));
+        assertEquals(3, writer.getFragmentCount());
+
+        // Numeri di sequenza e campioni video per frammento
+        for (int i = 0; i < 3; i++) {
+            Box moof = boxes.get(2 + i * 2);
+            assertEquals(i + 1, ByteBuffer.wrap(bytes).getInt(find(bytes, moof, "mfhd") + 12));
+            int trun = find(bytes, moof, "trun");
+            assertEquals(30, ByteBuffer.wrap(bytes).getInt(trun + 12));
+        }
+    }
+
+    @Test
+    public void audioGap_keepsTimestamps() throws IOException {
+        // Interruzione all'interno di un frammento e sul taglio fra due frammenti
+        for (long fragmentUs : new long[]{10000000, 1000000}) {
+            File file = new File(folder.getRoot(), "gap" + fragmentUs + ".mp4");
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(file, fragmentUs);
+            int audio = writer.addAudioTrack(48000, 1, AUDIO_CONFIG);
+            writer.start();
+
+            // 50 frame, 2 secondi di silenzio, altri 50 frame
+            long last = 0;
+            for (int i = 0; i < 100; i++) {
+                last = i * AUDIO_FRAME_US + (i >= 50 ? 2000000 : 0);
+                writer.writeSample(audio, ByteBuffer.wrap(new byte[]{1, 2, 3}), last, false);
+            }
+            writer.release();
+
+            long durationUs = Mp4Concatenator.getDurationUs(file);
+            assertEquals(last + AUDIO_FRAME_US, durationUs, 1000);
+        }
+    }
+
+    @Test
+    public void videoSample_lengthPrefixed() throws IOException {
+        File file = folder.newFile("clip.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 1000000);
+        int video = writer.addVideoTrack(MediaFormat.MIMETYPE_VIDEO_AVC, 640, 480, new byte[][]{SPS, PPS});
+        writer.start();
+
+        // Start code di 4 e di 3 byte nello stesso campione
+        byte[] sample = {0, 0, 0, 1, 0x65, 10, 11, 0, 0, 1, 0x06, 12};
+        writer.writeSample(video, ByteBuffer.wrap(sample), 0, true);
+        writer.release();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        List<Box> boxes = parse(bytes);
+        Box mdat = boxes.get(boxes.size() - 1);
+        assertEquals("mdat", mdat.type);
+        ByteBuffer data = ByteBuffer.wrap(bytes, mdat.offset + 8, mdat.size - 8);
+        assertEquals(3, data.getInt());
+        assertEquals(0x65, data.get());
+        data.position(data.position() + 2);
+        assertEquals(2, data.getInt());
+        assertEquals(0x06, data.get());
+        assertEquals(12, data.get());
+        assertFalse(data.hasRemaining());
+
+        // Il data_offset del trun punta ai dati nel mdat
+        Box moof = boxes.get(2);
+        int dataOffset = ByteBuffer.wrap(bytes).getInt(find(bytes, moof, "trun") + 16);
+        assertEquals(mdat.offset + 8, moof.offset + dataOffset);
+    }
+
+    @Test
+    public void header_describesTracks() throws IOException {
+        File file = folder.newFile("clip.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 1000000);
+        writer.addVideoTrack(MediaFormat.MIMETYPE_VIDEO_AVC, 640, 480, new byte[][]{SPS, PPS});
+        writer.addAudioTrack(48000, 1, AUDIO_CONFIG);
+        writer.start();
+        writer.release();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        List<Box> boxes = parse(bytes);
+        assertEquals(listOf("ftyp", "moov"), types(boxes));
+        Box moov = boxes.get(1);
+        assertTrue(find(bytes, moov, "avcC") > 0);
+        assertTrue(find(bytes, moov, "esds") > 0);
+        assertTrue(find(bytes, moov, "mvex") > 0);
+        // avcC: versione, profilo, compatibilità e livello dall'SPS
+        int avcC = find(bytes, moov, "avcC");
+        assertEquals(1, bytes[avcC + 8]);
+        assertEquals(SPS[1], bytes[avcC + 9]);
+        assertEquals(SPS[3], bytes[avcC + 11]);
+    }
+
+    @Test
+    public void splitAnnexB_startCodes() {
+        List<byte[]> nals = FragmentedMp4Writer.splitAnnexB(new byte[]{0, 0, 0, 1, 1, 2, 0, 0, 1, 3});
+        assertEquals(2, nals.size());
+        assertArrayEquals(new byte[]{1, 2}, nals.get(0));
+        assertArrayEquals(new byte[]{3}, nals.get(1));
+
+        // Senza start code: un solo NAL
+        assertEquals(1, FragmentedMp4Writer.splitAnnexB(new byte[]{5, 6}).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void writeSample_beforeStart() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(folder.newFile("clip.mp4"), 1000000);
+        int video = writer.addVideoTrack(MediaFormat.MIMETYPE_VIDEO_AVC, 640, 480, new byte[][]{SPS, PPS});
+        writer.writeSample(video, ByteBuffer.wrap(new byte[]{0, 0, 1, 0x65}), 0, true);
+    }
+
+    private static ByteBuffer frame(int index) {
+        return ByteBuffer.wrap(new byte[]{0, 0, 0, 1, (byte) (index % 30 == 0 ? 0x65 : 0x41), (byte) index});
+    }
+
+    private static List<Box> parse(byte[] bytes) {
+        ArrayList<Box> boxes = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int offset = 0;
+        while (offset < bytes.length) {
+            int size = buffer.getInt(offset);
+            assertTrue("Invalid box size at " + offset, size >= 8 && offset + size <= bytes.length);
+            boxes.add(new Box(new String(bytes, offset + 4, 4), offset, size));
+            offset += size;
+        }
+        return boxes;
+    }
+
+    /**
+     * Cerca un box all'interno di un altro, a qualsiasi profondità (ricerca del tipo).
+     */
+    private static int find(byte[] bytes, Box parent, String type) {
+        byte[] name = type.getBytes();
+        for (int i = parent.offset + 8; i + 4 <= parent.offset + parent.size; i++) {
+            if (bytes[i] == name[0] && bytes[i + 1] == name[1] && bytes[i + 2] == name[2] && bytes[i + 3] == name[3])
+                return i - 4;
+        }
+        return -1;
+    }
+
+    private static List<String> types(List<Box> boxes) {
+        ArrayList<String> types = new ArrayList<>();
+        for (Box box : boxes)
+            types.add(box.type);
+        return types;
+    }
+
+    private static List<String> listOf(String... values) {
+        ArrayList<String> list = new ArrayList<>();
+        for (String value : values)
+            list.add(value);
+        return list;
+    }
+}
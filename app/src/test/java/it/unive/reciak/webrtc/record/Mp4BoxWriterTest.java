@@ -0,0 +1,88 @@
+package it.unive.reciak.webrtc.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scrittura dei box MP4: dimensioni, full box e campi sovrascritti.
+ */
+public class Mp4BoxWriterTest {
+    @Test
+    public void nestedBoxes_sizesWritten() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(16);
+        writer.startBox("moov")
+                .startFullBox("mvhd", 1, 0x000007).putInt(42).endBox()
+                .startBox("trak").putShort(0xABCD).endBox()
+                .endBox();
+
+        ByteBuffer bytes = ByteBuffer.wrap(writer.toByteArray());
+        assertEquals(8 + 16 + 10, bytes.remaining());
+        assertEquals(34, bytes.getInt());
+        assertEquals("moov", fourCc(bytes));
+        assertEquals(16, bytes.getInt());
+        assertEquals("mvhd", fourCc(bytes));
+        assertEquals(0x01000007, bytes.getInt());
+        assertEquals(42, bytes.getInt());
+        assertEquals(10, bytes.getInt());
+        assertEquals("trak", fourCc(bytes));
+        assertEquals((short) 0xABCD, bytes.getShort());
+    }
+
+    @Test
+    public void values_bigEndian() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(16);
+        writer.putByte(0x12).putShort(0x3456).putInt(0x789ABCDE).putLong(0x0102030405060708L).putZeros(2);
+
+        assertArrayEquals(new byte[]{0x12, 0x34, 0x56, 0x78, (byte) 0x9A, (byte) 0xBC, (byte) 0xDE,
+                1, 2, 3, 4, 5, 6, 7, 8, 0, 0}, writer.toByteArray());
+    }
+
+    @Test
+    public void buffer_grows() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(16);
+        writer.startBox("mdat").putZeros(100000).endBox();
+
+        assertEquals(100008, writer.position());
+        assertEquals(100008, ByteBuffer.wrap(writer.toByteArray()).getInt());
+    }
+
+    @Test
+    public void setInt_patchesWrittenValue() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(16);
+        writer.putInt(0).putInt(7);
+        writer.setInt(0, 99);
+
+        ByteBuffer bytes = ByteBuffer.wrap(writer.toByteArray());
+        assertEquals(99, bytes.getInt());
+        assertEquals(7, bytes.getInt());
+    }
+
+    @Test
+    public void reset_reusesBuffer() {
+        Mp4BoxWriter writer = new Mp4BoxWriter(16);
+        writer.startBox("free");
+        writer.reset();
+        writer.startBox("skip").endBox();
+
+        assertEquals(8, writer.position());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endBox_withoutStart() {
+        new Mp4BoxWriter(16).endBox();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fourCc_invalidLength() {
+        new Mp4BoxWriter(16).startBox("abc");
+    }
+
+    private static String fourCc(ByteBuffer bytes) {
+        byte[] type = new byte[4];
+        bytes.get(type);
+        return new String(type);
+    }
+}
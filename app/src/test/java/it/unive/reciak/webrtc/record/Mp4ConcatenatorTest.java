@@ -0,0 +1,410 @@
+package it.unive.reciak.webrtc.record;
+
+import android.media.MediaFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unione di clip MP4 standard, generate come quelle di MediaMuxer (mdat seguito da moov), e
+ * frammentate, generate con FragmentedMp4Writer.
+ */
+public class Mp4ConcatenatorTest {
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int VIDEO_DURATION = 3000;
+    private static final int AUDIO_TIMESCALE = 48000;
+    private static final int AUDIO_DURATION = 1024;
+    private static final byte[] SPS = {0x67, 0x42, 0x00, 0x1F, (byte) 0xE9, 0x01, 0x40};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUDIO_CONFIG = {0x12, 0x10};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void standard_samplesAndTimesMerged() throws IOException {
+        File first = writeStandardClip("a.mp4", 1, 6, 12, 1, 0);
+        File second = writeStandardClip("b.mp4", 2, 4, 8, 1, 0);
+        File output = folder.newFile("out.mp4");
+        Mp4Concatenator.concat(Arrays.asList(first, second), output);
+
+        byte[] bytes = Files.readAllBytes(output.toPath());
+        assertEquals(Arrays.asList("ftyp", "moov", "mdat"), types(bytes, 0, bytes.length));
+        int moov = child(bytes, 0, bytes.length, "moov");
+        List<Integer> traks = children(bytes, moov, "trak");
+        assertEquals(2, traks.size());
+
+        // Ogni campione si trova all'offset indicato dalle tabelle, con i dati della sua clip
+        int video = stbl(bytes, traks.get(0));
+        long[] videoOffsets = sampleOffsets(bytes, video);
+        assertEquals(10, videoOffsets.length);
+        for (int i = 0; i < 10; i++)
+            assertSample(bytes, videoOffsets[i], i < 6 ? 1 : 2, 0, i < 6 ? i : i - 6);
+        int audio = stbl(bytes, traks.get(1));
+        long[] audioOffsets = sampleOffsets(bytes, audio);
+        assertEquals(20, audioOffsets.length);
+        for (int i = 0; i < 20; i++)
+            assertSample(bytes, audioOffsets[i], i < 12 ? 1 : 2, 1, i < 12 ? i : i - 12);
+
+        // Campioni chiave della seconda clip spostati dopo quelli della prima
+        int stss = child(bytes, video, "stss");
+        assertEquals(4, getInt(bytes, stss + 12));
+        assertEquals(Arrays.asList(1, 4, 7, 10), Arrays.asList(getInt(bytes, stss + 16), getInt(bytes, stss + 20),
+                getInt(bytes, stss + 24), getInt(bytes, stss + 28)));
+        assertEquals(-1, child(bytes, audio, "stss"));
+
+        // La seconda clip inizia alla fine della traccia più lunga della prima (audio, 12 * 1024 / 48000 s)
+        long[] videoTimes = decodeTimes(bytes, video);
+        long firstEndUs = 12L * AUDIO_DURATION * 1000000 / AUDIO_TIMESCALE;
+        assertEquals(firstEndUs * VIDEO_TIMESCALE / 1000000, videoTimes[6]);
+        long[] audioTimes = decodeTimes(bytes, audio);
+        assertEquals(12L * AUDIO_DURATION, audioTimes[12]);
+
+        // Durata del video in mvhd (timescale 1000)
+        int mvhd = child(bytes, moov, "mvhd");
+        long totalUs = firstEndUs + 8L * AUDIO_DURATION * 1000000 / AUDIO_TIMESCALE;
+        assertEquals(totalUs / 1000, getInt(bytes, mvhd + 24));
+    }
+
+    @Test
+    public void fragmented_fragmentsRenumbered() throws IOException {
+        File first = writeFragmentedClip("a.mp4", 60, 0);
+        File second = writeFragmentedClip("b.mp4", 30, 0);
+        File output = folder.newFile("out.mp4");
+        Mp4Concatenator.concat(Arrays.asList(first, second), output);
+
+        byte[] bytes = Files.readAllBytes(output.toPath());
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"),
+                types(bytes, 0, bytes.length));
+        assertEquals(first.length() + second.length() - headerSize(second), bytes.length);
+
+        List<Integer> moofs = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += getInt(bytes, offset)) {
+            if ("moof".equals(type(bytes, offset)))
+                moofs.add(offset);
+        }
+        for (int i = 0; i < moofs.size(); i++)
+            assertEquals(i + 1, getInt(bytes, child(bytes, moofs.get(i), "mfhd") + 12));
+
+        // Il primo frammento della seconda clip inizia dopo i 2 secondi della prima
+        int traf = child(bytes, moofs.get(2), "traf");
+        int tfdt = child(bytes, traf, "tfdt");
+        long decodeTime = ByteBuffer.wrap(bytes).getLong(tfdt + 12);
+        long expected = 60 * 33333L * VIDEO_TIMESCALE / 1000000;
+        assertTrue("Decode time " + decodeTime, Math.abs(decodeTime - expected) < VIDEO_DURATION);
+    }
+
+    @Test
+    public void standard_keepsAudioDelay() throws IOException {
+        // L'audio di ogni clip inizia 100 ms dopo il video (voce vuota in elst, come MediaMuxer)
+        File first = writeStandardClip("a.mp4", 1, 6, 12, 1, 100);
+        File second = writeStandardClip("b.mp4", 2, 6, 12, 1, 100);
+        File output = folder.newFile("out.mp4");
+        Mp4Concatenator.concat(Arrays.asList(first, second), output);
+
+        byte[] bytes = Files.readAllBytes(output.toPath());
+        int moov = child(bytes, 0, bytes.length, "moov");
+        List<Integer> traks = children(bytes, moov, "trak");
+        assertEquals(-1, child(bytes, traks.get(0), "edts"));
+        int elst = child(bytes, child(bytes, traks.get(1), "edts"), "elst");
+        assertEquals(2, getInt(bytes, elst + 12));
+        assertEquals(100, getInt(bytes, elst + 16));
+        assertEquals(-1, getInt(bytes, elst + 20));
+        assertEquals(0, getInt(bytes, elst + 32));
+
+        // Ogni clip dura fino alla fine dell'audio ritardato: 100 ms + 12 * 1024 / 48000 s
+        long clipUs = 100000 + 12L * AUDIO_DURATION * 1000000 / AUDIO_TIMESCALE;
+        long[] videoTimes = decodeTimes(bytes, stbl(bytes, traks.get(0)));
+        assertEquals(clipUs * VIDEO_TIMESCALE / 1000000, videoTimes[6]);
+        // L'audio della seconda clip resta 100 ms dopo il suo video: l'elst sposta già tutta la traccia
+        long[] audioTimes = decodeTimes(bytes, stbl(bytes, traks.get(1)));
+        assertEquals(clipUs * AUDIO_TIMESCALE / 1000000, audioTimes[12]);
+
+        int mvhd = child(bytes, moov, "mvhd");
+        assertEquals(2 * clipUs / 1000, getInt(bytes, mvhd + 24));
+    }
+
+    @Test
+    public void fragmented_keepsAudioDelay() throws IOException {
+        // L'audio di ogni clip inizia 200 ms dopo il video
+        File first = writeFragmentedClip("a.mp4", 30, 200000);
+        File second = writeFragmentedClip("b.mp4", 30, 200000);
+        File output = folder.newFile("out.mp4");
+        Mp4Concatenator.concat(Arrays.asList(first, second), output);
+
+        byte[] bytes = Files.readAllBytes(output.toPath());
+        List<Integer> moofs = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += getInt(bytes, offset)) {
+            if ("moof".equals(type(bytes, offset)))
+                moofs.add(offset);
+        }
+        assertEquals(2, moofs.size());
+        assertEquals(200000L * AUDIO_TIMESCALE / 1000000, tfdt(bytes, children(bytes, moofs.get(0), "traf").get(1)));
+        // La seconda clip inizia dopo il secondo di video della prima; il suo audio resta 200 ms dopo il video
+        List<Integer> trafs = children(bytes, moofs.get(1), "traf");
+        assertEquals(2, trafs.size());
+        long videoUs = tfdt(bytes, trafs.get(0)) * 1000000 / VIDEO_TIMESCALE;
+        long audioUs = tfdt(bytes, trafs.get(1)) * 1000000 / AUDIO_TIMESCALE;
+        assertEquals(30 * 33333L, videoUs, 100);
+        assertEquals(videoUs + 200000, audioUs, 100);
+    }
+
+    @Test
+    public void differentConfiguration_rejected() throws IOException {
+        File first = writeStandardClip("a.mp4", 1, 3, 3, 1, 0);
+        File second = writeStandardClip("b.mp4", 2, 3, 3, 2, 0);
+        File output = new File(folder.getRoot(), "out.mp4");
+        try {
+            Mp4Concatenator.concat(Arrays.asList(first, second), output);
+            fail("Clips with different configurations concatenated");
+        } catch (IOException e) {
+            assertFalse(output.exists());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void mixedFormats_rejected() throws IOException {
+        File first = writeStandardClip("a.mp4", 1, 3, 3, 1, 0);
+        File second = writeFragmentedClip("b.mp4", 30, 0);
+        Mp4Concatenator.concat(Arrays.asList(first, second), folder.newFile("out.mp4"));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedClip_rejected() throws IOException {
+        File clip = writeStandardClip("a.mp4", 1, 3, 3, 1, 0);
+        byte[] bytes = Files.readAllBytes(clip.toPath());
+        Files.write(clip.toPath(), Arrays.copyOf(bytes, bytes.length - 10));
+        Mp4Concatenator.concat(Arrays.asList(clip, clip), folder.newFile("out.mp4"));
+    }
+
+    /**
+     * Scrive una clip con una traccia video (un frame chiave ogni 3) e una audio, in chunk
+     * intercalati. Ogni campione contiene clip, traccia e indice.
+     */
+    private File writeStandardClip(String name, int clip, int videoSamples, int audioSamples, int configuration,
+                                   int audioDelayMs) throws IOException {
+        Mp4BoxWriter boxes = new Mp4BoxWriter(4096);
+        boxes.startBox("ftyp").putFourCc("isom").putInt(0).putFourCc("isom").endBox();
+
+        // Chunk di 2 frame video e 3 campioni audio, alternati
+        List<Long> videoChunks = new ArrayList<>();
+        List<Long> audioChunks = new ArrayList<>();
+        boxes.startBox("mdat");
+        int v = 0;
+        int a = 0;
+        while (v < videoSamples || a < audioSamples) {
+            if (v < videoSamples) {
+                videoChunks.add((long) boxes.position());
+                for (int i = 0; i < 2 && v < videoSamples; i++)
+                    boxes.putBytes(sample(clip, 0, v++));
+            }
+            if (a < audioSamples) {
+                audioChunks.add((long) boxes.position());
+                for (int i = 0; i < 3 && a < audioSamples; i++)
+                    boxes.putBytes(sample(clip, 1, a++));
+            }
+        }
+        boxes.endBox();
+
+        boxes.startBox("moov");
+        boxes.startFullBox("mvhd", 0, 0).putInt(0).putInt(0).putInt(1000).putInt(0).putZeros(76).putInt(3).endBox();
+        writeTrak(boxes, 1, "vide", VIDEO_TIMESCALE, VIDEO_DURATION, videoSamples, 2, videoChunks, configuration, true, 0);
+        writeTrak(boxes, 2, "soun", AUDIO_TIMESCALE, AUDIO_DURATION, audioSamples, 3, audioChunks, configuration, false, audioDelayMs);
+        boxes.endBox();
+
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), boxes.toByteArray());
+        return file;
+    }
+
+    private static void writeTrak(Mp4BoxWriter boxes, int id, String handler, int timescale, int duration, int samples,
+                                  int samplesPerChunk, List<Long> chunks, int configuration, boolean video, int delayMs) {
+        boxes.startBox("trak");
+        boxes.startFullBox("tkhd", 0, 3).putInt(0).putInt(0).putInt(id).putInt(0).putInt(0).putZeros(60).endBox();
+        if (delayMs > 0) {
+            // Voce vuota per il ritardo e voce con tutti i campioni (timescale del filmato 1000)
+            boxes.startBox("edts");
+            boxes.startFullBox("elst", 0, 0).putInt(2)
+                    .putInt(delayMs).putInt(-1).putInt(0x10000)
+                    .putInt((int) ((long) samples * duration * 1000 / timescale)).putInt(0).putInt(0x10000)
+                    .endBox();
+            boxes.endBox();
+        }
+        boxes.startBox("mdia");
+        boxes.startFullBox("mdhd", 0, 0).putInt(0).putInt(0).putInt(timescale).putInt(samples * duration).putInt(0).endBox();
+        boxes.startFullBox("hdlr", 0, 0).putInt(0).putFourCc(handler).putZeros(13).endBox();
+        boxes.startBox("minf");
+        boxes.startBox("dinf").endBox();
+        boxes.startBox("stbl");
+        boxes.startFullBox("stsd", 0, 0).putInt(1).startBox(video ? "avc1" : "mp4a").putInt(configuration).endBox().endBox();
+        boxes.startFullBox("stts", 0, 0).putInt(1).putInt(samples).putInt(duration).endBox();
+        if (video) {
+            boxes.startFullBox("stss", 0, 0).putInt((samples + 2) / 3);
+            for (int i = 0; i < samples; i += 3)
+                boxes.putInt(i + 1);
+            boxes.endBox();
+        }
+        // L'ultimo chunk può essere incompleto
+        int last = samples % samplesPerChunk == 0 ? samplesPerChunk : samples % samplesPerChunk;
+        if (last == samplesPerChunk)
+            boxes.startFullBox("stsc", 0, 0).putInt(1).putInt(1).putInt(samplesPerChunk).putInt(1).endBox();
+        else
+            boxes.startFullBox("stsc", 0, 0).putInt(2).putInt(1).putInt(samplesPerChunk).putInt(1)
+                    .putInt(chunks.size()).putInt(last).putInt(1).endBox();
+        boxes.startFullBox("stsz", 0, 0).putInt(0).putInt(samples);
+        for (int i = 0; i < samples; i++)
+            boxes.putInt(4);
+        boxes.endBox();
+        boxes.startFullBox("stco", 0, 0).putInt(chunks.size());
+        for (long chunk : chunks)
+            boxes.putInt((int) chunk);
+        boxes.endBox();
+        boxes.endBox();
+        boxes.endBox();
+        boxes.endBox();
+        boxes.endBox();
+    }
+
+    private static byte[] sample(int clip, int track, int index) {
+        return new byte[]{(byte) 0xAA, (byte) clip, (byte) track, (byte) index};
+    }
+
+    private File writeFragmentedClip(String name, int frames, long audioStartUs) throws IOException {
+        File file = folder.newFile(name);
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 1000000);
+        int video = writer.addVideoTrack(MediaFormat.MIMETYPE_VIDEO_AVC, 640, 480, new byte[][]{SPS, PPS});
+        int audio = writer.addAudioTrack(48000, 1, AUDIO_CONFIG);
+        writer.start();
+        long audioTime = audioStartUs;
+        for (int i = 0; i < frames; i++) {
+            long time = i * 33333L;
+            writer.writeSample(video, ByteBuffer.wrap(new byte[]{0, 0, 0, 1, (byte) (i % 30 == 0 ? 0x65 : 0x41), (byte) i}), time, i % 30 == 0);
+            while (audioTime <= time) {
+                writer.writeSample(audio, ByteBuffer.wrap(new byte[]{1, 2, 3}), audioTime, false);
+                audioTime += AUDIO_DURATION * 1000000L / AUDIO_TIMESCALE;
+            }
+        }
+        writer.release();
+        return file;
+    }
+
+    /**
+     * Dimensione di ftyp e moov di una clip frammentata.
+     */
+    private static int headerSize(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int size = getInt(bytes, 0);
+        return size + getInt(bytes, size);
+    }
+
+    private static void assertSample(byte[] bytes, long offset, int clip, int track, int index) {
+        byte[] expected = sample(clip, track, index);
+        assertArrayEquals("Sample " + index + " of track " + track, expected,
+                Arrays.copyOfRange(bytes, (int) offset, (int) offset + expected.length));
+    }
+
+    private static long tfdt(byte[] bytes, int traf) {
+        return ByteBuffer.wrap(bytes).getLong(child(bytes, traf, "tfdt") + 12);
+    }
+
+    private static int stbl(byte[] bytes, int trak) {
+        return child(bytes, child(bytes, child(bytes, trak, "mdia"), "minf"), "stbl");
+    }
+
+    /**
+     * Offset di ogni campione da stsc, stsz e stco.
+     */
+    private static long[] sampleOffsets(byte[] bytes, int stbl) {
+        int stsz = child(bytes, stbl, "stsz");
+        int stsc = child(bytes, stbl, "stsc");
+        int stco = child(bytes, stbl, "stco");
+        int sampleSize = getInt(bytes, stsz + 12);
+        long[] offsets = new long[getInt(bytes, stsz + 16)];
+        int chunks = getInt(bytes, stco + 12);
+        int entries = getInt(bytes, stsc + 12);
+        int sample = 0;
+        for (int chunk = 1; chunk <= chunks; chunk++) {
+            int samples = 0;
+            for (int e = 0; e < entries; e++) {
+                if (getInt(bytes, stsc + 16 + e * 12) <= chunk)
+                    samples = getInt(bytes, stsc + 20 + e * 12);
+            }
+            long offset = getInt(bytes, stco + 12 + chunk * 4) & 0xFFFFFFFFL;
+            for (int i = 0; i < samples; i++) {
+                offsets[sample] = offset;
+                offset += sampleSize != 0 ? sampleSize : getInt(bytes, stsz + 20 + sample * 4);
+                sample++;
+            }
+        }
+        assertEquals(offsets.length, sample);
+        return offsets;
+    }
+
+    /**
+     * Tempo di decodifica di ogni campione da stts.
+     */
+    private static long[] decodeTimes(byte[] bytes, int stbl) {
+        int stts = child(bytes, stbl, "stts");
+        List<Long> times = new ArrayList<>();
+        long time = 0;
+        for (int e = 0; e < getInt(bytes, stts + 12); e++) {
+            for (int i = 0; i < getInt(bytes, stts + 16 + e * 8); i++) {
+                times.add(time);
+                time += getInt(bytes, stts + 20 + e * 8);
+            }
+        }
+        long[] result = new long[times.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = times.get(i);
+        return result;
+    }
+
+    private static int child(byte[] bytes, int parent, String type) {
+        return child(bytes, parent + 8, parent + getInt(bytes, parent), type);
+    }
+
+    private static int child(byte[] bytes, int start, int end, String type) {
+        for (int offset = start; offset < end; offset += getInt(bytes, offset)) {
+            if (type.equals(type(bytes, offset)))
+                return offset;
+        }
+        return -1;
+    }
+
+    private static List<Integer> children(byte[] bytes, int parent, String type) {
+        List<Integer> children = new ArrayList<>();
+        for (int offset = parent + 8; offset < parent + getInt(bytes, parent); offset += getInt(bytes, offset)) {
+            if (type.equals(type(bytes, offset)))
+                children.add(offset);
+        }
+        return children;
+    }
+
+    private static List<String> types(byte[] bytes, int start, int end) {
+        List<String> types = new ArrayList<>();
+        for (int offset = start; offset < end; offset += getInt(bytes, offset)) {
+            assertTrue("Invalid box size at " + offset, getInt(bytes, offset) >= 8);
+            types.add(type(bytes, offset));
+        }
+        return types;
+    }
+
+    private static String type(byte[] bytes, int offset) {
+        return new String(bytes, offset + 4, 4);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ByteBuffer.wrap(bytes).getInt(offset);
+    }
+}
@@ -0,0 +1,42 @@
+package it.unive.reciak.webrtc.record;
+
+/**
+ * Benchmark di PcmMixer sulla JVM, escluso dai test: misura il tempo di miscelazione di due
+ * sorgenti stereo a blocchi di 10 ms. Si esegue manualmente dal main().
+ */
+public final class PcmMixerBenchmark {
+    // 10 ms a 48 kHz
+    private static final int FRAMES = 480;
+    // Un minuto di audio
+    private static final int BLOCKS = 6000;
+    private static final int ROUNDS = 5;
+
+    private PcmMixerBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        PcmMixer mixer = new PcmMixer(48000, 2, 2, 500, 40);
+        byte[] first = PcmMixerTest.block(FRAMES, 2, 1200);
+        byte[] second = PcmMixerTest.block(FRAMES, 2, -700);
+        byte[] out = new byte[FRAMES * 4];
+
+        // Riscaldamento del JIT
+        run(mixer, first, second, out, 0);
+        for (int round = 1; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            run(mixer, first, second, out, round * BLOCKS);
+            long elapsedNs = System.nanoTime() - start;
+            System.out.println("Round " + round + ": " + BLOCKS / 100 + " s of audio mixed in " + elapsedNs / 1000000
+                    + " ms (" + elapsedNs / BLOCKS + " ns per block, " + BLOCKS * 10000000L / Math.max(1, elapsedNs) + "x real time)");
+        }
+    }
+
+    private static void run(PcmMixer mixer, byte[] first, byte[] second, byte[] out, int from) {
+        for (int i = from; i < from + BLOCKS; i++) {
+            mixer.write(0, first, first.length, 2, i * 10000L);
+            mixer.write(1, second, second.length, 2, i * 10000L);
+            while (mixer.available() >= FRAMES)
+                mixer.read(out);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package it.unive.reciak.webrtc.record;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Miscelazione delle sorgenti: allineamento, saturazione, canali e sorgenti ferme.
+ */
+public class PcmMixerTest {
+    // 10 ms a 48 kHz
+    private static final int FRAMES = 480;
+
+    @Test
+    public void read_sumsAlignedSources() {
+        PcmMixer mixer = new PcmMixer(48000, 1, 2, 500, 40);
+        mixer.write(0, block(FRAMES, 1, 1000), FRAMES * 2, 1, 0);
+        // La seconda sorgente non ha ancora scritto: il mixer la attende
+        assertEquals(0, mixer.available());
+        mixer.write(1, block(FRAMES, 1, -300), FRAMES * 2, 1, 0);
+        assertEquals(FRAMES, mixer.available());
+
+        byte[] out = new byte[FRAMES * 2];
+        assertEquals(0, mixer.read(out));
+        assertEquals(700, sample(out, 0));
+        assertEquals(700, sample(out, FRAMES - 1));
+        assertEquals(0, mixer.available());
+    }
+
+    @Test
+    public void read_saturates() {
+        PcmMixer mixer = new PcmMixer(48000, 1, 2, 500, 40);
+        mixer.write(0, block(FRAMES, 1, 30000), FRAMES * 2, 1, 0);
+        mixer.write(1, block(FRAMES, 1, 10000), FRAMES * 2, 1, 0);
+        byte[] out = new byte[FRAMES * 2];
+        mixer.read(out);
+        assertEquals(Short.MAX_VALUE, sample(out, 0));
+
+        mixer.write(0, block(FRAMES, 1, -30000), FRAMES * 2, 1, 10000);
+        mixer.write(1, block(FRAMES, 1, -10000), FRAMES * 2, 1, 10000);
+        mixer.read(out);
+        assertEquals(Short.MIN_VALUE, sample(out, 0));
+    }
+
+    @Test
+    public void write_alignsByTimestamp() {
+        PcmMixer mixer = new PcmMixer(48000, 1, 2, 500, 40);
+        mixer.write(0, block(2 * FRAMES, 1, 100), 2 * FRAMES * 2, 1, 0);
+        // Seconda sorgente in ritardo di 5 ms
+        mixer.write(1, block(FRAMES, 1, 10), FRAMES * 2, 1, 5000);
+        assertEquals(FRAMES + FRAMES / 2, mixer.available());
+
+        byte[] out = new byte[(FRAMES + FRAMES / 2) * 2];
+        mixer.read(out);
+        assertEquals(100, sample(out, FRAMES / 2 - 1));
+        assertEquals(110, sample(out, FRAMES / 2));
+        assertEquals(110, sample(out, FRAMES + FRAMES / 2 - 1));
+    }
+
+    @Test
+    public void available_ignoresStalledSource() {
+        PcmMixer mixer = new PcmMixer(48000, 1, 2, 500, 40);
+        // Solo la prima sorgente scrive: dopo 40 ms di vantaggio la seconda vale silenzio
+        for (int i = 0; i < 5; i++)
+            mixer.write(0, block(FRAMES, 1, 1), FRAMES * 2, 1, i * 10000L);
+        assertEquals(FRAMES, mixer.available());
+        byte[] out = new byte[FRAMES * 2];
+        mixer.read(out);
+        assertEquals(1, sample(out, 0));
+    }
+
+    @Test
+    public void write_dropsLateSamples() {
+        PcmMixer mixer = new PcmMixer(48000, 1, 2, 500, 40);
+        for (int i = 0; i < 6; i++)
+            mixer.write(0, block(FRAMES, 1, 1), FRAMES * 2, 1, i * 10000L);
+        byte[] out = new byte[2 * FRAMES * 2];
+        mixer.read(out);
+        // Il primo blocco della seconda sorgente arriva dopo la lettura
+        mixer.write(1, block(FRAMES, 1, 5), FRAMES * 2, 1, 0);
+        assertEquals(FRAMES, mixer.getLateFrames());
+    }
+
+    @Test
+    public void write_convertsChannels() {
+        // Uscita stereo: la sorgente mono viene duplicata, quella stereo resta invariata
+        PcmMixer mixer = new PcmMixer(48000, 2, 2, 500, 40);
+        mixer.write(0, block(FRAMES, 1, 100), FRAMES * 2, 1, 0);
+        byte[] stereo = new byte[FRAMES * 4];
+        for (int i = 0; i < FRAMES; i++) {
+            putSample(stereo, 2 * i, 10);
+            putSample(stereo, 2 * i + 1, 20);
+        }
+        mixer.write(1, stereo, stereo.length, 2, 0);
+        byte[] out = new byte[FRAMES * 4];
+        mixer.read(out);
+        assertEquals(110, sample(out, 0));
+        assertEquals(120, sample(out, 1));
+
+        // Uscita mono: la sorgente stereo viene ridotta alla media dei canali
+        PcmMixer mono = new PcmMixer(48000, 1, 1, 500, 40);
+        mono.write(0, stereo, stereo.length, 2, 0);
+        byte[] monoOut = new byte[FRAMES * 2];
+        mono.read(monoOut);
+        assertEquals(15, sample(monoOut, 0));
+    }
+
+    @Test
+    public void write_skipsLongPause() {
+        PcmMixer mixer = new PcmMixer(48000, 1, 1, 500, 40);
+        mixer.write(0, block(FRAMES, 1, 1), FRAMES * 2, 1, 0);
+        // La sorgente riprende dopo 5 secondi: il silenzio non viene prodotto
+        mixer.write(0, block(FRAMES, 1, 2), FRAMES * 2, 1, 5000000);
+        assertTrue(mixer.getSkippedFrames() > 0);
+        assertTrue(mixer.available() <= 48000 / 2);
+    }
+
+    @Test
+    public void read_wrapsAround() {
+        PcmMixer mixer = new PcmMixer(48000, 1, 2, 50, 20);
+        byte[] out = new byte[FRAMES * 2];
+        for (int i = 0; i < 20; i++) {
+            mixer.write(0, block(FRAMES, 1, i), FRAMES * 2, 1, i * 10000L);
+            mixer.write(1, block(FRAMES, 1, 2 * i), FRAMES * 2, 1, i * 10000L);
+            assertEquals(i * 10000L, mixer.read(out));
+            assertEquals(3 * i, sample(out, 0));
+            assertEquals(3 * i, sample(out, FRAMES - 1));
+        }
+    }
+
+    @Test
+    public void mix_longRun() {
+        // Un minuto di audio stereo da due sorgenti: l'uscita resta allineata dopo molti giri del buffer
+        PcmMixer mixer = new PcmMixer(48000, 2, 2, 500, 40);
+        byte[] first = block(FRAMES, 2, 1200);
+        byte[] second = block(FRAMES, 2, -700);
+        byte[] out = new byte[FRAMES * 4];
+        for (int i = 0; i < 6000; i++) {
+            mixer.write(0, first, first.length, 2, i * 10000L);
+            mixer.write(1, second, second.length, 2, i * 10000L);
+            assertEquals(FRAMES, mixer.available());
+            assertEquals(i * 10000L, mixer.read(out));
+            assertEquals(500, sample(out, 0));
+            assertEquals(500, sample(out, 2 * FRAMES - 1));
+        }
+        assertEquals(0, mixer.getLateFrames());
+        assertEquals(0, mixer.getSkippedFrames());
+    }
+
+    static byte[] block(int frames, int channels, int value) {
+        byte[] data = new byte[frames * channels * 2];
+        for (int i = 0; i < frames * channels; i++)
+            putSample(data, i, value);
+        return data;
+    }
+
+    private static void putSample(byte[] data, int index, int value) {
+        data[2 * index] = (byte) value;
+        data[2 * index + 1] = (byte) (value >> 8);
+    }
+
+    static int sample(byte[] data, int index) {
+        return (short) ((data[2 * index] & 0xFF) | (data[2 * index + 1] << 8));
+    }
+}
@@ -0,0 +1,118 @@
+package it.unive.reciak.webrtc.record;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Accumulo dei campioni PCM: riempimento dei buffer, discontinuità e overrun.
+ */
+public class PcmRingBufferTest {
+    // Blocco da 10 ms a 48 kHz mono
+    private static final int BLOCK = 480 * 2;
+
+    @Test
+    public void read_fillsToCapacity() {
+        PcmRingBuffer pcm = new PcmRingBuffer(1000, 48000, 1);
+        pcm.write(block(1), 0, BLOCK, 0);
+        pcm.write(block(2), 0, BLOCK, 10000);
+        assertFalse(pcm.canFill(4 * BLOCK));
+        pcm.write(block(3), 0, BLOCK, 20000);
+        pcm.write(block(4), 0, BLOCK, 30000);
+        assertTrue(pcm.canFill(4 * BLOCK));
+
+        ByteBuffer input = ByteBuffer.allocate(4 * BLOCK);
+        assertEquals(0, pcm.read(input));
+        assertFalse(input.hasRemaining());
+        assertEquals(1, input.get(0));
+        assertEquals(4, input.get(3 * BLOCK));
+        assertEquals(0, pcm.available());
+        assertEquals(0, pcm.getUnderruns());
+    }
+
+    @Test
+    public void read_keepsSamplesAcrossStall() {
+        // Encoder fermo per mezzo secondo: nessun campione perso
+        PcmRingBuffer pcm = new PcmRingBuffer(1000, 48000, 1);
+        for (int i = 0; i < 50; i++)
+            pcm.write(block(i), 0, BLOCK, i * 10000L);
+        assertEquals(50 * BLOCK, pcm.available());
+
+        ByteBuffer input = ByteBuffer.allocate(8 * BLOCK);
+        long expected = 0;
+        while (pcm.canFill(input.capacity())) {
+            input.clear();
+            assertEquals(expected, pcm.read(input));
+            assertEquals((byte) (expected / 10000), input.get(0));
+            expected += input.position() / BLOCK * 10000L;
+        }
+        assertEquals(2 * BLOCK, pcm.available());
+        assertEquals(0, pcm.getOverruns());
+    }
+
+    @Test
+    public void read_stopsAtDiscontinuity() {
+        PcmRingBuffer pcm = new PcmRingBuffer(1000, 48000, 1);
+        pcm.write(block(1), 0, BLOCK, 0);
+        // Sorgente interrotta: il blocco successivo arriva dopo 200 ms
+        pcm.write(block(2), 0, BLOCK, 210000);
+        pcm.write(block(3), 0, BLOCK, 220000);
+
+        ByteBuffer input = ByteBuffer.allocate(4 * BLOCK);
+        assertTrue(pcm.canFill(input.capacity()));
+        assertEquals(0, pcm.read(input));
+        assertEquals(BLOCK, input.position());
+        assertEquals(1, pcm.getUnderruns());
+
+        input.clear();
+        assertFalse(pcm.canFill(input.capacity()));
+        assertEquals(210000, pcm.read(input));
+        assertEquals(2 * BLOCK, input.position());
+    }
+
+    @Test
+    public void write_joinsSmallCorrections() {
+        PcmRingBuffer pcm = new PcmRingBuffer(1000, 48000, 1);
+        pcm.write(block(1), 0, BLOCK, 0);
+        pcm.write(block(2), 0, BLOCK, 10000 + PcmRingBuffer.JOIN_TOLERANCE_US);
+        assertTrue(pcm.canFill(2 * BLOCK));
+    }
+
+    @Test
+    public void write_overrunDropsOldest() {
+        PcmRingBuffer pcm = new PcmRingBuffer(30, 48000, 1);
+        for (int i = 0; i < 5; i++)
+            pcm.write(block(i), 0, BLOCK, i * 10000L);
+        assertEquals(3 * BLOCK, pcm.available());
+        assertEquals(2, pcm.getOverruns());
+        assertEquals(2 * BLOCK, pcm.getDroppedBytes());
+
+        ByteBuffer input = ByteBuffer.allocate(3 * BLOCK);
+        assertEquals(20000, pcm.read(input));
+        assertEquals(2, input.get(0));
+    }
+
+    @Test
+    public void read_wrapsAround() {
+        PcmRingBuffer pcm = new PcmRingBuffer(30, 48000, 1);
+        ByteBuffer input = ByteBuffer.allocate(2 * BLOCK);
+        for (int i = 0; i < 10; i += 2) {
+            pcm.write(block(i), 0, BLOCK, i * 10000L);
+            pcm.write(block(i + 1), 0, BLOCK, (i + 1) * 10000L);
+            input.clear();
+            assertEquals(i * 10000L, pcm.read(input));
+            assertEquals(i, input.get(0));
+            assertEquals(i + 1, input.get(2 * BLOCK - 1));
+        }
+        assertEquals(0, pcm.getOverruns());
+    }
+
+    private static byte[] block(int value) {
+        byte[] data = new byte[BLOCK];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+}